@@ -0,0 +1,27 @@
+package android.graphics;
+
+/**
+ * Size-only stand-in for the framework Bitmap. The benchmarks never decode
+ * pixels; this only exists so CropMath links on a plain JVM.
+ */
+public final class Bitmap {
+    private final int mWidth;
+    private final int mHeight;
+
+    public Bitmap(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getRowBytes() {
+        return mWidth * 4;
+    }
+}
@@ -0,0 +1,86 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.RectF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the three {@link BoundedRect} paths driven by drag events.
+ * Every invocation alternates the direction of the drag so the inner rect
+ * oscillates instead of drifting into a corner. With {@code placement} set to
+ * "edge" the inner rect starts against the outer bounds, so most events hit
+ * the constraint code. {@code geometry} selects the float
+ * {@link BoundedRect} or the double precision {@link ExactBoundedRect}.
+ */
+@State(Scope.Thread)
+public class BoundedRectBenchmark {
+    private static final float STEP = 6;
+
+    @Param({"0", "7.5", "90"})
+    public float rotation;
+
+    @Param({"center", "edge"})
+    public String placement;
+
+    @Param({"float", "exact"})
+    public String geometry;
+
+    private RectF mOuter;
+    private RectF mStart;
+    private BoundedRect mBoundedRect;
+    private final RectF mInner = new RectF();
+    private final RectF mNewInner = new RectF();
+    private boolean mForward;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        mOuter = new RectF(0, 0, 1280, 960);
+        if ("edge".equals(placement)) {
+            mStart = new RectF(0, 0, 640, 480);
+        } else {
+            mStart = new RectF(400, 300, 800, 600);
+        }
+        if ("exact".equals(geometry)) {
+            mBoundedRect = new ExactBoundedRect(rotation, mOuter, mStart);
+        } else {
+            mBoundedRect = new BoundedRect(rotation, mOuter, mStart);
+        }
+        mForward = false;
+    }
+
+    private float step() {
+        mForward = !mForward;
+        return mForward ? -STEP : STEP;
+    }
+
+    @Benchmark
+    public BoundedRect moveInner() {
+        float d = step();
+        mBoundedRect.moveInner(d, d);
+        return mBoundedRect;
+    }
+
+    @Benchmark
+    public BoundedRect resizeInner() {
+        float d = step();
+        mBoundedRect.setToInner(mInner);
+        mNewInner.set(mInner.left + d, mInner.top + d, mInner.right, mInner.bottom);
+        mBoundedRect.resizeInner(mNewInner);
+        return mBoundedRect;
+    }
+
+    @Benchmark
+    public BoundedRect fixedAspectResizeInner() {
+        float d = step();
+        mBoundedRect.setToInner(mInner);
+        float aspect = mInner.height() / mInner.width();
+        mNewInner.set(mInner.left, mInner.top + d * aspect, mInner.right - d, mInner.bottom);
+        mBoundedRect.fixedAspectResizeInner(mNewInner);
+        return mBoundedRect;
+    }
+}
@@ -0,0 +1,97 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.RectF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the static helpers in {@link CropMath} that run on every
+ * touch event or once per save.
+ */
+@State(Scope.Thread)
+public class CropMathBenchmark {
+
+    @Param({"0", "15", "90"})
+    public float rotation;
+
+    private RectF mCrop;
+    private RectF mPhoto;
+    private RectF mDisplay;
+    private RectF mOut;
+    private float[] mCorners;
+    private float[] mRotatedCorners;
+    private float[] mCenter;
+    private float[] mPoint;
+    private float[] mSide;
+    private float[] mVec;
+
+    @Setup
+    public void setup() {
+        mPhoto = new RectF(0, 0, 1280, 960);
+        mDisplay = new RectF(0, 0, 4032, 3024);
+        mCrop = new RectF(210, 140, 990, 730);
+        mOut = new RectF();
+        mCorners = CropMath.getCornersFromRect(mCrop);
+        mRotatedCorners = CropMath.getCornersFromRect(mPhoto);
+        float cx = mPhoto.centerX();
+        float cy = mPhoto.centerY();
+        double rad = Math.toRadians(rotation);
+        float sin = (float) Math.sin(rad);
+        float cos = (float) Math.cos(rad);
+        for (int i = 0; i < mRotatedCorners.length; i += 2) {
+            float x = mRotatedCorners[i] - cx;
+            float y = mRotatedCorners[i + 1] - cy;
+            mRotatedCorners[i] = cx + x * cos - y * sin;
+            mRotatedCorners[i + 1] = cy + x * sin + y * cos;
+        }
+        mCenter = new float[] {
+                cx, cy
+        };
+        mPoint = new float[] {
+                1250, 20
+        };
+        mSide = new float[4];
+        mVec = new float[2];
+    }
+
+    @Benchmark
+    public RectF getScaledCropBounds() {
+        return CropMath.getScaledCropBounds(mCrop, mPhoto, mDisplay);
+    }
+
+    @Benchmark
+    public RectF trapToRect() {
+        return CropMath.trapToRect(mRotatedCorners);
+    }
+
+    @Benchmark
+    public RectF trapToRectInPlace() {
+        CropMath.trapToRect(mRotatedCorners, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public float[] closestSide() {
+        return CropMath.closestSide(mPoint, mRotatedCorners);
+    }
+
+    @Benchmark
+    public float[] closestSideInPlace() {
+        CropMath.closestSide(mPoint, mRotatedCorners, mSide, mVec);
+        return mSide;
+    }
+
+    @Benchmark
+    public boolean pointInRotatedRect() {
+        return CropMath.pointInRotatedRect(mPoint, mPhoto, rotation);
+    }
+
+    @Benchmark
+    public boolean pointInRotatedCorners() {
+        return CropMath.pointInRotatedRect(mPoint, mRotatedCorners, mCenter);
+    }
+}
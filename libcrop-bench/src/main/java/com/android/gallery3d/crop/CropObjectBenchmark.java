@@ -0,0 +1,64 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.RectF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks {@link CropObject#moveCurrentSelection(float, float)}, the entry
+ * point CropView calls for every ACTION_MOVE.
+ */
+@State(Scope.Thread)
+public class CropObjectBenchmark {
+    private static final float STEP = 6;
+
+    @Param({"0", "90"})
+    public int rotation;
+
+    @Param({"free", "locked"})
+    public String aspect;
+
+    @Param({"block", "corner", "edge"})
+    public String selection;
+
+    @Param({"float", "exact"})
+    public String geometry;
+
+    private CropObject mCropObject;
+    private boolean mForward;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        RectF outer = new RectF(0, 0, 1280, 960);
+        RectF inner = new RectF(320, 240, 960, 720);
+        mCropObject = new CropObject(outer, inner, rotation);
+        mCropObject.setMinInnerSideSize(20, 20);
+        mCropObject.setExactGeometry("exact".equals(geometry));
+        if ("locked".equals(aspect)) {
+            mCropObject.setInnerAspectRatio(4, 3);
+        }
+        int edge;
+        if ("block".equals(selection)) {
+            edge = CropObject.MOVE_BLOCK;
+        } else if ("corner".equals(selection) || "locked".equals(aspect)) {
+            // aspect locked crops only accept corners
+            edge = CropObject.BOTTOM_RIGHT;
+        } else {
+            edge = CropObject.MOVE_RIGHT;
+        }
+        mCropObject.selectEdge(edge);
+        mForward = false;
+    }
+
+    @Benchmark
+    public boolean moveCurrentSelection() {
+        mForward = !mForward;
+        float d = mForward ? STEP : -STEP;
+        return mCropObject.moveCurrentSelection(d, d);
+    }
+}
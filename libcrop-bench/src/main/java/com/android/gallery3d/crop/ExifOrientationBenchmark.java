@@ -0,0 +1,218 @@
+package com.android.gallery3d.crop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Benchmarks reading the EXIF orientation of a camera JPEG with
+ * {@link ImageHeader#readOrientation(InputStream)}, against a full header
+ * read and against a reader that works like android.media.ExifInterface,
+ * which cannot run on a plain JVM: it buffers every segment up to the scan
+ * and loads all IFDs and the thumbnail before the orientation is looked up.
+ */
+@State(Scope.Thread)
+public class ExifOrientationBenchmark {
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_INTEROP_IFD = 0xA005;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    // size of the embedded thumbnail, camera thumbnails are 10 - 60K
+    @Param({"0", "16384", "61440"})
+    public int thumbnail;
+
+    private byte[] mJpeg;
+    private final ImageHeader mHeader = new ImageHeader();
+
+    @Setup
+    public void setup() throws IOException {
+        mJpeg = createJpeg(thumbnail);
+    }
+
+    @Benchmark
+    public int readOrientation() throws IOException {
+        mHeader.readOrientation(new ByteArrayInputStream(mJpeg));
+        return mHeader.getOrientation();
+    }
+
+    @Benchmark
+    public int readHeader() throws IOException {
+        mHeader.read(new ByteArrayInputStream(mJpeg));
+        return mHeader.getOrientation();
+    }
+
+    @Benchmark
+    public int readAllTags() throws IOException {
+        HashMap<Integer, Object> tags = readTags(new ByteArrayInputStream(mJpeg));
+        Object orientation = tags.get(TAG_ORIENTATION);
+        return orientation instanceof Integer ? (Integer) orientation : 1;
+    }
+
+    /**
+     * Reads all JPEG segments up to the scan and every tag of the EXIF
+     * segment, the way ExifInterface does for a stream.
+     */
+    private static HashMap<Integer, Object> readTags(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        HashMap<Integer, Object> tags = new HashMap<Integer, Object>();
+        if (in.readUnsignedShort() != 0xFFD8) {
+            return tags;
+        }
+        while (true) {
+            int marker = in.readUnsignedShort();
+            if (marker == 0xFFDA || marker == 0xFFD9) {
+                return tags;
+            }
+            byte[] segment = new byte[in.readUnsignedShort() - 2];
+            in.readFully(segment);
+            if (marker == 0xFFE1 && segment.length > 14 && segment[0] == 'E'
+                    && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f') {
+                readTiff(segment, 6, tags);
+            }
+        }
+    }
+
+    private static void readTiff(byte[] data, int tiff, HashMap<Integer, Object> tags) {
+        boolean bigEndian = data[tiff] == 'M';
+        int ifd1 = readIfd(data, tiff, getInt(data, tiff + 4, bigEndian), bigEndian, tags);
+        if (ifd1 > 0) {
+            readIfd(data, tiff, ifd1, bigEndian, tags);
+        }
+        Object offset = tags.get(TAG_THUMBNAIL_OFFSET);
+        Object length = tags.get(TAG_THUMBNAIL_LENGTH);
+        if (offset instanceof Integer && length instanceof Integer) {
+            byte[] thumbnail = new byte[(Integer) length];
+            System.arraycopy(data, tiff + (Integer) offset, thumbnail, 0, thumbnail.length);
+            tags.put(-1, thumbnail);
+        }
+    }
+
+    // Returns the offset of the next IFD.
+    private static int readIfd(byte[] data, int tiff, int ifd, boolean bigEndian,
+            HashMap<Integer, Object> tags) {
+        int count = getShort(data, tiff + ifd, bigEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = tiff + ifd + 2 + i * 12;
+            int tag = getShort(data, entry, bigEndian);
+            int type = getShort(data, entry + 2, bigEndian);
+            int components = getInt(data, entry + 4, bigEndian);
+            int size = (type < TYPE_SIZES.length ? TYPE_SIZES[type] : 1) * components;
+            int value = size > 4 ? tiff + getInt(data, entry + 8, bigEndian) : entry + 8;
+            if (type == 3 && components == 1) {
+                tags.put(tag, getShort(data, value, bigEndian));
+            } else if (type == 4 && components == 1) {
+                tags.put(tag, getInt(data, value, bigEndian));
+            } else {
+                byte[] bytes = new byte[size];
+                System.arraycopy(data, value, bytes, 0, size);
+                tags.put(tag, bytes);
+            }
+            if (tag == TAG_EXIF_IFD || tag == TAG_GPS_IFD || tag == TAG_INTEROP_IFD) {
+                readIfd(data, tiff, getInt(data, value, bigEndian), bigEndian, tags);
+            }
+        }
+        return getInt(data, tiff + ifd + 2 + count * 12, bigEndian);
+    }
+
+    private static int getShort(byte[] b, int offset, boolean bigEndian) {
+        int b0 = b[offset] & 0xFF;
+        int b1 = b[offset + 1] & 0xFF;
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static int getInt(byte[] b, int offset, boolean bigEndian) {
+        if (bigEndian) {
+            return (getShort(b, offset, true) << 16) | getShort(b, offset + 2, true);
+        }
+        return (getShort(b, offset + 2, false) << 16) | getShort(b, offset, false);
+    }
+
+    /**
+     * Builds a JPEG laid out like a camera photo: JFIF, an EXIF segment with
+     * IFD0, an Exif IFD of 24 tags and a thumbnail, then the tables, the frame
+     * header and 256K of scan data.
+     */
+    private static byte[] createJpeg(int thumbnailLength) throws IOException {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        DataOutputStream t = new DataOutputStream(tiff);
+        int ifd0 = 8;
+        int ifd0Count = 8;
+        int exifIfd = ifd0 + 2 + ifd0Count * 12 + 4;
+        int exifCount = 24;
+        int ifd1 = exifIfd + 2 + exifCount * 12 + 4;
+        int ifd1Count = 2;
+        int thumbnailOffset = ifd1 + 2 + ifd1Count * 12 + 4;
+
+        t.writeBytes("MM");
+        t.writeShort(42);
+        t.writeInt(ifd0);
+        t.writeShort(ifd0Count);
+        writeEntry(t, 0x010F, 2, 4, 0x414E4400); // Make
+        writeEntry(t, 0x0110, 2, 4, 0x50485400); // Model
+        writeEntry(t, TAG_ORIENTATION, 3, 1, 6 << 16);
+        writeEntry(t, 0x011A, 4, 1, 72); // XResolution, as a long for brevity
+        writeEntry(t, 0x011B, 4, 1, 72); // YResolution
+        writeEntry(t, 0x0128, 3, 1, 2 << 16); // ResolutionUnit
+        writeEntry(t, 0x0213, 3, 1, 1 << 16); // YCbCrPositioning
+        writeEntry(t, TAG_EXIF_IFD, 4, 1, exifIfd);
+        t.writeInt(ifd1);
+        t.writeShort(exifCount);
+        for (int i = 0; i < exifCount; i++) {
+            writeEntry(t, 0x9000 + i, 4, 1, i);
+        }
+        t.writeInt(0);
+        t.writeShort(ifd1Count);
+        writeEntry(t, TAG_THUMBNAIL_OFFSET, 4, 1, thumbnailLength > 0 ? thumbnailOffset : 0);
+        writeEntry(t, TAG_THUMBNAIL_LENGTH, 4, 1, thumbnailLength);
+        t.writeInt(0);
+        t.write(new byte[thumbnailLength]);
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        DataOutputStream j = new DataOutputStream(jpeg);
+        j.writeShort(0xFFD8);
+        j.writeShort(0xFFE0);
+        j.writeShort(16);
+        j.writeBytes("JFIF");
+        j.write(new byte[10]);
+        j.writeShort(0xFFE1);
+        j.writeShort(2 + 6 + tiff.size());
+        j.writeBytes("Exif");
+        j.writeShort(0);
+        tiff.writeTo(j);
+        j.writeShort(0xFFDB);
+        j.writeShort(2 + 2 * 65);
+        j.write(new byte[2 * 65]);
+        j.writeShort(0xFFC0);
+        j.writeShort(17);
+        j.writeByte(8);
+        j.writeShort(3024);
+        j.writeShort(4032);
+        j.write(new byte[10]);
+        j.writeShort(0xFFDA);
+        j.write(new byte[256 * 1024]);
+        j.writeShort(0xFFD9);
+        return jpeg.toByteArray();
+    }
+
+    private static void writeEntry(DataOutputStream out, int tag, int type, int count,
+            int value) throws IOException {
+        out.writeShort(tag);
+        out.writeShort(type);
+        out.writeInt(count);
+        out.writeInt(value);
+    }
+}
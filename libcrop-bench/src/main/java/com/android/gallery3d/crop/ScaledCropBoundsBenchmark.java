@@ -0,0 +1,90 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.RectF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Maps a batch of stored crop rects into display space, comparing
+ * per-rect {@link CropMath#getScaledCropBounds(RectF, RectF, RectF)} calls
+ * with the struct-of-arrays batch API and its parallel variant. Scores are
+ * per rect.
+ */
+@State(Scope.Benchmark)
+public class ScaledCropBoundsBenchmark {
+    private static final int SIZE = 65536;
+
+    private RectF[] mCrops;
+    private RectF[] mPhotos;
+    private RectF[] mDisplays;
+    private RectBatch mCropBatch;
+    private RectBatch mPhotoBatch;
+    private RectBatch mDisplayBatch;
+    private RectBatch mOut;
+    private ExecutorService mExecutor;
+    private int mParallelism;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(42);
+        mCrops = new RectF[SIZE];
+        mPhotos = new RectF[SIZE];
+        mDisplays = new RectF[SIZE];
+        mCropBatch = new RectBatch(SIZE);
+        mPhotoBatch = new RectBatch(SIZE);
+        mDisplayBatch = new RectBatch(SIZE);
+        mOut = new RectBatch(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            float w = 640 + r.nextInt(4000);
+            float h = 480 + r.nextInt(3000);
+            float left = r.nextFloat() * w / 2;
+            float top = r.nextFloat() * h / 2;
+            mPhotos[i] = new RectF(0, 0, w, h);
+            mCrops[i] = new RectF(left, top, left + w / 3, top + h / 3);
+            mDisplays[i] = new RectF(0, 0, w * 3, h * 3);
+            mCropBatch.set(i, mCrops[i]);
+            mPhotoBatch.set(i, mPhotos[i]);
+            mDisplayBatch.set(i, mDisplays[i]);
+        }
+        mParallelism = Runtime.getRuntime().availableProcessors();
+        mExecutor = Executors.newFixedThreadPool(mParallelism);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void perCall(Blackhole bh) {
+        for (int i = 0; i < SIZE; i++) {
+            bh.consume(CropMath.getScaledCropBounds(mCrops[i], mPhotos[i], mDisplays[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public RectBatch batch() {
+        CropMath.getScaledCropBounds(mCropBatch, mPhotoBatch, mDisplayBatch, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public RectBatch batchParallel() throws InterruptedException {
+        CropMath.getScaledCropBounds(mCropBatch, mPhotoBatch, mDisplayBatch, mOut, mExecutor,
+                mParallelism);
+        return mOut;
+    }
+}
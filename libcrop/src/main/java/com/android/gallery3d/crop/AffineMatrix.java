@@ -0,0 +1,380 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.RectF;
+
+/**
+ * A 2D affine transform for the crop geometry, used instead of
+ * {@link android.graphics.Matrix} so the math stays on the Java heap, can be
+ * inlined by the JIT and runs on a plain JVM.
+ * <p>
+ * The layout and float arithmetic follow Matrix: a point (x, y) maps to
+ * (sx * x + kx * y + tx, ky * x + sy * y + ty). All operations work in place
+ * and none of them allocate.
+ */
+public final class AffineMatrix {
+    // Matches the rounding Skia applies to sin/cos so that multiples of 90
+    // degrees produce exact matrices.
+    private static final float NEARLY_ZERO = 1.0f / (1 << 12);
+
+    private float sx;
+    private float kx;
+    private float tx;
+    private float ky;
+    private float sy;
+    private float ty;
+
+    public AffineMatrix() {
+        reset();
+    }
+
+    public AffineMatrix(AffineMatrix src) {
+        set(src);
+    }
+
+    public void set(AffineMatrix src) {
+        sx = src.sx;
+        kx = src.kx;
+        tx = src.tx;
+        ky = src.ky;
+        sy = src.sy;
+        ty = src.ty;
+    }
+
+    public void reset() {
+        sx = 1;
+        kx = 0;
+        tx = 0;
+        ky = 0;
+        sy = 1;
+        ty = 0;
+    }
+
+    public boolean isIdentity() {
+        return sx == 1 && kx == 0 && tx == 0 && ky == 0 && sy == 1 && ty == 0;
+    }
+
+    /**
+     * Returns true if this maps axis aligned rectangles to axis aligned
+     * rectangles, i.e. it only scales, translates and rotates by multiples of
+     * 90 degrees.
+     */
+    public boolean rectStaysRect() {
+        return (kx == 0 && ky == 0 && sx != 0 && sy != 0)
+                || (sx == 0 && sy == 0 && kx != 0 && ky != 0);
+    }
+
+    public void setTranslate(float dx, float dy) {
+        reset();
+        tx = dx;
+        ty = dy;
+    }
+
+    public void setScale(float scaleX, float scaleY) {
+        reset();
+        sx = scaleX;
+        sy = scaleY;
+    }
+
+    public void setRotate(float degrees) {
+        setRotate(degrees, 0, 0);
+    }
+
+    /**
+     * Sets this to a rotation by degrees about (px, py).
+     */
+    public void setRotate(float degrees, float px, float py) {
+        double radians = Math.toRadians(degrees);
+        setSinCos(snapToZero((float) Math.sin(radians)),
+                snapToZero((float) Math.cos(radians)), px, py);
+    }
+
+    public void setSinCos(float sin, float cos, float px, float py) {
+        float oneMinusCos = 1 - cos;
+        sx = cos;
+        kx = -sin;
+        tx = sin * py + oneMinusCos * px;
+        ky = sin;
+        sy = cos;
+        ty = -sin * px + oneMinusCos * py;
+    }
+
+    /**
+     * Sets this to map src onto dst. If center is true the scale is uniform
+     * and the result is centered in dst, like Matrix.ScaleToFit.CENTER;
+     * otherwise src is stretched to fill dst, like Matrix.ScaleToFit.FILL.
+     *
+     * @return false if src is empty, in which case this is reset.
+     */
+    public boolean setRectToRect(RectF src, RectF dst, boolean center) {
+        if (src.isEmpty()) {
+            reset();
+            return false;
+        }
+        if (dst.isEmpty()) {
+            sx = kx = tx = ky = sy = ty = 0;
+            return true;
+        }
+        float scaleX = dst.width() / src.width();
+        float scaleY = dst.height() / src.height();
+        float transX = dst.left - src.left * scaleX;
+        float transY = dst.top - src.top * scaleY;
+        if (center) {
+            if (scaleX > scaleY) {
+                scaleX = scaleY;
+                transX = dst.left - src.left * scaleX
+                        + (dst.width() - src.width() * scaleX) / 2;
+            } else {
+                scaleY = scaleX;
+                transY = dst.top - src.top * scaleY
+                        + (dst.height() - src.height() * scaleY) / 2;
+            }
+        }
+        sx = scaleX;
+        kx = 0;
+        tx = transX;
+        ky = 0;
+        sy = scaleY;
+        ty = transY;
+        return true;
+    }
+
+    /**
+     * Sets this to a * b, so b is applied first.
+     */
+    public void setConcat(AffineMatrix a, AffineMatrix b) {
+        float nsx = a.sx * b.sx + a.kx * b.ky;
+        float nkx = a.sx * b.kx + a.kx * b.sy;
+        float ntx = a.sx * b.tx + a.kx * b.ty + a.tx;
+        float nky = a.ky * b.sx + a.sy * b.ky;
+        float nsy = a.ky * b.kx + a.sy * b.sy;
+        float nty = a.ky * b.tx + a.sy * b.ty + a.ty;
+        sx = nsx;
+        kx = nkx;
+        tx = ntx;
+        ky = nky;
+        sy = nsy;
+        ty = nty;
+    }
+
+    /**
+     * Sets this to this * other, so other is applied first.
+     */
+    public void preConcat(AffineMatrix other) {
+        setConcat(this, other);
+    }
+
+    /**
+     * Sets this to other * this, so other is applied last.
+     */
+    public void postConcat(AffineMatrix other) {
+        setConcat(other, this);
+    }
+
+    /**
+     * Sets this to this * R, where R rotates by degrees about (px, py).
+     */
+    public void preRotate(float degrees, float px, float py) {
+        double radians = Math.toRadians(degrees);
+        float sin = snapToZero((float) Math.sin(radians));
+        float cos = snapToZero((float) Math.cos(radians));
+        float oneMinusCos = 1 - cos;
+        float rtx = sin * py + oneMinusCos * px;
+        float rty = -sin * px + oneMinusCos * py;
+        float nsx = sx * cos + kx * sin;
+        float nkx = -sx * sin + kx * cos;
+        float ntx = sx * rtx + kx * rty + tx;
+        float nky = ky * cos + sy * sin;
+        float nsy = -ky * sin + sy * cos;
+        float nty = ky * rtx + sy * rty + ty;
+        sx = nsx;
+        kx = nkx;
+        tx = ntx;
+        ky = nky;
+        sy = nsy;
+        ty = nty;
+    }
+
+    public void postTranslate(float dx, float dy) {
+        tx += dx;
+        ty += dy;
+    }
+
+    /**
+     * Sets this to S * this, where S scales by (scaleX, scaleY) about (px, py).
+     */
+    public void postScale(float scaleX, float scaleY, float px, float py) {
+        sx *= scaleX;
+        kx *= scaleX;
+        tx = scaleX * (tx - px) + px;
+        ky *= scaleY;
+        sy *= scaleY;
+        ty = scaleY * (ty - py) + py;
+    }
+
+    /**
+     * Writes the inverse of this into inverse, which may be this.
+     *
+     * @return false if this is not invertible, in which case inverse is untouched.
+     */
+    public boolean invert(AffineMatrix inverse) {
+        double det = (double) sx * sy - (double) kx * ky;
+        if (det == 0 || Double.isNaN(det) || Double.isInfinite(det)) {
+            return false;
+        }
+        double invDet = 1.0 / det;
+        float nsx = (float) (sy * invDet);
+        float nkx = (float) (-kx * invDet);
+        float nky = (float) (-ky * invDet);
+        float nsy = (float) (sx * invDet);
+        float ntx = (float) (((double) kx * ty - (double) sy * tx) * invDet);
+        float nty = (float) (((double) ky * tx - (double) sx * ty) * invDet);
+        inverse.sx = nsx;
+        inverse.kx = nkx;
+        inverse.tx = ntx;
+        inverse.ky = nky;
+        inverse.sy = nsy;
+        inverse.ty = nty;
+        return true;
+    }
+
+    public float mapX(float x, float y) {
+        return sx * x + kx * y + tx;
+    }
+
+    public float mapY(float x, float y) {
+        return ky * x + sy * y + ty;
+    }
+
+    /**
+     * Maps the points [x0, y0, x1, y1, ...] in place.
+     */
+    public void mapPoints(float[] pts) {
+        mapPoints(pts, 0, pts, 0, pts.length >> 1);
+    }
+
+    public void mapPoints(float[] dst, float[] src) {
+        mapPoints(dst, 0, src, 0, src.length >> 1);
+    }
+
+    public void mapPoints(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount) {
+        for (int i = 0; i < pointCount; i++) {
+            float x = src[srcIndex];
+            float y = src[srcIndex + 1];
+            dst[dstIndex] = sx * x + kx * y + tx;
+            dst[dstIndex + 1] = ky * x + sy * y + ty;
+            srcIndex += 2;
+            dstIndex += 2;
+        }
+    }
+
+    /**
+     * Maps the vectors [x0, y0, x1, y1, ...] in place, ignoring translation.
+     */
+    public void mapVectors(float[] vecs) {
+        for (int i = 0; i + 1 < vecs.length; i += 2) {
+            float x = vecs[i];
+            float y = vecs[i + 1];
+            vecs[i] = sx * x + kx * y;
+            vecs[i + 1] = ky * x + sy * y;
+        }
+    }
+
+    public boolean mapRect(RectF rect) {
+        return mapRect(rect, rect);
+    }
+
+    /**
+     * Sets dst to the bounds of src after mapping, dst may be src.
+     *
+     * @return true if the mapped rect is exactly dst, see {@link #rectStaysRect()}.
+     */
+    public boolean mapRect(RectF dst, RectF src) {
+        float left = src.left;
+        float top = src.top;
+        float right = src.right;
+        float bottom = src.bottom;
+        float x0 = mapX(left, top);
+        float y0 = mapY(left, top);
+        float x1 = mapX(right, top);
+        float y1 = mapY(right, top);
+        float x2 = mapX(right, bottom);
+        float y2 = mapY(right, bottom);
+        float x3 = mapX(left, bottom);
+        float y3 = mapY(left, bottom);
+        dst.set(Math.min(Math.min(x0, x1), Math.min(x2, x3)),
+                Math.min(Math.min(y0, y1), Math.min(y2, y3)),
+                Math.max(Math.max(x0, x1), Math.max(x2, x3)),
+                Math.max(Math.max(y0, y1), Math.max(y2, y3)));
+        return rectStaysRect();
+    }
+
+    /**
+     * Returns the mean radius of a circle of the given radius after mapping.
+     */
+    public float mapRadius(float radius) {
+        float d0 = (float) Math.hypot(sx * radius, ky * radius);
+        float d1 = (float) Math.hypot(kx * radius, sy * radius);
+        return (float) Math.sqrt(d0 * d1);
+    }
+
+    /**
+     * Copies this into values in the layout used by Matrix.getValues() and
+     * Matrix.setValues(), so it can be handed to a Canvas.
+     */
+    public void getValues(float[] values) {
+        values[0] = sx;
+        values[1] = kx;
+        values[2] = tx;
+        values[3] = ky;
+        values[4] = sy;
+        values[5] = ty;
+        values[6] = 0;
+        values[7] = 0;
+        values[8] = 1;
+    }
+
+    /**
+     * Sets this from values in the layout used by Matrix.getValues(), which
+     * must hold an affine transform.
+     */
+    public void setValues(float[] values) {
+        sx = values[0];
+        kx = values[1];
+        tx = values[2];
+        ky = values[3];
+        sy = values[4];
+        ty = values[5];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof AffineMatrix))
+            return false;
+        AffineMatrix m = (AffineMatrix) o;
+        return sx == m.sx && kx == m.kx && tx == m.tx && ky == m.ky && sy == m.sy
+                && ty == m.ty;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Float.floatToIntBits(sx);
+        result = 31 * result + Float.floatToIntBits(kx);
+        result = 31 * result + Float.floatToIntBits(tx);
+        result = 31 * result + Float.floatToIntBits(ky);
+        result = 31 * result + Float.floatToIntBits(sy);
+        result = 31 * result + Float.floatToIntBits(ty);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "AffineMatrix[" + sx + ", " + kx + ", " + tx + "][" + ky + ", " + sy + ", "
+                + ty + "]";
+    }
+
+    private static float snapToZero(float v) {
+        return Math.abs(v) <= NEARLY_ZERO ? 0 : v;
+    }
+}
@@ -0,0 +1,253 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * A pool of mutable bitmaps, bounded by their total size in bytes, that
+ * decoders can reuse through {@link BitmapFactory.Options#inBitmap} instead
+ * of allocating a new bitmap for every image. The least recently added
+ * bitmaps are recycled first when the pool is over its budget.
+ * <p>
+ * From KitKat on any pooled bitmap with a large enough allocation can take a
+ * decode, before that the decoded image must have exactly the same size and
+ * config and be decoded without subsampling.
+ */
+public class BitmapPool {
+    private static final int DEFAULT_MEMORY_FRACTION = 8;
+
+    private static BitmapPool sDefault;
+
+    private final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+    // Bitmaps still read on another thread, see retain(), and those of them
+    // that were put in the meantime
+    private final IdentityHashMap<Bitmap, Integer> mRetained =
+            new IdentityHashMap<Bitmap, Integer>();
+    private final ArrayList<Bitmap> mDeferred = new ArrayList<Bitmap>();
+    private final long mMaxBytes;
+    private long mBytes = 0;
+
+    private int mHits = 0;
+    private int mMisses = 0;
+    private long mBytesSaved = 0;
+
+    public BitmapPool(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Pool size must be greater than zero");
+        }
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the process wide pool used by {@link ImageLoader}, which may
+     * hold up to an eighth of the heap.
+     */
+    public static synchronized BitmapPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new BitmapPool(Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_FRACTION);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Removes and returns a pooled bitmap that can hold a width x height
+     * image of the given config, or null if there is none. On KitKat and
+     * later the smallest fitting bitmap is picked, it still has to be
+     * reconfigured before use.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        long needed = (long) width * height * getBytesPerPixel(config);
+        int best = -1;
+        long bestBytes = Long.MAX_VALUE;
+        for (int i = 0; i < mBitmaps.size(); i++) {
+            Bitmap b = mBitmaps.get(i);
+            if (Build.VERSION.SDK_INT >= 19) {
+                long bytes = b.getAllocationByteCount();
+                if (bytes >= needed && bytes < bestBytes) {
+                    best = i;
+                    bestBytes = bytes;
+                }
+            } else if (b.getWidth() == width && b.getHeight() == height
+                    && b.getConfig() == config) {
+                best = i;
+                break;
+            }
+        }
+        if (best < 0) {
+            mMisses++;
+            return null;
+        }
+        Bitmap b = mBitmaps.remove(best);
+        mBytes -= getBytes(b);
+        mHits++;
+        mBytesSaved += needed;
+        return b;
+    }
+
+    /**
+     * Sets options.inBitmap to a pooled bitmap that the decode of a width x
+     * height image with options.inSampleSize and density scaling can reuse,
+     * if there is one.
+     *
+     * @return true if a bitmap was found.
+     */
+    public boolean setInBitmap(BitmapFactory.Options options, int width, int height) {
+        int sampleSize = Math.max(options.inSampleSize, 1);
+        boolean scaled = options.inScaled && options.inDensity > 0
+                && options.inTargetDensity > 0 && options.inDensity != options.inTargetDensity;
+        if (Build.VERSION.SDK_INT < 19 && (sampleSize != 1 || scaled)) {
+            return false;
+        }
+        Bitmap.Config config = options.inPreferredConfig;
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        // decoders round subsampled sizes either way, so ask for the larger
+        int w = (width + sampleSize - 1) / sampleSize;
+        int h = (height + sampleSize - 1) / sampleSize;
+        if (scaled) {
+            float scale = (float) options.inTargetDensity / options.inDensity;
+            w = (int) (w * scale + 1);
+            h = (int) (h * scale + 1);
+        }
+        Bitmap b = get(w, h, config);
+        if (b == null) {
+            return false;
+        }
+        options.inBitmap = b;
+        options.inMutable = true;
+        return true;
+    }
+
+    /**
+     * Hands a bitmap the caller no longer uses to the pool, recycling it
+     * instead if it cannot be reused or does not fit the budget.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (mBitmaps.contains(bitmap)) {
+            return;
+        }
+        if (mRetained.containsKey(bitmap)) {
+            if (!mDeferred.contains(bitmap)) {
+                mDeferred.add(bitmap);
+            }
+            return;
+        }
+        long bytes = getBytes(bitmap);
+        if (!bitmap.isMutable() || bytes > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        mBitmaps.add(bitmap);
+        mBytes += bytes;
+        trimTo(mMaxBytes);
+    }
+
+    /**
+     * Keeps bitmap from being pooled or recycled by {@link #put(Bitmap)}
+     * until {@link #release(Bitmap)} is called as often, so that another
+     * thread can still read it after its owner is done with it.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        Integer count = mRetained.get(bitmap);
+        mRetained.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Ends a {@link #retain(Bitmap)}. If the bitmap was put while it was
+     * retained, it goes to the pool now.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = mRetained.get(bitmap);
+        if (count == null) {
+            throw new IllegalArgumentException("bad argument to release");
+        }
+        if (count > 1) {
+            mRetained.put(bitmap, count - 1);
+            return;
+        }
+        mRetained.remove(bitmap);
+        if (mDeferred.remove(bitmap)) {
+            put(bitmap);
+        }
+    }
+
+    /**
+     * Recycles pooled bitmaps, oldest first, until at most maxBytes are held.
+     */
+    public synchronized void trimTo(long maxBytes) {
+        while (mBytes > maxBytes && !mBitmaps.isEmpty()) {
+            Bitmap b = mBitmaps.remove(0);
+            mBytes -= getBytes(b);
+            b.recycle();
+        }
+    }
+
+    public void clear() {
+        trimTo(0);
+    }
+
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    public long getMaxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the fraction of requests that were served from the pool.
+     */
+    public synchronized float getHitRate() {
+        int requests = mHits + mMisses;
+        return requests == 0 ? 0 : (float) mHits / requests;
+    }
+
+    /**
+     * Returns the number of bytes that did not have to be allocated because
+     * a pooled bitmap was reused.
+     */
+    public synchronized long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + mBytes + "/" + mMaxBytes + ", hits=" + mHits
+                + ", misses=" + mMisses + ", saved=" + mBytesSaved + "]";
+    }
+
+    private static long getBytes(Bitmap b) {
+        if (Build.VERSION.SDK_INT >= 19) {
+            return b.getAllocationByteCount();
+        }
+        return b.getByteCount();
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
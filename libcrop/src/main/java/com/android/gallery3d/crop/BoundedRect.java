@@ -15,28 +15,41 @@
  */
 package com.android.gallery3d.crop;
 
-import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.RectF;
 
-
-import java.util.Arrays;
-
 /**
  * Maintains invariant that inner rectangle is constrained to be within the
  * outer, rotated rectangle.
+ * <p>
+ * The move and resize methods run once per touch event, so they work on
+ * preallocated scratch buffers and do not allocate.
  */
 public class BoundedRect {
     private float rot;
     private RectF outer;
     private RectF inner;
-    private float[] innerRotated;
+    private float[] innerRotated = new float[8];
+
+    // Rotation of outer about its center and its inverse. They only depend on
+    // rot and outer, so they are rebuilt in the constructors, resetTo and
+    // setRotation instead of on every event.
+    private final AffineMatrix rotMatrix = new AffineMatrix();
+    private final AffineMatrix inverseRotMatrix = new AffineMatrix();
+
+    // Scratch state reused by the move and resize paths.
+    private final RectF tmpRect = new RectF();
+    private final float[] oldInnerCorners = new float[8];
+    private final float[] newInnerCorners = new float[8];
+    private final float[] point = new float[2];
+    private final float[] vec = new float[2];
 
     public BoundedRect(float rotation, Rect outerRect, Rect innerRect) {
         rot = rotation;
         outer = new RectF(outerRect);
         inner = new RectF(innerRect);
-        innerRotated = CropMath.getCornersFromRect(inner);
+        updateRotMatrices();
+        CropMath.getCornersFromRect(inner, innerRotated);
         rotateInner();
         if (!isConstrained())
             reconstrain();
@@ -46,17 +59,30 @@ public class BoundedRect {
         rot = rotation;
         outer = new RectF(outerRect);
         inner = new RectF(innerRect);
-        innerRotated = CropMath.getCornersFromRect(inner);
+        updateRotMatrices();
+        CropMath.getCornersFromRect(inner, innerRotated);
         rotateInner();
         if (!isConstrained())
             reconstrain();
     }
 
+    /**
+     * Sets up rot and outer with an empty inner, for subclasses that fit
+     * inner themselves and set it through {@link #setInnerUnchecked}.
+     */
+    BoundedRect(float rotation, RectF outerRect) {
+        rot = rotation;
+        outer = new RectF(outerRect);
+        inner = new RectF();
+        updateRotMatrices();
+    }
+
     public void resetTo(float rotation, RectF outerRect, RectF innerRect) {
         rot = rotation;
         outer.set(outerRect);
         inner.set(innerRect);
-        innerRotated = CropMath.getCornersFromRect(inner);
+        updateRotMatrices();
+        CropMath.getCornersFromRect(inner, innerRotated);
         rotateInner();
         if (!isConstrained())
             reconstrain();
@@ -68,8 +94,8 @@ public class BoundedRect {
     public void setInner(RectF newInner) {
         if (inner.equals(newInner))
             return;
-        inner = newInner;
-        innerRotated = CropMath.getCornersFromRect(inner);
+        inner.set(newInner);
+        CropMath.getCornersFromRect(inner, innerRotated);
         rotateInner();
         if (!isConstrained())
             reconstrain();
@@ -82,7 +108,8 @@ public class BoundedRect {
         if (rotation == rot)
             return;
         rot = rotation;
-        innerRotated = CropMath.getCornersFromRect(inner);
+        updateRotMatrices();
+        CropMath.getCornersFromRect(inner, innerRotated);
         rotateInner();
         if (!isConstrained())
             reconstrain();
@@ -110,62 +137,29 @@ public class BoundedRect {
      * rectangle.
      */
     public void moveInner(float dx, float dy) {
-        Matrix m0 = getInverseRotMatrix();
-
-        RectF translatedInner = new RectF(inner);
-        translatedInner.offset(dx, dy);
-
-        float[] translatedInnerCorners = CropMath.getCornersFromRect(translatedInner);
-        float[] outerCorners = CropMath.getCornersFromRect(outer);
-
-        m0.mapPoints(translatedInnerCorners);
-        float[] correction = {
-                0, 0
-        };
-
-        // find correction vectors for corners that have moved out of bounds
-        for (int i = 0; i < translatedInnerCorners.length; i += 2) {
-            float correctedInnerX = translatedInnerCorners[i] + correction[0];
-            float correctedInnerY = translatedInnerCorners[i + 1] + correction[1];
-            if (!CropMath.inclusiveContains(outer, correctedInnerX, correctedInnerY)) {
-                float[] badCorner = {
-                        correctedInnerX, correctedInnerY
-                };
-                float[] nearestSide = CropMath.closestSide(badCorner, outerCorners);
-                float[] correctionVec =
-                        GeometryMathUtils.shortestVectorFromPointToLine(badCorner, nearestSide);
-                correction[0] += correctionVec[0];
-                correction[1] += correctionVec[1];
-            }
-        }
-
-        for (int i = 0; i < translatedInnerCorners.length; i += 2) {
-            float correctedInnerX = translatedInnerCorners[i] + correction[0];
-            float correctedInnerY = translatedInnerCorners[i + 1] + correction[1];
-            if (!CropMath.inclusiveContains(outer, correctedInnerX, correctedInnerY)) {
-                float[] correctionVec = {
-                        correctedInnerX, correctedInnerY
-                };
-                CropMath.getEdgePoints(outer, correctionVec);
-                correctionVec[0] -= correctedInnerX;
-                correctionVec[1] -= correctedInnerY;
-                correction[0] += correctionVec[0];
-                correction[1] += correctionVec[1];
-            }
-        }
-
-        // Set correction
-        for (int i = 0; i < translatedInnerCorners.length; i += 2) {
-            float correctedInnerX = translatedInnerCorners[i] + correction[0];
-            float correctedInnerY = translatedInnerCorners[i + 1] + correction[1];
-            // update translated corners with correction vectors
-            translatedInnerCorners[i] = correctedInnerX;
-            translatedInnerCorners[i + 1] = correctedInnerY;
+        // In the frame where outer is axis aligned, the translations that keep
+        // every inner corner inside outer form a box, so clamping each axis
+        // gives the largest legal move directly.
+        float[] corners = innerRotated;
+        float minX = corners[0];
+        float maxX = corners[0];
+        float minY = corners[1];
+        float maxY = corners[1];
+        for (int i = 2; i < corners.length; i += 2) {
+            minX = Math.min(minX, corners[i]);
+            maxX = Math.max(maxX, corners[i]);
+            minY = Math.min(minY, corners[i + 1]);
+            maxY = Math.max(maxY, corners[i + 1]);
         }
-
-        innerRotated = translatedInnerCorners;
-        // reconstrain to update inner
-        reconstrain();
+        vec[0] = dx;
+        vec[1] = dy;
+        getInverseRotMatrix().mapVectors(vec);
+        vec[0] = clampTranslation(vec[0], outer.left - minX, outer.right - maxX);
+        vec[1] = clampTranslation(vec[1], outer.top - minY, outer.bottom - maxY);
+        getRotMatrix().mapVectors(vec);
+
+        inner.offset(vec[0], vec[1]);
+        updateInnerRotated();
     }
 
     /**
@@ -173,67 +167,30 @@ public class BoundedRect {
      * the bounding rect, clips the inner rectangle to fit.
      */
     public void resizeInner(RectF newInner) {
-        Matrix m = getRotMatrix();
-        Matrix m0 = getInverseRotMatrix();
+        AffineMatrix m0 = getInverseRotMatrix();
 
-        float[] outerCorners = CropMath.getCornersFromRect(outer);
-        m.mapPoints(outerCorners);
-        float[] oldInnerCorners = CropMath.getCornersFromRect(inner);
-        float[] newInnerCorners = CropMath.getCornersFromRect(newInner);
-        RectF ret = new RectF(newInner);
+        CropMath.getCornersFromRect(inner, oldInnerCorners);
+        CropMath.getCornersFromRect(newInner, newInnerCorners);
+        m0.mapPoints(oldInnerCorners);
+        m0.mapPoints(newInnerCorners);
 
+        // Every corner moves linearly from its old to its new position, so
+        // find the largest fraction of the resize that keeps all of them in.
+        float t = 1;
         for (int i = 0; i < newInnerCorners.length; i += 2) {
-            float[] c = {
-                    newInnerCorners[i], newInnerCorners[i + 1]
-            };
-            float[] c0 = Arrays.copyOf(c, 2);
-            m0.mapPoints(c0);
-            if (!CropMath.inclusiveContains(outer, c0[0], c0[1])) {
-                float[] outerSide = CropMath.closestSide(c, outerCorners);
-                float[] pathOfCorner = {
-                        newInnerCorners[i], newInnerCorners[i + 1],
-                        oldInnerCorners[i], oldInnerCorners[i + 1]
-                };
-                float[] p = GeometryMathUtils.lineIntersect(pathOfCorner, outerSide);
-                if (p == null) {
-                    // lines are parallel or not well defined, so don't resize
-                    p = new float[2];
-                    p[0] = oldInnerCorners[i];
-                    p[1] = oldInnerCorners[i + 1];
-                }
-                // relies on corners being in same order as method
-                // getCornersFromRect
-                switch (i) {
-                    case 0:
-                    case 1:
-                        ret.left = (p[0] > ret.left) ? p[0] : ret.left;
-                        ret.top = (p[1] > ret.top) ? p[1] : ret.top;
-                        break;
-                    case 2:
-                    case 3:
-                        ret.right = (p[0] < ret.right) ? p[0] : ret.right;
-                        ret.top = (p[1] > ret.top) ? p[1] : ret.top;
-                        break;
-                    case 4:
-                    case 5:
-                        ret.right = (p[0] < ret.right) ? p[0] : ret.right;
-                        ret.bottom = (p[1] < ret.bottom) ? p[1] : ret.bottom;
-                        break;
-                    case 6:
-                    case 7:
-                        ret.left = (p[0] > ret.left) ? p[0] : ret.left;
-                        ret.bottom = (p[1] < ret.bottom) ? p[1] : ret.bottom;
-                        break;
-                    default:
-                        break;
-                }
-            }
+            t = maxStep(oldInnerCorners[i], oldInnerCorners[i + 1],
+                    newInnerCorners[i] - oldInnerCorners[i],
+                    newInnerCorners[i + 1] - oldInnerCorners[i + 1], t);
         }
-        float[] retCorners = CropMath.getCornersFromRect(ret);
-        m0.mapPoints(retCorners);
-        innerRotated = retCorners;
-        // reconstrain to update inner
-        reconstrain();
+        if (t <= 0)
+            return;
+
+        tmpRect.set(inner.left + t * (newInner.left - inner.left),
+                inner.top + t * (newInner.top - inner.top),
+                inner.right + t * (newInner.right - inner.right),
+                inner.bottom + t * (newInner.bottom - inner.bottom));
+        inner.set(tmpRect);
+        updateInnerRotated();
     }
 
     /**
@@ -242,18 +199,6 @@ public class BoundedRect {
      * aspect ratio.
      */
     public void fixedAspectResizeInner(RectF newInner) {
-        Matrix m = getRotMatrix();
-        Matrix m0 = getInverseRotMatrix();
-
-        float aspectW = inner.width();
-        float aspectH = inner.height();
-        float aspRatio = aspectW / aspectH;
-        float[] corners = CropMath.getCornersFromRect(outer);
-
-        m.mapPoints(corners);
-        float[] oldInnerCorners = CropMath.getCornersFromRect(inner);
-        float[] newInnerCorners = CropMath.getCornersFromRect(newInner);
-
         // find fixed corner
         int fixed = -1;
         if (inner.top == newInner.top) {
@@ -270,45 +215,36 @@ public class BoundedRect {
         // no fixed corner, return without update
         if (fixed == -1)
             return;
-        float widthSoFar = newInner.width();
-        int moved = -1;
-        for (int i = 0; i < newInnerCorners.length; i += 2) {
-            float[] c = {
-                    newInnerCorners[i], newInnerCorners[i + 1]
-            };
-            float[] c0 = Arrays.copyOf(c, 2);
-            m0.mapPoints(c0);
-            if (!CropMath.inclusiveContains(outer, c0[0], c0[1])) {
-                moved = i;
-                if (moved == fixed)
-                    continue;
-                float[] l2 = CropMath.closestSide(c, corners);
-                float[] l1 = {
-                        newInnerCorners[i], newInnerCorners[i + 1],
-                        oldInnerCorners[i], oldInnerCorners[i + 1]
-                };
-                float[] p = GeometryMathUtils.lineIntersect(l1, l2);
-                if (p == null) {
-                    // lines are parallel or not well defined, so set to old
-                    // corner
-                    p = new float[2];
-                    p[0] = oldInnerCorners[i];
-                    p[1] = oldInnerCorners[i + 1];
-                }
-                // relies on corners being in same order as method
-                // getCornersFromRect
-                float fixed_x = oldInnerCorners[fixed];
-                float fixed_y = oldInnerCorners[fixed + 1];
-                float newWidth = Math.abs(fixed_x - p[0]);
-                float newHeight = Math.abs(fixed_y - p[1]);
-                newWidth = Math.max(newWidth, aspRatio * newHeight);
-                if (newWidth < widthSoFar)
-                    widthSoFar = newWidth;
-            }
-        }
+        fixedAspectResizeInner(fixed, newInner.width());
+    }
+
+    /**
+     * Resizes the inner rectangle to the given width while keeping one corner
+     * in place and the aspect ratio, clipping it to fit the bounding rect.
+     *
+     * @param fixed  the corner that stays in place, as an index into the
+     *               array of {@link CropMath#getCornersFromRect(RectF)}: 0 top
+     *               left, 2 top right, 4 bottom right, 6 bottom left
+     * @param width  the requested width
+     */
+    public void fixedAspectResizeInner(int fixed, float width) {
+        float aspectW = inner.width();
+        float aspectH = inner.height();
+        float aspRatio = aspectW / aspectH;
+
+        CropMath.getCornersFromRect(inner, oldInnerCorners);
+        float fixedX = oldInnerCorners[fixed];
+        float fixedY = oldInnerCorners[fixed + 1];
+        // direction from the fixed corner towards the opposite one
+        float dirX = (fixed == 0 || fixed == 6) ? 1 : -1;
+        float dirY = (fixed == 0 || fixed == 2) ? 1 : -1;
+        float widthSoFar = scaleToFit(fixedX, fixedY, dirX, dirY / aspRatio, width);
+        if (widthSoFar <= 0)
+            return;
 
         float heightSoFar = widthSoFar / aspRatio;
-        RectF ret = new RectF(inner);
+        RectF ret = tmpRect;
+        ret.set(inner);
         if (fixed == 0) {
             ret.right = ret.left + widthSoFar;
             ret.bottom = ret.top + heightSoFar;
@@ -322,11 +258,27 @@ public class BoundedRect {
             ret.right = ret.left + widthSoFar;
             ret.top = ret.bottom - heightSoFar;
         }
-        float[] retCorners = CropMath.getCornersFromRect(ret);
-        m0.mapPoints(retCorners);
-        innerRotated = retCorners;
-        // reconstrain to update inner
-        reconstrain();
+        inner.set(ret);
+        updateInnerRotated();
+    }
+
+    /**
+     * Sets rot and outer without re-constraining inner, for subclasses that
+     * keep their own constrained state.
+     */
+    void setOuterUnchecked(float rotation, RectF outerRect) {
+        rot = rotation;
+        outer.set(outerRect);
+        updateRotMatrices();
+    }
+
+    /**
+     * Sets inner without checking it against outer, for subclasses that keep
+     * their own constrained state.
+     */
+    void setInnerUnchecked(float left, float top, float right, float bottom) {
+        inner.set(left, top, right, bottom);
+        updateInnerRotated();
     }
 
     // internal methods
@@ -339,29 +291,119 @@ public class BoundedRect {
         return true;
     }
 
+    /**
+     * Fits inner into the rotated outer rect by shrinking it about its center
+     * just enough for it to fit, then moving the center as little as possible.
+     * Unlike clamping the corners this keeps the aspect ratio of inner.
+     */
     private void reconstrain() {
-        // innerRotated has been changed to have incorrect values
-        CropMath.getEdgePoints(outer, innerRotated);
-        Matrix m = getRotMatrix();
-        float[] unrotated = Arrays.copyOf(innerRotated, 8);
-        m.mapPoints(unrotated);
-        inner = CropMath.trapToRect(unrotated);
+        AffineMatrix m0 = getInverseRotMatrix();
+        float halfW = inner.width() / 2;
+        float halfH = inner.height() / 2;
+
+        // half extents of the rotated inner rect along outer's axes
+        vec[0] = halfW;
+        vec[1] = 0;
+        m0.mapVectors(vec);
+        float extentX = Math.abs(vec[0]);
+        float extentY = Math.abs(vec[1]);
+        vec[0] = 0;
+        vec[1] = halfH;
+        m0.mapVectors(vec);
+        extentX += Math.abs(vec[0]);
+        extentY += Math.abs(vec[1]);
+
+        float scale = 1;
+        if (extentX > 0)
+            scale = Math.min(scale, outer.width() / (2 * extentX));
+        if (extentY > 0)
+            scale = Math.min(scale, outer.height() / (2 * extentY));
+        extentX *= scale;
+        extentY *= scale;
+
+        point[0] = inner.centerX();
+        point[1] = inner.centerY();
+        m0.mapPoints(point);
+        point[0] = GeometryMathUtils.clamp(point[0], outer.left + extentX, outer.right - extentX);
+        point[1] = GeometryMathUtils.clamp(point[1], outer.top + extentY, outer.bottom - extentY);
+        getRotMatrix().mapPoints(point);
+
+        halfW *= scale;
+        halfH *= scale;
+        inner.set(point[0] - halfW, point[1] - halfH, point[0] + halfW, point[1] + halfH);
+        updateInnerRotated();
+    }
+
+    /**
+     * Returns the largest scale s, at most limit, for which the rectangle
+     * spanned from (x, y) by (s * dx, s * dy) in inner coordinates stays
+     * within the rotated outer rect.
+     */
+    private float scaleToFit(float x, float y, float dx, float dy, float limit) {
+        point[0] = x;
+        point[1] = y;
+        getInverseRotMatrix().mapPoints(point);
+        float s = limit;
+        // the fixed corner does not move, so only the other three bound s
+        s = maxStepAlong(dx, 0, s);
+        s = maxStepAlong(0, dy, s);
+        s = maxStepAlong(dx, dy, s);
+        return s;
+    }
+
+    private float maxStepAlong(float dx, float dy, float limit) {
+        vec[0] = dx;
+        vec[1] = dy;
+        getInverseRotMatrix().mapVectors(vec);
+        return maxStep(point[0], point[1], vec[0], vec[1], limit);
+    }
+
+    /**
+     * Returns the largest t, at most limit, for which (x, y) + t * (vx, vy)
+     * stays within outer. Coordinates are in the frame where outer is axis
+     * aligned. The result is negative if (x, y) is already outside.
+     */
+    private float maxStep(float x, float y, float vx, float vy, float limit) {
+        if (vx > 0) {
+            limit = Math.min(limit, (outer.right - x) / vx);
+        } else if (vx < 0) {
+            limit = Math.min(limit, (outer.left - x) / vx);
+        }
+        if (vy > 0) {
+            limit = Math.min(limit, (outer.bottom - y) / vy);
+        } else if (vy < 0) {
+            limit = Math.min(limit, (outer.top - y) / vy);
+        }
+        return limit;
+    }
+
+    private static float clampTranslation(float t, float low, float high) {
+        // inner does not fit along this axis, so no translation can fix it
+        if (low > high)
+            return 0;
+        return GeometryMathUtils.clamp(t, low, high);
+    }
+
+    private void updateInnerRotated() {
+        CropMath.getCornersFromRect(inner, innerRotated);
+        rotateInner();
     }
 
     private void rotateInner() {
-        Matrix m = getInverseRotMatrix();
+        AffineMatrix m = getInverseRotMatrix();
         m.mapPoints(innerRotated);
     }
 
-    private Matrix getRotMatrix() {
-        Matrix m = new Matrix();
-        m.setRotate(rot, outer.centerX(), outer.centerY());
-        return m;
+    private void updateRotMatrices() {
+        rotMatrix.setRotate(rot, outer.centerX(), outer.centerY());
+        inverseRotMatrix.setRotate(-rot, outer.centerX(), outer.centerY());
+    }
+
+    private AffineMatrix getRotMatrix() {
+        return rotMatrix;
     }
 
-    private Matrix getInverseRotMatrix() {
-        Matrix m = new Matrix();
-        m.setRotate(-rot, outer.centerX(), outer.centerY());
-        return m;
+    private AffineMatrix getInverseRotMatrix() {
+        return inverseRotMatrix;
     }
 }
@@ -38,22 +38,23 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.MediaStore;
-import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.SeekBar;
 import android.widget.Toast;
 
 import com.android.gallery3d.R;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 
 /**
  * Activity for cropping an image.
@@ -63,6 +64,9 @@ public class CropActivity extends Activity {
     public static final String CROP_ACTION = "com.android.camera.action.CROP";
     private CropExtras mCropExtras = null;
     private LoadBitmapTask mLoadBitmapTask = null;
+    private BitmapIOTask mBitmapIOTask = null;
+    private MemoryBudget mMemoryBudget = null;
+    private Bitmap mThumbnail = null;
 
     private int mOutputX = 0;
     private int mOutputY = 0;
@@ -98,9 +102,28 @@ public class CropActivity extends Activity {
     public static final String MIN_CROP_WIDTH = "minCropWidth";
     public static final String MIN_CROP_HEIGHT = "minCropHeight";
     public static final String DRAW_GRID = "draw_grid";
+    public static final String STRAIGHTEN = "straighten";
+    /**
+     * One of the PREVIEW_CONFIG_ constants in {@link ImageLoader}, the bitmap
+     * config of the preview. The saved image is always decoded from the
+     * source in full quality.
+     */
+    public static final String PREVIEW_CONFIG = "previewConfig";
+    /**
+     * Whether a rotated JPEG may be saved unrotated with an EXIF orientation
+     * tag instead, which is faster but needs a viewer that honors the tag.
+     */
+    public static final String EXIF_ORIENTATION = "exifOrientation";
     private boolean asCircle;
     private int minCropWidth, minCropHeight;
     private boolean drawCropGrid;
+    private boolean straighten;
+    private int previewConfig = ImageLoader.PREVIEW_CONFIG_ARGB_8888;
+    private boolean exifOrientation;
+
+    // The straighten slider covers +/- 45 degrees in tenths of a degree.
+    private static final int MAX_STRAIGHTEN_ANGLE = 45;
+    private static final int STRAIGHTEN_STEPS_PER_DEGREE = 10;
 
     @SuppressLint("WrongConstant")
     @Override
@@ -110,6 +133,7 @@ public class CropActivity extends Activity {
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         setResult(RESULT_CANCELED, new Intent());
         mCropExtras = getExtrasFromIntent(intent);
+        mMemoryBudget = new MemoryBudget(this);
         if (mCropExtras != null && mCropExtras.getShowWhenLocked()) {
             getWindow().addFlags(WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED);
         }
@@ -131,6 +155,10 @@ public class CropActivity extends Activity {
             }
         });
 
+        if (straighten) {
+            setupStraightenBar();
+        }
+
         if (intent.getData() != null) {
             mSourceUri = intent.getData();
             startLoadBitmap(mSourceUri);
@@ -139,6 +167,28 @@ public class CropActivity extends Activity {
         }
     }
 
+    private void setupStraightenBar() {
+        final int center = MAX_STRAIGHTEN_ANGLE * STRAIGHTEN_STEPS_PER_DEGREE;
+        SeekBar bar = (SeekBar) findViewById(R.id.straighten);
+        bar.setMax(2 * center);
+        bar.setProgress(center);
+        bar.setVisibility(View.VISIBLE);
+        bar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                mCropView.setStraighten((progress - center) / (float) STRAIGHTEN_STEPS_PER_DEGREE);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+    }
+
     private void enableSave(boolean enable) {
         if (mSaveButton != null) {
             mSaveButton.setEnabled(enable);
@@ -150,9 +200,29 @@ public class CropActivity extends Activity {
         if (mLoadBitmapTask != null) {
             mLoadBitmapTask.cancel(false);
         }
+        mCropView.setTiledImage(null);
+        // The save task may still be reading the preview
+        if (mBitmapIOTask == null || mBitmapIOTask.getStatus() == AsyncTask.Status.FINISHED) {
+            BitmapPool.getDefault().put(mOriginalBitmap);
+            mOriginalBitmap = null;
+        }
         super.onDestroy();
     }
 
+    /**
+     * Gives memory back under pressure: the pool is trimmed, cached tiles are
+     * dropped and the next preview is decoded smaller.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryBudget.onTrimMemory(level);
+        TiledImage tiles = mCropView.getTiledImage();
+        if (tiles != null) {
+            tiles.trimTo(mMemoryBudget.getTileBytes());
+        }
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -186,9 +256,20 @@ public class CropActivity extends Activity {
      * Gets screen size metric.
      */
     private int getScreenImageSize() {
-        DisplayMetrics outMetrics = new DisplayMetrics();
-        getWindowManager().getDefaultDisplay().getMetrics(outMetrics);
-        return (int) Math.max(outMetrics.heightPixels, outMetrics.widthPixels);
+        return ImageLoader.getScreenImageSize(this);
+    }
+
+    /**
+     * Returns the preview config asked for in the intent, if this window can
+     * draw it: hardware bitmaps need hardware acceleration.
+     */
+    private int getPreviewConfig() {
+        if (previewConfig == ImageLoader.PREVIEW_CONFIG_HARDWARE
+                && (getWindow().getAttributes().flags
+                & WindowManager.LayoutParams.FLAG_HARDWARE_ACCELERATED) == 0) {
+            return ImageLoader.PREVIEW_CONFIG_LOW_MEMORY;
+        }
+        return previewConfig;
     }
 
     /**
@@ -208,6 +289,21 @@ public class CropActivity extends Activity {
         }
     }
 
+    /**
+     * Method called on UI thread with a thumbnail while the preview is still
+     * being decoded. The crop can be edited on the thumbnail right away, it
+     * is kept in the coordinates of the full image so that it carries over
+     * unchanged when the preview replaces the thumbnail.
+     */
+    @SuppressLint("WrongConstant")
+    private void doneLoadThumbnail(Bitmap thumbnail, RectF bounds, int orientation) {
+        final View loading = findViewById(R.id.loading);
+        loading.setVisibility(View.GONE);
+        mThumbnail = thumbnail;
+        mCropView.initialize(thumbnail, bounds, bounds, orientation, asCircle, drawCropGrid, minCropWidth, minCropHeight);
+        applyCropExtras();
+    }
+
     /**
      * Method called on UI thread with loaded bitmap.
      */
@@ -215,29 +311,30 @@ public class CropActivity extends Activity {
     private void doneLoadBitmap(Bitmap bitmap, RectF bounds, int orientation) {
         final View loading = findViewById(R.id.loading);
         loading.setVisibility(View.GONE);
+        Bitmap previous = mOriginalBitmap;
         mOriginalBitmap = bitmap;
         mOriginalBounds = bounds;
         mOriginalRotation = orientation;
         if (bitmap != null && bitmap.getWidth() != 0 && bitmap.getHeight() != 0) {
-            RectF imgBounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
-            mCropView.initialize(bitmap, imgBounds, imgBounds, orientation, asCircle, drawCropGrid, minCropWidth, minCropHeight);
-            if (mCropExtras != null) {
-                int aspectX = mCropExtras.getAspectX();
-                int aspectY = mCropExtras.getAspectY();
-                mOutputX = mCropExtras.getOutputX();
-                mOutputY = mCropExtras.getOutputY();
-                if (mOutputX > 0 && mOutputY > 0) {
-                    mCropView.applyAspect(mOutputX, mOutputY);
-
-                }
-                float spotX = mCropExtras.getSpotlightX();
-                float spotY = mCropExtras.getSpotlightY();
-                if (spotX > 0 && spotY > 0) {
-                    mCropView.setWallpaperSpotlight(spotX, spotY);
-                }
-                if (aspectX > 0 && aspectY > 0) {
-                    mCropView.applyAspect(aspectX, aspectY);
-                }
+            if (mThumbnail != null) {
+                // Keep the crop made on the thumbnail
+                mCropView.setBitmap(bitmap);
+                BitmapPool.getDefault().put(mThumbnail);
+                mThumbnail = null;
+            } else {
+                RectF imgBounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+                mCropView.initialize(bitmap, imgBounds, imgBounds, orientation, asCircle, drawCropGrid, minCropWidth, minCropHeight);
+                applyCropExtras();
+            }
+            if (previous != null && previous != bitmap) {
+                BitmapPool.getDefault().put(previous);
+            }
+            // Let zooming in show the full resolution of a downsampled image
+            if (mSourceUri != null && bounds.width() > bitmap.getWidth()) {
+                mCropView.setTiledImage(new TiledImage(this, mSourceUri, (int) bounds.width(),
+                        (int) bounds.height(), mMemoryBudget.getTileBytes()));
+            } else {
+                mCropView.setTiledImage(null);
             }
             enableSave(true);
         } else {
@@ -248,6 +345,35 @@ public class CropActivity extends Activity {
         }
     }
 
+    /**
+     * Applies the aspect ratio, output size and spotlight requested in the
+     * intent to a freshly initialized crop view.
+     */
+    private void applyCropExtras() {
+        if (mCropExtras != null) {
+            int aspectX = mCropExtras.getAspectX();
+            int aspectY = mCropExtras.getAspectY();
+            mOutputX = mCropExtras.getOutputX();
+            mOutputY = mCropExtras.getOutputY();
+            // Keep a requested aspect ratio exact through any number of drags
+            if ((mOutputX > 0 && mOutputY > 0) || (aspectX > 0 && aspectY > 0)) {
+                mCropView.setExactGeometry(true);
+            }
+            if (mOutputX > 0 && mOutputY > 0) {
+                mCropView.applyAspect(mOutputX, mOutputY);
+
+            }
+            float spotX = mCropExtras.getSpotlightX();
+            float spotY = mCropExtras.getSpotlightY();
+            if (spotX > 0 && spotY > 0) {
+                mCropView.setWallpaperSpotlight(spotX, spotY);
+            }
+            if (aspectX > 0 && aspectY > 0) {
+                mCropView.applyAspect(aspectX, aspectY);
+            }
+        }
+    }
+
     /**
      * Display toast for image loading failure.
      */
@@ -263,14 +389,23 @@ public class CropActivity extends Activity {
      *
      * @see #startLoadBitmap(Uri)
      */
-    private class LoadBitmapTask extends AsyncTask<Uri, Void, Bitmap> {
+    private class LoadBitmapTask extends AsyncTask<Uri, Bitmap, Bitmap>
+            implements ImageLoader.HeaderCallback {
         int mBitmapSize;
+        int mPreviewConfig;
+        MemoryBudget mBudget;
         Context mContext;
+        Uri mUri;
         Rect mOriginalBounds;
+        RectF mThumbnailBounds;
         int mOrientation;
+        boolean mHasOrientation = false;
+        ImageLoader.LoadOptions mOptions;
 
         public LoadBitmapTask() {
             mBitmapSize = getScreenImageSize();
+            mPreviewConfig = getPreviewConfig();
+            mBudget = mMemoryBudget;
             mContext = getApplicationContext();
             mOriginalBounds = new Rect();
             mOrientation = 0;
@@ -279,16 +414,60 @@ public class CropActivity extends Activity {
         @Override
         protected Bitmap doInBackground(Uri... params) {
             Uri uri = params[0];
+            mUri = uri;
+            long maxBytes = mBudget.getPreviewBytes();
+            PreviewPrefetcher.Preview preview = PreviewPrefetcher.getDefault().take(mContext, uri,
+                    mBitmapSize, mPreviewConfig, maxBytes);
+            if (preview != null) {
+                mOriginalBounds.set(preview.mBounds);
+                mOrientation = preview.mRotation;
+                return preview.mBitmap;
+            }
+            ImageHeader header = new ImageHeader();
+            mOptions = new ImageLoader.LoadOptions();
+            mOptions.exactSize = true;
+            mOptions.headerCallback = this;
+            mOptions.previewConfig = mPreviewConfig;
+            mOptions.maxBytes = maxBytes;
             Bitmap bmap = ImageLoader.loadConstrainedBitmap(uri, mContext, mBitmapSize,
-                    mOriginalBounds, false);
-            mOrientation = ImageLoader.getMetadataRotation(mContext, uri);
+                    mOriginalBounds, header, false, mOptions);
+            if (!mHasOrientation) {
+                mOrientation = ImageLoader.getMetadataRotation(mContext, uri, header,
+                        mOptions.outMetadata);
+            }
             return bmap;
         }
 
+        /**
+         * Shows a thumbnail, if the image has a cheap one, before the preview
+         * is decoded.
+         */
+        @Override
+        public void onHeaderRead(ImageHeader header) {
+            mOrientation = ImageLoader.getMetadataRotation(mContext, mUri, header,
+                    mOptions.outMetadata);
+            mHasOrientation = true;
+            Bitmap thumbnail = ImageLoader.loadThumbnail(mContext, mUri, header);
+            if (thumbnail != null && !isCancelled()) {
+                mThumbnailBounds = new RectF(0, 0, header.getWidth(), header.getHeight());
+                publishProgress(thumbnail);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Bitmap... values) {
+            doneLoadThumbnail(values[0], mThumbnailBounds, mOrientation);
+        }
+
         @Override
         protected void onPostExecute(Bitmap result) {
             doneLoadBitmap(result, new RectF(mOriginalBounds), mOrientation);
         }
+
+        @Override
+        protected void onCancelled(Bitmap result) {
+            BitmapPool.getDefault().put(result);
+        }
     }
 
     protected void startFinishOutput() {
@@ -325,7 +504,8 @@ public class CropActivity extends Activity {
             RectF crop = getBitmapCrop(photo);
             startBitmapIO(flags, mOriginalBitmap, mSourceUri, destinationUri, crop,
                     photo, mOriginalBounds,
-                    (mCropExtras == null) ? null : mCropExtras.getOutputFormat(), mOriginalRotation);
+                    (mCropExtras == null) ? null : mCropExtras.getOutputFormat(), mOriginalRotation,
+                    mCropView.getStraighten());
             return;
         }
         setResult(RESULT_CANCELED, new Intent());
@@ -336,7 +516,7 @@ public class CropActivity extends Activity {
     @SuppressLint("WrongConstant")
     private void startBitmapIO(int flags, Bitmap currentBitmap, Uri sourceUri, Uri destUri,
                                RectF cropBounds, RectF photoBounds, RectF currentBitmapBounds, String format,
-                               int rotation) {
+                               int rotation, float straighten) {
         if (cropBounds == null || photoBounds == null || currentBitmap == null
                 || currentBitmap.getWidth() == 0 || currentBitmap.getHeight() == 0
                 || cropBounds.width() == 0 || cropBounds.height() == 0 || photoBounds.width() == 0
@@ -352,9 +532,9 @@ public class CropActivity extends Activity {
 
         final View loading = findViewById(R.id.loading);
         loading.setVisibility(View.VISIBLE);
-        BitmapIOTask ioTask = new BitmapIOTask(sourceUri, destUri, format, flags, cropBounds,
-                photoBounds, currentBitmapBounds, rotation, mOutputX, mOutputY);
-        ioTask.execute(currentBitmap);
+        mBitmapIOTask = new BitmapIOTask(sourceUri, destUri, format, flags, cropBounds,
+                photoBounds, currentBitmapBounds, rotation, straighten, mOutputX, mOutputY);
+        mBitmapIOTask.execute(currentBitmap);
     }
 
     @SuppressLint("WrongConstant")
@@ -383,6 +563,11 @@ public class CropActivity extends Activity {
         RectF mOrig = null;
         Intent mResultIntent = null;
         int mRotation = 0;
+        float mStraighten = 0;
+        // EXIF orientation tag of the output, 0 for none
+        int mExifOrientation = 0;
+        // rotation of a crop cut out of the original JPEG
+        int mLosslessRotation = 0;
 
         // Helper to setup input stream
         private void regenerateInputStream() {
@@ -400,7 +585,7 @@ public class CropActivity extends Activity {
 
         public BitmapIOTask(Uri sourceUri, Uri destUri, String outputFormat, int flags,
                             RectF cropBounds, RectF photoBounds, RectF originalBitmapBounds, int rotation,
-                            int outputX, int outputY) {
+                            float straighten, int outputX, int outputY) {
             mOutputFormat = outputFormat;
             mOutStream = null;
             mOutUri = destUri;
@@ -414,6 +599,7 @@ public class CropActivity extends Activity {
             mRotation = (rotation < 0) ? -rotation : rotation;
             mRotation %= 360;
             mRotation = 90 * (int) (mRotation / 90);  // now mRotation is a multiple of 90
+            mStraighten = straighten;
             mOutputX = outputX;
             mOutputY = outputY;
 
@@ -455,7 +641,11 @@ public class CropActivity extends Activity {
             // Find the small cropped bitmap that is returned in the intent
             if ((mFlags & DO_RETURN_DATA) != 0) {
                 assert (img != null);
-                Bitmap ret = getCroppedImage(img, mCrop, mPhoto);
+                if (ImageLoader.isHardwareBitmap(img)) {
+                    // cropping and parceling need the pixels in memory
+                    img = img.copy(Bitmap.Config.ARGB_8888, false);
+                }
+                Bitmap ret = getCroppedImage(img, mCrop, mPhoto, mStraighten);
                 if (ret != null) {
                     ret = getDownsampledBitmap(ret, MAX_BMAP_IN_INTENT);
                 }
@@ -494,52 +684,129 @@ public class CropActivity extends Activity {
                     return false;
                 }
 
+                // A straightened crop needs the source pixels under the
+                // crop rotated back into the unrotated photo
+                Rect decodeBounds = roundedTrueCrop;
+                if (mStraighten != 0) {
+                    decodeBounds = getStraightenedSourceBounds(trueCrop, mOrig, mStraighten);
+                    if (decodeBounds == null) {
+                        Log.w(LOGTAG, "straightened crop is outside of full size image");
+                        failure = true;
+                        return false;
+                    }
+                }
+
+                // Get output compression format
+                CompressFormat cf = asCircle ? CompressFormat.PNG : convertExtensionToCompressFormat(getFileExtension(mOutputFormat));
+
+                // A JPEG can be saved unrotated and tagged to be shown rotated
+                int rotation = mRotation;
+                int outputX = mOutputX;
+                int outputY = mOutputY;
+                if (exifOrientation && cf == CompressFormat.JPEG && rotation != 0) {
+                    mExifOrientation = ImageLoader.getOrientationForDegrees(rotation);
+                    if (rotation != 180) {
+                        outputX = mOutputY;
+                        outputY = mOutputX;
+                    }
+                    rotation = 0;
+                }
+
+                // A small output needs no more than a subsampled crop
+                int sampleSize = 1;
+                if (outputX > 0 && outputY > 0) {
+                    sampleSize = getRegionSampleSize(roundedTrueCrop.width(),
+                            roundedTrueCrop.height(), outputX, outputY, rotation);
+                }
+
+                // An unscaled JPEG crop can be cut out of the original and
+                // rotated as is
+                Rect losslessCrop = null;
+                if (cf == CompressFormat.JPEG && mStraighten == 0 && outputX <= 0
+                        && outputY <= 0 && canTransformLosslessly(roundedTrueCrop, rotation)) {
+                    losslessCrop = new Rect(roundedTrueCrop);
+                    mLosslessRotation = rotation;
+                }
+
                 // Attempt to open a region decoder
                 BitmapRegionDecoder decoder = null;
-                try {
-                    decoder = BitmapRegionDecoder.newInstance(mInStream, true);
-                } catch (IOException e) {
-                    Log.w(LOGTAG, "cannot open region decoder for file: " + mInUri.toString(), e);
+                if (losslessCrop == null) {
+                    try {
+                        decoder = BitmapRegionDecoder.newInstance(mInStream, true);
+                    } catch (IOException e) {
+                        Log.w(LOGTAG, "cannot open region decoder for file: " + mInUri.toString(), e);
+                    }
                 }
 
                 Bitmap crop = null;
+                StripedCrop striped = null;
                 if (decoder != null) {
-                    // Do region decoding to get crop bitmap
-                    BitmapFactory.Options options = new BitmapFactory.Options();
-                    options.inMutable = true;
-                    crop = decoder.decodeRegion(roundedTrueCrop, options);
-                    decoder.recycle();
+                    Rect outputSize = new Rect();
+                    Matrix toOutput = getOutputMatrix(trueCrop, mOrig, mStraighten, rotation,
+                            outputX, outputY, outputSize);
+                    long bytes = StripedCrop.getInMemoryBytes(decodeBounds.width() / sampleSize,
+                            decodeBounds.height() / sampleSize, outputSize.width(),
+                            outputSize.height(), asCircle);
+                    if (bytes > mMemoryBudget.getSaveBytes()) {
+                        // Too large to hold, decode and encode it a stripe at a time
+                        striped = new StripedCrop(decoder, toOutput, outputSize.width(),
+                                outputSize.height(), sampleSize);
+                        striped.setCircle(asCircle);
+                    } else {
+                        // Do region decoding to get crop bitmap
+                        BitmapFactory.Options options = new BitmapFactory.Options();
+                        options.inMutable = true;
+                        options.inSampleSize = sampleSize;
+                        crop = decoder.decodeRegion(decodeBounds, options);
+                        decoder.recycle();
+                    }
                 }
 
-                if (crop == null) {
+                if (crop == null && striped == null && losslessCrop == null) {
                     // BitmapRegionDecoder has failed, try to crop in-memory
                     regenerateInputStream();
                     Bitmap fullSize = null;
                     if (mInStream != null) {
-                        fullSize = BitmapFactory.decodeStream(mInStream);
+                        BitmapFactory.Options options = new BitmapFactory.Options();
+                        options.inSampleSize = sampleSize;
+                        fullSize = BitmapFactory.decodeStream(mInStream, null, options);
                     }
                     if (fullSize != null) {
-                        crop = Bitmap.createBitmap(fullSize, roundedTrueCrop.left,
-                                roundedTrueCrop.top, roundedTrueCrop.width(),
-                                roundedTrueCrop.height());
+                        Rect sampled = new Rect(decodeBounds.left / sampleSize,
+                                decodeBounds.top / sampleSize,
+                                decodeBounds.right / sampleSize,
+                                decodeBounds.bottom / sampleSize);
+                        sampled.intersect(0, 0, fullSize.getWidth(), fullSize.getHeight());
+                        if (!sampled.isEmpty()) {
+                            crop = Bitmap.createBitmap(fullSize, sampled.left, sampled.top,
+                                    sampled.width(), sampled.height());
+                        }
                     }
                 }
 
-                if (crop == null) {
+                if (crop != null && mStraighten != 0) {
+                    crop = drawStraightened(crop, decodeBounds, trueCrop, mStraighten,
+                            mOrig.centerX(), mOrig.centerY(), sampleSize);
+                }
+
+                if (crop == null && striped == null && losslessCrop == null) {
                     Log.w(LOGTAG, "cannot decode file: " + mInUri.toString());
                     failure = true;
                     return false;
                 }
-                if (mOutputX > 0 && mOutputY > 0) {
+                if (striped != null || losslessCrop != null) {
+                    // the stripes are rotated, scaled and masked as they are
+                    // drawn, the lossless crop needs none of it
+                } else if (outputX > 0 && outputY > 0) {
                     Matrix m = new Matrix();
                     RectF cropRect = new RectF(0, 0, crop.getWidth(), crop.getHeight());
-                    if (mRotation > 0) {
-                        m.setRotate(mRotation);
+                    if (rotation > 0) {
+                        m.setRotate(rotation);
                         m.mapRect(cropRect);
                     }
-                    RectF returnRect = new RectF(0, 0, mOutputX, mOutputY);
+                    RectF returnRect = new RectF(0, 0, outputX, outputY);
                     m.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
-                    m.preRotate(mRotation);
+                    m.preRotate(rotation);
                     Bitmap tmp = Bitmap.createBitmap((int) returnRect.width(),
                             (int) returnRect.height(), Bitmap.Config.ARGB_8888);
                     if (tmp != null) {
@@ -547,9 +814,9 @@ public class CropActivity extends Activity {
                         c.drawBitmap(crop, m, new Paint());
                         crop = tmp;
                     }
-                } else if (mRotation > 0) {
+                } else if (rotation > 0) {
                     Matrix m = new Matrix();
-                    m.setRotate(mRotation);
+                    m.setRotate(rotation);
                     Bitmap tmp = Bitmap.createBitmap(crop, 0, 0, crop.getWidth(),
                             crop.getHeight(), m, true);
                     if (tmp != null) {
@@ -557,68 +824,143 @@ public class CropActivity extends Activity {
                     }
                 }
 
-                if (asCircle) {
+                if (asCircle && striped == null) {
                     crop = getCircleBitmap(crop);
                 }
-                // Get output compression format
-                CompressFormat cf = asCircle ? CompressFormat.PNG : convertExtensionToCompressFormat(getFileExtension(mOutputFormat));
 
                 // If we only need to output to a URI, compress straight to file
                 if (mFlags == DO_EXTRA_OUTPUT) {
-                    if (mOutStream == null || !crop.compress(cf, DEFAULT_COMPRESS_QUALITY, mOutStream)) {
+                    if (mOutStream == null || !compress(crop, striped, losslessCrop, cf, mOutStream)) {
                         failure = true;
                     } else {
                         mResultIntent.setData(mOutUri);
                     }
                 } else {
-                    // Compress to byte array
-                    ByteArrayOutputStream tmpOut = new ByteArrayOutputStream(2048);
-                    if (crop.compress(cf, DEFAULT_COMPRESS_QUALITY, tmpOut)) {
-
-                        // If we need to output to a Uri, write compressed
-                        // bitmap out
-                        if ((mFlags & DO_EXTRA_OUTPUT) != 0) {
-                            if (mOutStream == null) {
-                                Log.w(LOGTAG,
-                                        "failed to compress bitmap to file: " + mOutUri.toString());
+                    // Compress once, straight into every destination
+                    TeeOutputStream tee = new TeeOutputStream();
+                    if ((mFlags & DO_EXTRA_OUTPUT) != 0) {
+                        if (mOutStream == null) {
+                            Log.w(LOGTAG, "failed to compress bitmap to file: " + mOutUri);
+                            failure = true;
+                        } else {
+                            tee.add(mOutStream);
+                        }
+                    }
+                    WallpaperPipe wallpaper = null;
+                    if ((mFlags & DO_SET_WALLPAPER) != 0) {
+                        if (mWPManager == null) {
+                            Log.w(LOGTAG, "no wallpaper manager");
+                            failure = true;
+                        } else {
+                            try {
+                                wallpaper = new WallpaperPipe(mWPManager);
+                                tee.add(wallpaper.getOutputStream());
+                            } catch (IOException e) {
+                                Log.w(LOGTAG, "cannot write stream to wallpaper", e);
                                 failure = true;
-                            } else {
-                                try {
-                                    mOutStream.write(tmpOut.toByteArray());
-                                    mResultIntent.setData(mOutUri);
-                                } catch (IOException e) {
-                                    Log.w(LOGTAG,
-                                            "failed to compress bitmap to file: "
-                                                    + mOutUri.toString(), e);
-                                    failure = true;
-                                }
                             }
                         }
-
-                        // If we need to set to the wallpaper, set it
-                        if ((mFlags & DO_SET_WALLPAPER) != 0 && mWPManager != null) {
-                            if (mWPManager == null) {
-                                Log.w(LOGTAG, "no wallpaper manager");
+                    }
+                    if (!tee.isEmpty()) {
+                        boolean compressed = compress(crop, striped, losslessCrop, cf, tee);
+                        if (wallpaper != null && !wallpaper.finish()) {
+                            failure = true;
+                        }
+                        if (!compressed) {
+                            Log.w(LOGTAG, "cannot compress bitmap");
+                            failure = true;
+                        } else if ((mFlags & DO_EXTRA_OUTPUT) != 0 && mOutStream != null) {
+                            if (tee.hasFailed(mOutStream)) {
+                                Log.w(LOGTAG, "failed to compress bitmap to file: " + mOutUri);
                                 failure = true;
                             } else {
-                                try {
-                                    mWPManager.setStream(new ByteArrayInputStream(tmpOut
-                                            .toByteArray()));
-                                } catch (IOException e) {
-                                    Log.w(LOGTAG, "cannot write stream to wallpaper", e);
-                                    failure = true;
-                                }
+                                mResultIntent.setData(mOutUri);
                             }
                         }
-                    } else {
-                        Log.w(LOGTAG, "cannot compress bitmap");
-                        failure = true;
                     }
                 }
+                if (striped != null) {
+                    decoder.recycle();
+                }
+                if (losslessCrop != null && !failure) {
+                    // the crop was moved out to whole JPEG blocks, report
+                    // it rotated like the bounds set above
+                    RectF grown = new RectF(losslessCrop);
+                    Matrix m = new Matrix();
+                    m.setRotate(mRotation);
+                    m.mapRect(grown);
+                    Rect rounded = new Rect();
+                    grown.roundOut(rounded);
+                    mResultIntent.putExtra(CropExtras.KEY_CROPPED_RECT, rounded);
+                }
             }
             return !failure; // True if any of the operations failed
         }
 
+        /**
+         * Compresses crop to out, or encodes striped if the crop was too
+         * large to decode, or cuts losslessCrop out of the original JPEG and
+         * rotates it. Tags the output with mExifOrientation if set.
+         */
+        private boolean compress(Bitmap crop, StripedCrop striped, Rect losslessCrop,
+                CompressFormat cf, OutputStream out) {
+            try {
+                if (losslessCrop != null) {
+                    LosslessJpegTransform transform = new LosslessJpegTransform();
+                    transform.setExifOrientation(mExifOrientation);
+                    return transform.transform(new LosslessJpegTransform.Source() {
+                        @Override
+                        public InputStream open() throws IOException {
+                            return getContentResolver().openInputStream(mInUri);
+                        }
+                    }, losslessCrop, mLosslessRotation, out);
+                }
+                ExifOrientationOutputStream exif = null;
+                if (mExifOrientation != 0) {
+                    exif = new ExifOrientationOutputStream(out, mExifOrientation);
+                    out = exif;
+                }
+                boolean compressed;
+                if (striped != null) {
+                    compressed = striped.encode(out, cf, DEFAULT_COMPRESS_QUALITY);
+                } else {
+                    compressed = crop.compress(cf, DEFAULT_COMPRESS_QUALITY, out);
+                }
+                if (compressed && exif != null) {
+                    exif.finish();
+                }
+                return compressed;
+            } catch (IOException e) {
+                Log.w(LOGTAG, "cannot write crop of " + mInUri, e);
+                return false;
+            }
+        }
+
+        /**
+         * Returns true if the input is a JPEG that {@link LosslessJpegTransform}
+         * can crop and rotate by degrees within the memory budget.
+         */
+        private boolean canTransformLosslessly(Rect crop, int degrees) {
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(getContentResolver().openInputStream(mInUri));
+                LosslessJpegTransform transform = new LosslessJpegTransform();
+                if (!transform.readHeader(in)) {
+                    return false;
+                } else if (degrees == 0) {
+                    return true;
+                }
+                // a rotation holds the coefficients of the crop
+                Rect aligned = new Rect(crop);
+                return transform.alignCrop(aligned, degrees)
+                        && transform.getCoefficientBytes(aligned) <= mMemoryBudget.getSaveBytes();
+            } catch (IOException e) {
+                return false;
+            } finally {
+                Utils.closeSilently(in);
+            }
+        }
+
         @Override
         protected void onPostExecute(Boolean result) {
             Utils.closeSilently(mOutStream);
@@ -628,6 +970,69 @@ public class CropActivity extends Activity {
 
     }
 
+    /**
+     * Sets the wallpaper from what is written to its output stream while it
+     * is being written, through a pipe to a thread that runs
+     * WallpaperManager.setStream().
+     */
+    private static class WallpaperPipe implements Runnable {
+        private static final int PIPE_SIZE = 64 * 1024;
+
+        private final WallpaperManager mManager;
+        private final PipedInputStream mIn = new PipedInputStream(PIPE_SIZE);
+        private final PipedOutputStream mOut;
+        private final Thread mThread;
+        private volatile boolean mSet = false;
+
+        WallpaperPipe(WallpaperManager manager) throws IOException {
+            mManager = manager;
+            mOut = new PipedOutputStream(mIn);
+            mThread = new Thread(this, "WallpaperPipe");
+            mThread.start();
+        }
+
+        OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mManager.setStream(mIn);
+                mSet = true;
+            } catch (IOException e) {
+                Log.w(LOGTAG, "cannot write stream to wallpaper", e);
+            } finally {
+                // Keep reading what is left so the writer never blocks on
+                // a pipe nobody reads
+                try {
+                    byte[] buffer = new byte[PIPE_SIZE];
+                    while (mIn.read(buffer) >= 0) {
+                        // discard
+                    }
+                } catch (IOException e) {
+                    // the writer is gone
+                }
+                Utils.closeSilently(mIn);
+            }
+        }
+
+        /**
+         * Ends the stream and waits for the wallpaper to be set. Returns
+         * false if it was not.
+         */
+        boolean finish() {
+            Utils.closeSilently(mOut);
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return mSet;
+        }
+    }
+
     public static Bitmap getCircleBitmap(Bitmap bit) {
         Bitmap bitmap = Bitmap.createBitmap(bit.getWidth(), bit.getHeight(), Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(bitmap);//传入参数后canvas的操作会影响图片
@@ -663,6 +1068,126 @@ public class CropActivity extends Activity {
                 intCrop.height());
     }
 
+    protected static Bitmap getCroppedImage(Bitmap image, RectF cropBounds, RectF photoBounds,
+            float straighten) {
+        if (straighten == 0) {
+            return getCroppedImage(image, cropBounds, photoBounds);
+        }
+        RectF imageBounds = new RectF(0, 0, image.getWidth(), image.getHeight());
+        RectF crop = CropMath.getScaledCropBounds(cropBounds, photoBounds, imageBounds);
+        if (crop == null) {
+            return null;
+        }
+        return drawStraightened(image, new Rect(0, 0, image.getWidth(), image.getHeight()), crop,
+                straighten, imageBounds.centerX(), imageBounds.centerY());
+    }
+
+    /**
+     * Returns the part of photoBounds that a crop of the photo straightened
+     * by degrees covers, or null if there is none.
+     */
+    protected static Rect getStraightenedSourceBounds(RectF crop, RectF photoBounds,
+            float degrees) {
+        AffineMatrix m = new AffineMatrix();
+        m.setRotate(-degrees, photoBounds.centerX(), photoBounds.centerY());
+        RectF source = new RectF();
+        m.mapRect(source, crop);
+        if (!source.intersect(photoBounds)) {
+            return null;
+        }
+        Rect rounded = new Rect();
+        source.roundOut(rounded);
+        return rounded;
+    }
+
+    /**
+     * Draws crop out of the photo straightened by degrees about (cx, cy).
+     * source holds the pixels of sourceBounds, both in photo coordinates.
+     */
+    protected static Bitmap drawStraightened(Bitmap source, Rect sourceBounds, RectF crop,
+            float degrees, float cx, float cy) {
+        return drawStraightened(source, sourceBounds, crop, degrees, cx, cy, 1);
+    }
+
+    /**
+     * Same as {@link #drawStraightened(Bitmap, Rect, RectF, float, float, float)}
+     * for a source decoded with sampleSize, returns the crop subsampled the
+     * same way.
+     */
+    protected static Bitmap drawStraightened(Bitmap source, Rect sourceBounds, RectF crop,
+            float degrees, float cx, float cy, int sampleSize) {
+        Rect out = new Rect();
+        crop.roundOut(out);
+        Bitmap ret = Bitmap.createBitmap(Math.max(1, out.width() / sampleSize),
+                Math.max(1, out.height() / sampleSize), Bitmap.Config.ARGB_8888);
+        Matrix m = new Matrix();
+        m.setScale(sampleSize, sampleSize);
+        m.postTranslate(sourceBounds.left, sourceBounds.top);
+        m.postRotate(degrees, cx, cy);
+        m.postTranslate(-out.left, -out.top);
+        m.postScale(1f / sampleSize, 1f / sampleSize);
+        Canvas c = new Canvas(ret);
+        c.drawBitmap(source, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return ret;
+    }
+
+    /**
+     * Returns the matrix that maps the full size image onto the saved
+     * output, the way the in memory save path transforms the crop: trueCrop
+     * of the image straightened by straighten degrees about the center of
+     * imageBounds, rotated by rotation and scaled to outputX x outputY if
+     * both are set. Sets outSize to the size of the output.
+     */
+    protected static Matrix getOutputMatrix(RectF trueCrop, RectF imageBounds, float straighten,
+            int rotation, int outputX, int outputY, Rect outSize) {
+        Rect rounded = new Rect();
+        trueCrop.roundOut(rounded);
+        Matrix m = new Matrix();
+        if (straighten != 0) {
+            m.setRotate(straighten, imageBounds.centerX(), imageBounds.centerY());
+        }
+        m.postTranslate(-rounded.left, -rounded.top);
+
+        Matrix r = new Matrix();
+        RectF cropRect = new RectF(0, 0, rounded.width(), rounded.height());
+        r.setRotate(rotation);
+        r.mapRect(cropRect);
+        if (outputX > 0 && outputY > 0) {
+            RectF returnRect = new RectF(0, 0, outputX, outputY);
+            r.setRectToRect(cropRect, returnRect, Matrix.ScaleToFit.FILL);
+            r.preRotate(rotation);
+            outSize.set(0, 0, outputX, outputY);
+        } else {
+            r.postTranslate(-cropRect.left, -cropRect.top);
+            outSize.set(0, 0, Math.round(cropRect.width()), Math.round(cropRect.height()));
+        }
+        m.postConcat(r);
+        return m;
+    }
+
+    /**
+     * Returns the largest power of two that a cropWidth x cropHeight region
+     * can be subsampled by and still cover an outputX x outputY output after
+     * rotation by degrees, so that the region decoder does not decode pixels
+     * the scale down to the output would drop.
+     */
+    protected static int getRegionSampleSize(int cropWidth, int cropHeight, int outputX,
+            int outputY, int degrees) {
+        if (cropWidth <= 0 || cropHeight <= 0 || outputX <= 0 || outputY <= 0) {
+            return 1;
+        }
+        // the crop is rotated before it is scaled to the output
+        boolean swap = (degrees / 90) % 2 != 0;
+        int targetWidth = swap ? outputY : outputX;
+        int targetHeight = swap ? outputX : outputY;
+        int sampleSize = 1;
+        while (cropWidth / (sampleSize * 2) >= targetWidth
+                && cropHeight / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     protected static Bitmap getDownsampledBitmap(Bitmap image, int max_size) {
         if (image == null || image.getWidth() == 0 || image.getHeight() == 0 || max_size < 16) {
             throw new IllegalArgumentException("Bad argument to getDownsampledBitmap()");
@@ -695,6 +1220,9 @@ public class CropActivity extends Activity {
             minCropWidth = extras.getInt(MIN_CROP_WIDTH);
             minCropHeight = extras.getInt(MIN_CROP_HEIGHT);
             drawCropGrid = extras.getBoolean(DRAW_GRID);
+            straighten = extras.getBoolean(STRAIGHTEN);
+            previewConfig = extras.getInt(PREVIEW_CONFIG, ImageLoader.PREVIEW_CONFIG_ARGB_8888);
+            exifOrientation = extras.getBoolean(EXIF_ORIENTATION);
             int aspect_x = extras.getInt(CropExtras.KEY_ASPECT_X, 0);
             int aspect_y = extras.getInt(CropExtras.KEY_ASPECT_Y, 0);
             if (asCircle) {
@@ -207,15 +207,26 @@ public abstract class CropDrawingUtils {
 
     public static boolean setImageToScreenMatrix(Matrix dst, RectF image,
                                                  RectF screen, int rotation) {
+        AffineMatrix m = new AffineMatrix();
+        boolean ret = setImageToScreenMatrix(m, image, screen, rotation);
+        float[] values = new float[9];
+        m.getValues(values);
+        dst.setValues(values);
+        return ret;
+    }
+
+    /**
+     * Sets dst to rotate image by any angle about its center and fit the
+     * bounds of the rotated image into screen.
+     */
+    public static boolean setImageToScreenMatrix(AffineMatrix dst, RectF image,
+                                                 RectF screen, float rotation) {
         RectF rotatedImage = new RectF();
         dst.setRotate(rotation, image.centerX(), image.centerY());
-        if (!dst.mapRect(rotatedImage, image)) {
-            return false; // fails for rotations that are not multiples of 90
-            // degrees
-        }
-        boolean rToR = dst.setRectToRect(rotatedImage, screen, Matrix.ScaleToFit.CENTER);
-        boolean rot = dst.preRotate(rotation, image.centerX(), image.centerY());
-        return rToR && rot;
+        dst.mapRect(rotatedImage, image);
+        boolean rToR = dst.setRectToRect(rotatedImage, screen, true);
+        dst.preRotate(rotation, image.centerX(), image.centerY());
+        return rToR;
     }
 
 }
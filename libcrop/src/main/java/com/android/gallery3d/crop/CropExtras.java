@@ -20,6 +20,8 @@ import android.net.Uri;
 
 public class CropExtras {
 
+    // the bounds of the crop in the rotated source image; a lossless JPEG
+    // crop grows them by up to 15 pixels to whole blocks
     public static final String KEY_CROPPED_RECT = "cropped-rect";
     public static final String KEY_OUTPUT_X = "outputX";
     public static final String KEY_OUTPUT_Y = "outputY";
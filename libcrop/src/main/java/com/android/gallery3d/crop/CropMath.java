@@ -17,13 +17,18 @@
 package com.android.gallery3d.crop;
 
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
 import android.graphics.RectF;
 
-
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class CropMath {
+    // Below this many rects per chunk handing work to another thread costs
+    // more than it saves.
+    static final int MIN_PARALLEL_CHUNK = 4096;
 
     /**
      * Gets a float array of the 2D coordinates representing a rectangles
@@ -48,6 +53,24 @@ public class CropMath {
         return corners;
     }
 
+    /**
+     * Same as {@link #getCornersFromRect(RectF)}, but writes the corners into
+     * a caller supplied array of at least 8 floats.
+     *
+     * @param r  the rectangle to get the corners of
+     * @param corners  the array the corners are written to
+     */
+    public static void getCornersFromRect(RectF r, float[] corners) {
+        corners[0] = r.left;
+        corners[1] = r.top;
+        corners[2] = r.right;
+        corners[3] = r.top;
+        corners[4] = r.right;
+        corners[5] = r.bottom;
+        corners[6] = r.left;
+        corners[7] = r.bottom;
+    }
+
     /**
      * Returns true iff point (x, y) is within or on the rectangle's bounds.
      * RectF's "contains" function treats points on the bottom and right bound
@@ -70,7 +93,19 @@ public class CropMath {
      * @return smallest rectangle containing coordinates
      */
     public static RectF trapToRect(float[] array) {
-        RectF r = new RectF(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+        RectF r = new RectF();
+        trapToRect(array, r);
+        return r;
+    }
+
+    /**
+     * Same as {@link #trapToRect(float[])}, but writes the result into r.
+     *
+     * @param array array of 2D coordinates
+     * @param r set to the smallest rectangle containing coordinates
+     */
+    public static void trapToRect(float[] array, RectF r) {
+        r.set(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
                 Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
         for (int i = 1; i < array.length; i += 2) {
             float x = array[i - 1];
@@ -81,7 +116,6 @@ public class CropMath {
             r.bottom = (y > r.bottom) ? y : r.bottom;
         }
         r.sort();
-        return r;
     }
 
     /**
@@ -110,22 +144,42 @@ public class CropMath {
      * @return two corners representing the side of the rectangle
      */
     public static float[] closestSide(float[] point, float[] corners) {
+        float[] bestLine = new float[4];
+        if (!closestSide(point, corners, bestLine, new float[2]))
+            return null;
+        return bestLine;
+    }
+
+    /**
+     * Same as {@link #closestSide(float[], float[])}, but writes the side into
+     * bestLine (4 floats) and uses vec (2 floats) as scratch space.
+     *
+     * @return false if no side was found, in which case bestLine is untouched.
+     */
+    public static boolean closestSide(float[] point, float[] corners, float[] bestLine,
+            float[] vec) {
         int len = corners.length;
         float oldMag = Float.POSITIVE_INFINITY;
-        float[] bestLine = null;
+        boolean found = false;
         for (int i = 0; i < len; i += 2) {
-            float[] line = {
-                    corners[i], corners[(i + 1) % len],
-                    corners[(i + 2) % len], corners[(i + 3) % len]
-            };
-            float mag = GeometryMathUtils.vectorLength(
-                    GeometryMathUtils.shortestVectorFromPointToLine(point, line));
+            float x1 = corners[i];
+            float y1 = corners[(i + 1) % len];
+            float x2 = corners[(i + 2) % len];
+            float y2 = corners[(i + 3) % len];
+            if (!GeometryMathUtils.shortestVectorFromPointToLine(point[0], point[1],
+                    x1, y1, x2, y2, vec))
+                continue;
+            float mag = GeometryMathUtils.vectorLength(vec);
             if (mag < oldMag) {
                 oldMag = mag;
-                bestLine = line;
+                bestLine[0] = x1;
+                bestLine[1] = y1;
+                bestLine[2] = x2;
+                bestLine[3] = y2;
+                found = true;
             }
         }
-        return bestLine;
+        return found;
     }
 
     /**
@@ -137,14 +191,11 @@ public class CropMath {
      * @return true if point is within rotated rectangle
      */
     public static boolean pointInRotatedRect(float[] point, RectF bound, float rot) {
-        Matrix m = new Matrix();
-        float[] p = Arrays.copyOf(point, 2);
+        AffineMatrix m = new AffineMatrix();
         m.setRotate(rot, bound.centerX(), bound.centerY());
-        Matrix m0 = new Matrix();
-        if (!m.invert(m0))
+        if (!m.invert(m))
             return false;
-        m0.mapPoints(p);
-        return inclusiveContains(bound, p[0], p[1]);
+        return inclusiveContains(bound, m.mapX(point[0], point[1]), m.mapY(point[0], point[1]));
     }
 
     /**
@@ -204,6 +255,62 @@ public class CropMath {
         }
     }
 
+    /**
+     * Finds the largest axis aligned rectangle that fits inside bounds after
+     * bounds is rotated by degrees about its center, in constant time. If
+     * aspectW and aspectH are positive the result has that aspect ratio,
+     * otherwise it is the rectangle of largest area. The result is centered
+     * on bounds.
+     *
+     * @param bounds  the rectangle being rotated
+     * @param degrees  rotation of bounds, any angle
+     * @param aspectW  width of the aspect ratio, or 0 for any aspect ratio
+     * @param aspectH  height of the aspect ratio, or 0 for any aspect ratio
+     * @param out  set to the inscribed rectangle, empty if bounds is empty
+     */
+    public static void largestInscribedRect(RectF bounds, float degrees, float aspectW,
+            float aspectH, RectF out) {
+        double w = bounds.width();
+        double h = bounds.height();
+        float cx = bounds.centerX();
+        float cy = bounds.centerY();
+        if (w <= 0 || h <= 0) {
+            out.set(cx, cy, cx, cy);
+            return;
+        }
+        double radians = Math.toRadians(degrees);
+        double sin = Math.abs(Math.sin(radians));
+        double cos = Math.abs(Math.cos(radians));
+        double rw;
+        double rh;
+        if (aspectW > 0 && aspectH > 0) {
+            // The corners of a centered rw x rh rect stay inside the rotated
+            // bounds iff rw * cos + rh * sin <= w and rw * sin + rh * cos <= h.
+            double k = Math.min(w / (aspectW * cos + aspectH * sin),
+                    h / (aspectW * sin + aspectH * cos));
+            rw = k * aspectW;
+            rh = k * aspectH;
+        } else {
+            boolean widthIsLonger = w >= h;
+            double longSide = widthIsLonger ? w : h;
+            double shortSide = widthIsLonger ? h : w;
+            if (shortSide <= 2 * sin * cos * longSide || Math.abs(sin - cos) < 1e-10) {
+                // Half constrained: two corners touch the longer sides.
+                double x = 0.5 * shortSide;
+                rw = widthIsLonger ? x / sin : x / cos;
+                rh = widthIsLonger ? x / cos : x / sin;
+            } else {
+                // Fully constrained: all four corners touch the sides.
+                double cos2 = cos * cos - sin * sin;
+                rw = (w * cos - h * sin) / cos2;
+                rh = (h * cos - w * sin) / cos2;
+            }
+        }
+        float halfW = (float) (rw / 2);
+        float halfH = (float) (rh / 2);
+        out.set(cx - halfW, cy - halfH, cx + halfW, cy + halfH);
+    }
+
     /**
      * Stretches/Scales/Translates photoBounds to match displayBounds, and
      * and returns an equivalent stretched/scaled/translated cropBounds or null
@@ -215,8 +322,8 @@ public class CropMath {
      */
     public static RectF getScaledCropBounds(RectF cropBounds, RectF photoBounds,
             RectF displayBounds) {
-        Matrix m = new Matrix();
-        m.setRectToRect(photoBounds, displayBounds, Matrix.ScaleToFit.FILL);
+        AffineMatrix m = new AffineMatrix();
+        m.setRectToRect(photoBounds, displayBounds, false);
         RectF trueCrop = new RectF(cropBounds);
         if (!m.mapRect(trueCrop)) {
             return null;
@@ -224,6 +331,117 @@ public class CropMath {
         return trueCrop;
     }
 
+    /**
+     * Batch form of {@link #getScaledCropBounds(RectF, RectF, RectF)}: for
+     * every index i, stretches photos[i] onto displays[i] and writes the
+     * mapped crops[i] into out[i]. out may be the same batch as crops.
+     * <p>
+     * For non-empty photo and display bounds and crops with left <= right and
+     * top <= bottom the results are identical to the per-rect version. It
+     * differs otherwise: for empty photo bounds the per-rect version returns
+     * the crop unchanged and for empty display bounds it returns null, while
+     * this one writes non-finite or collapsed values, and it does not sort
+     * the edges of an inverted crop.
+     */
+    public static void getScaledCropBounds(RectBatch crops, RectBatch photos,
+            RectBatch displays, RectBatch out) {
+        checkBatchSizes(crops, photos, displays, out);
+        getScaledCropBounds(crops, photos, displays, out, 0, crops.size());
+    }
+
+    /**
+     * Same as {@link #getScaledCropBounds(RectBatch, RectBatch, RectBatch, RectBatch)},
+     * but splits large batches into chunks that run on executor, with the
+     * last chunk on the calling thread. Small batches are mapped inline.
+     *
+     * @throws InterruptedException if interrupted while waiting for the chunks.
+     */
+    public static void getScaledCropBounds(RectBatch crops, RectBatch photos,
+            RectBatch displays, RectBatch out, ExecutorService executor, int parallelism)
+            throws InterruptedException {
+        checkBatchSizes(crops, photos, displays, out);
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be greater than zero");
+        }
+        int size = crops.size();
+        int chunks = Math.min(parallelism, size / MIN_PARALLEL_CHUNK);
+        if (chunks <= 1) {
+            getScaledCropBounds(crops, photos, displays, out, 0, size);
+            return;
+        }
+        int chunkSize = (size + chunks - 1) / chunks;
+        List<Future<?>> pending = new ArrayList<Future<?>>(chunks - 1);
+        for (int from = chunkSize; from < size; from += chunkSize) {
+            pending.add(executor.submit(new ScaleChunk(crops, photos, displays, out, from,
+                    Math.min(from + chunkSize, size))));
+        }
+        getScaledCropBounds(crops, photos, displays, out, 0, chunkSize);
+        for (Future<?> f : pending) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private static void getScaledCropBounds(RectBatch crops, RectBatch photos,
+            RectBatch displays, RectBatch out, int from, int to) {
+        float[] cl = crops.left, ct = crops.top, cr = crops.right, cb = crops.bottom;
+        float[] pl = photos.left, pt = photos.top, pr = photos.right, pb = photos.bottom;
+        float[] dl = displays.left, dt = displays.top, dr = displays.right, db = displays.bottom;
+        float[] ol = out.left, ot = out.top, or = out.right, ob = out.bottom;
+        // Same arithmetic as AffineMatrix.setRectToRect followed by mapRect,
+        // kept branch free so the loop vectorizes.
+        for (int i = from; i < to; i++) {
+            float sx = (dr[i] - dl[i]) / (pr[i] - pl[i]);
+            float sy = (db[i] - dt[i]) / (pb[i] - pt[i]);
+            float tx = dl[i] - pl[i] * sx;
+            float ty = dt[i] - pt[i] * sy;
+            ol[i] = sx * cl[i] + tx;
+            ot[i] = sy * ct[i] + ty;
+            or[i] = sx * cr[i] + tx;
+            ob[i] = sy * cb[i] + ty;
+        }
+    }
+
+    private static void checkBatchSizes(RectBatch crops, RectBatch photos,
+            RectBatch displays, RectBatch out) {
+        int size = crops.size();
+        if (photos.size() != size || displays.size() != size || out.size() != size) {
+            throw new IllegalArgumentException("Batches must have the same size");
+        }
+    }
+
+    private static class ScaleChunk implements Runnable {
+        private final RectBatch mCrops;
+        private final RectBatch mPhotos;
+        private final RectBatch mDisplays;
+        private final RectBatch mOut;
+        private final int mFrom;
+        private final int mTo;
+
+        ScaleChunk(RectBatch crops, RectBatch photos, RectBatch displays, RectBatch out,
+                int from, int to) {
+            mCrops = crops;
+            mPhotos = photos;
+            mDisplays = displays;
+            mOut = out;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        public void run() {
+            getScaledCropBounds(mCrops, mPhotos, mDisplays, mOut, mFrom, mTo);
+        }
+    }
+
     /**
      * Returns the size of a bitmap in bytes.
      * @param bmap  bitmap whose size to check
@@ -248,11 +466,11 @@ public class CropMath {
         float dy = rotatedRect[1] - rotatedRect[3];
         float dx = rotatedRect[0] - rotatedRect[2];
         float angle = (float) (Math.atan(dy / dx) * 180 / Math.PI);
-        Matrix m = new Matrix();
+        AffineMatrix m = new AffineMatrix();
         m.setRotate(-angle, center[0], center[1]);
         float[] unrotatedRect = new float[rotatedRect.length];
         m.mapPoints(unrotatedRect, rotatedRect);
-        unrotated.set(trapToRect(unrotatedRect));
+        trapToRect(unrotatedRect, unrotated);
         return angle;
     }
 
@@ -22,6 +22,8 @@ import android.graphics.RectF;
 
 public class CropObject {
     private BoundedRect mBoundedRect;
+    // mBoundedRect when the exact geometry is on, otherwise null
+    private ExactBoundedRect mExactRect;
     private float mAspectWidth = 1;
     private float mAspectHeight = 1;
     private boolean mFixAspectRatio = false;
@@ -46,6 +48,12 @@ public class CropObject {
     private int mMovingEdges = MOVE_NONE;
     private float mMinSideHeight;
 
+    // Scratch state for the touch paths, so a drag does not allocate.
+    private final RectF mCrop = new RectF();
+    private final RectF mNewCrop = new RectF();
+    private final RectF mOuter = new RectF();
+    private final float[] mUnit = new float[2];
+
     public CropObject(Rect outerBound, Rect innerBound, int outerAngle) {
         mBoundedRect = new BoundedRect(outerAngle % 360, outerBound, innerBound);
     }
@@ -54,8 +62,35 @@ public class CropObject {
         mBoundedRect = new BoundedRect(outerAngle % 360, outerBound, innerBound);
     }
 
+    /**
+     * Switches between the float geometry of {@link BoundedRect} and the
+     * double precision {@link ExactBoundedRect}, which keeps a fixed aspect
+     * ratio exact across any number of resizes.
+     */
+    public void setExactGeometry(boolean exact) {
+        if (exact == isExactGeometry()) {
+            return;
+        }
+        mBoundedRect.setToOuter(mOuter);
+        mBoundedRect.setToInner(mCrop);
+        if (exact) {
+            mExactRect = new ExactBoundedRect(mRotation, mOuter, mCrop);
+            if (mFixAspectRatio) {
+                mExactRect.setAspectRatio(mAspectWidth, mAspectHeight);
+            }
+            mBoundedRect = mExactRect;
+        } else {
+            mExactRect = null;
+            mBoundedRect = new BoundedRect(mRotation, mOuter, mCrop);
+        }
+    }
+
+    public boolean isExactGeometry() {
+        return mExactRect != null;
+    }
+
     public void resetBoundsTo(RectF inner, RectF outer) {
-        mBoundedRect.resetTo(0, outer, inner);
+        mBoundedRect.resetTo(mRotation, outer, inner);
     }
 
     public void getInnerBounds(RectF r) {
@@ -88,6 +123,28 @@ public class CropObject {
         clearSelectState();
     }
 
+    /**
+     * Rotates the outer bounds by any angle and resets the crop to the largest
+     * rect that fits inside them, keeping the aspect ratio if one is fixed.
+     * Runs in constant time, so it can follow a rotation slider.
+     */
+    public void straighten(float degrees) {
+        mRotation = degrees % 360;
+        mBoundedRect.setToOuter(mOuter);
+        if (mFixAspectRatio) {
+            CropMath.largestInscribedRect(mOuter, mRotation, mAspectWidth, mAspectHeight,
+                    mNewCrop);
+        } else {
+            CropMath.largestInscribedRect(mOuter, mRotation, 0, 0, mNewCrop);
+        }
+        mBoundedRect.resetTo(mRotation, mOuter, mNewCrop);
+        clearSelectState();
+    }
+
+    public float getRotation() {
+        return mRotation;
+    }
+
     public boolean setInnerAspectRatio(float width, float height) {
         if (width <= 0 || height <= 0) {
             throw new IllegalArgumentException("Width and Height must be greater than zero");
@@ -100,6 +157,9 @@ public class CropObject {
         mAspectWidth = width;
         mAspectHeight = height;
         mFixAspectRatio = true;
+        if (mExactRect != null) {
+            mExactRect.setAspectRatio(width, height);
+        }
         mBoundedRect.setInner(inner);
         clearSelectState();
         return true;
@@ -122,6 +182,9 @@ public class CropObject {
 
     public void unsetAspectRatio() {
         mFixAspectRatio = false;
+        if (mExactRect != null) {
+            mExactRect.clearAspectRatio();
+        }
         clearSelectState();
     }
 
@@ -190,9 +253,8 @@ public class CropObject {
         if (mMovingEdges == MOVE_NONE) {
             return false;
         }
-        RectF crop = mBoundedRect.getInner();
-
-        float minWidthHeight = mMinSideSize;
+        RectF crop = mCrop;
+        mBoundedRect.setToInner(crop);
 
         int movingEdges = mMovingEdges;
         if (movingEdges == MOVE_BLOCK) {
@@ -218,29 +280,23 @@ public class CropObject {
             }
 
             if (mFixAspectRatio) {
-                float[] l1 = {
-                        crop.left, crop.bottom
-                };
-                float[] l2 = {
-                        crop.right, crop.top
-                };
+                // Project the displacement onto the diagonal through the
+                // moving corner.
+                float bx = crop.left - crop.right;
+                float by = crop.bottom - crop.top;
                 if (movingEdges == TOP_LEFT || movingEdges == BOTTOM_RIGHT) {
-                    l1[1] = crop.top;
-                    l2[1] = crop.bottom;
+                    by = crop.top - crop.bottom;
                 }
-                float[] b = {
-                        l1[0] - l2[0], l1[1] - l2[1]
-                };
-                float[] disp = {
-                        dx, dy
-                };
-                float[] bUnit = GeometryMathUtils.normalize(b);
-                float sp = GeometryMathUtils.scalarProjection(disp, bUnit);
+                float[] bUnit = mUnit;
+                GeometryMathUtils.normalize(bx, by, bUnit);
+                float sp = GeometryMathUtils.scalarProjection(dx, dy, bUnit[0], bUnit[1]);
                 dx = sp * bUnit[0];
                 dy = sp * bUnit[1];
-                RectF newCrop = fixedCornerResize(crop, movingEdges, dx, dy);
-
-                mBoundedRect.fixedAspectResizeInner(newCrop);
+                // Pass the fixed corner explicitly rather than leaving it to
+                // be detected from the new rect.
+                float width = ((movingEdges & MOVE_RIGHT) != 0) ? crop.width() + dx
+                        : crop.width() - dx;
+                mBoundedRect.fixedAspectResizeInner(fixedCorner(movingEdges), width);
             } else {
                 if ((movingEdges & MOVE_LEFT) != 0) {
                     crop.left += dx;
@@ -263,7 +319,8 @@ public class CropObject {
     // Helper methods
 
     private int calculateSelectedEdge(float x, float y) {
-        RectF cropped = mBoundedRect.getInner();
+        RectF cropped = mCrop;
+        mBoundedRect.setToInner(cropped);
 
         float left = Math.abs(x - cropped.left);
         float right = Math.abs(x - cropped.right);
@@ -291,23 +348,20 @@ public class CropObject {
         return edgeSelected;
     }
 
-    private static RectF fixedCornerResize(RectF r, int moving_corner, float dx, float dy) {
-        RectF newCrop = null;
-        // Fix opposite corner in place and move sides
+    /**
+     * Returns the corner opposite the moving one, as a corner index for
+     * {@link BoundedRect#fixedAspectResizeInner(int, float)}.
+     */
+    private static int fixedCorner(int moving_corner) {
         if (moving_corner == BOTTOM_RIGHT) {
-            newCrop = new RectF(r.left, r.top, r.left + r.width() + dx, r.top + r.height()
-                    + dy);
+            return 0; // top left
         } else if (moving_corner == BOTTOM_LEFT) {
-            newCrop = new RectF(r.right - r.width() + dx, r.top, r.right, r.top + r.height()
-                    + dy);
+            return 2; // top right
         } else if (moving_corner == TOP_LEFT) {
-            newCrop = new RectF(r.right - r.width() + dx, r.bottom - r.height() + dy,
-                    r.right, r.bottom);
-        } else if (moving_corner == TOP_RIGHT) {
-            newCrop = new RectF(r.left, r.bottom - r.height() + dy, r.left
-                    + r.width() + dx, r.bottom);
+            return 4; // bottom right
+        } else {
+            return 6; // bottom left
         }
-        return newCrop;
     }
 
     private static int fixEdgeToCorner(int moving_edges) {
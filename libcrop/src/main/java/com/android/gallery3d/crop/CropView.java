@@ -30,6 +30,7 @@ import android.graphics.drawable.NinePatchDrawable;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 
 import com.android.gallery3d.R;
@@ -37,6 +38,8 @@ import com.android.gallery3d.R;
 
 public class CropView extends View {
     private static final String LOGTAG = "CropView";
+    // How far a source pixel may be blown up when zoomed in all the way
+    private static final float MAX_PIXEL_ZOOM = 2;
 
     private RectF mImageBounds = new RectF();
     private RectF mScreenBounds = new RectF();
@@ -45,6 +48,8 @@ public class CropView extends View {
     private Rect mShadowBounds = new Rect();
 
     private Bitmap mBitmap;
+    // The crop is edited in photo space, which the bitmap is scaled to fill
+    private RectF mPhotoBounds = new RectF();
     private boolean mAsCircle;
     private boolean mDrawCropGrid;
     private int mMinCropWidth;
@@ -56,11 +61,29 @@ public class CropView extends View {
     private Drawable mCropIndicator;
     private int mIndicatorSize;
     private int mRotation = 0;
+    private float mStraighten = 0;
+    private boolean mExactGeometry = false;
     private boolean mMovingBlock = false;
-    private Matrix mDisplayMatrix = null;
-    private Matrix mDisplayMatrixInverse = null;
+    private AffineMatrix mDisplayMatrix = null;
+    private AffineMatrix mDisplayMatrixInverse = null;
+    private AffineMatrix mBitmapMatrix = new AffineMatrix();
+    private Matrix mDrawMatrix = new Matrix();
+    private float[] mMatrixValues = new float[9];
     private boolean mDirty = false;
 
+    private ScaleGestureDetector mScaleDetector;
+    private AffineMatrix mZoomMatrix = new AffineMatrix();
+    private float mZoom = 1;
+    private float mMaxZoom = 1;
+    private float mFocusX = 0;
+    private float mFocusY = 0;
+
+    private TiledImage mTiles = null;
+    private AffineMatrix mTileMatrix = new AffineMatrix();
+    private Matrix mTileDrawMatrix = new Matrix();
+    private RectF mVisibleBounds = new RectF();
+    private Rect mVisibleSource = new Rect();
+
     private float mPrevX = 0;
     private float mPrevY = 0;
     private float mSpotX = 0;
@@ -113,10 +136,13 @@ public class CropView extends View {
         mWPMarkerColor = (int) rsc.getColor(R.color.crop_wp_markers);
         mDashOnLength = rsc.getDimension(R.dimen.wp_selector_dash_length);
         mDashOffLength = rsc.getDimension(R.dimen.wp_selector_off_length);
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
     }
 
     public void initialize(Bitmap image, RectF newCropBounds, RectF newPhotoBounds, int rotation, boolean asCircle, boolean drawCropGrid, int minCropWidth, int minCropHeight) {
         mBitmap = image;
+        updateLayerType();
+        mPhotoBounds.set(newPhotoBounds);
         mAsCircle = asCircle;
         mDrawCropGrid = drawCropGrid;
         mMinCropWidth = minCropWidth;
@@ -139,10 +165,43 @@ public class CropView extends View {
         } else {
             mRotation = rotation;
             mCropObj = new CropObject(newPhotoBounds, newCropBounds, 0);
+            mCropObj.setExactGeometry(mExactGeometry);
             clearDisplay();
         }
     }
 
+    /**
+     * Replaces the displayed bitmap, for example a thumbnail by the full
+     * preview, without touching the crop. The bitmap is stretched over the
+     * photo bounds given to initialize, so it should have the same aspect
+     * ratio.
+     */
+    public void setBitmap(Bitmap image) {
+        if (image == null) {
+            throw new IllegalArgumentException("Bitmap must not be null");
+        }
+        mBitmap = image;
+        updateLayerType();
+        if (mDisplayMatrix != null) {
+            // the zoom limit depends on the bitmap resolution
+            updateDisplayMatrix();
+        }
+        invalidate();
+    }
+
+    /**
+     * The overlay clips are drawn on a software layer, which cannot draw a
+     * bitmap that only lives in graphics memory. Such bitmaps only exist
+     * from Oreo on, where the hardware renderer handles those clips itself.
+     */
+    private void updateLayerType() {
+        int type = ImageLoader.isHardwareBitmap(mBitmap) ? View.LAYER_TYPE_NONE
+                : View.LAYER_TYPE_SOFTWARE;
+        if (getLayerType() != type) {
+            setLayerType(type, null);
+        }
+    }
+
     public RectF getCrop() {
         return mCropObj.getInnerBounds();
     }
@@ -151,19 +210,81 @@ public class CropView extends View {
         return mCropObj.getOuterBounds();
     }
 
+    /**
+     * Rotates the photo by any angle on top of its 90 degree rotation and
+     * resets the crop to the largest rect that fits inside it.
+     */
+    public void setStraighten(float degrees) {
+        if (mCropObj == null) {
+            return;
+        }
+        mStraighten = degrees;
+        mCropObj.straighten(degrees);
+        if (mDisplayMatrix != null) {
+            updateBitmapMatrix();
+        }
+        invalidate();
+    }
+
+    public float getStraighten() {
+        return mStraighten;
+    }
+
+    /**
+     * Sets full resolution tiles of the image that are drawn over the
+     * preview bitmap wherever zooming in shows more detail than the preview
+     * has. The previous tiles, if any, are released.
+     */
+    public void setTiledImage(TiledImage tiles) {
+        if (mTiles != null && mTiles != tiles) {
+            mTiles.release();
+        }
+        mTiles = tiles;
+        if (tiles != null) {
+            tiles.setCallback(new TiledImage.Callback() {
+                @Override
+                public void onTileDecoded() {
+                    postInvalidate();
+                }
+            });
+        }
+        // the zoom limit depends on the tile resolution
+        clearDisplay();
+    }
+
+    public TiledImage getTiledImage() {
+        return mTiles;
+    }
+
+    /**
+     * Uses double precision crop geometry that keeps a fixed aspect ratio
+     * exact, see {@link ExactBoundedRect}.
+     */
+    public void setExactGeometry(boolean exact) {
+        mExactGeometry = exact;
+        if (mCropObj != null) {
+            mCropObj.setExactGeometry(exact);
+        }
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        float x = event.getX();
-        float y = event.getY();
         if (mDisplayMatrix == null || mDisplayMatrixInverse == null) {
             return true;
         }
-        float[] touchPoint = {
-                x, y
-        };
-        mDisplayMatrixInverse.mapPoints(touchPoint);
-        x = touchPoint[0];
-        y = touchPoint[1];
+        // Two fingers zoom and pan the photo instead of moving the crop
+        mScaleDetector.onTouchEvent(event);
+        if (mScaleDetector.isInProgress() || event.getPointerCount() > 1) {
+            if (mState == Mode.MOVE) {
+                mCropObj.selectEdge(CropObject.MOVE_NONE);
+                mMovingBlock = false;
+                mState = Mode.NONE;
+            }
+            invalidate();
+            return true;
+        }
+        float x = mDisplayMatrixInverse.mapX(event.getX(), event.getY());
+        float y = mDisplayMatrixInverse.mapY(event.getX(), event.getY());
         switch (event.getActionMasked()) {
             case (MotionEvent.ACTION_DOWN):
                 if (mState == Mode.NONE) {
@@ -205,6 +326,7 @@ public class CropView extends View {
         mState = Mode.NONE;
         mCropObj = null;
         mRotation = 0;
+        mStraighten = 0;
         mMovingBlock = false;
         clearDisplay();
     }
@@ -212,9 +334,117 @@ public class CropView extends View {
     private void clearDisplay() {
         mDisplayMatrix = null;
         mDisplayMatrixInverse = null;
+        mZoomMatrix.reset();
+        mZoom = 1;
+        invalidate();
+    }
+
+    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            mFocusX = detector.getFocusX();
+            mFocusY = detector.getFocusY();
+            return true;
+        }
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            float fx = detector.getFocusX();
+            float fy = detector.getFocusY();
+            zoomBy(detector.getScaleFactor(), fx, fy, fx - mFocusX, fy - mFocusY);
+            mFocusX = fx;
+            mFocusY = fy;
+            return true;
+        }
+    }
+
+    /**
+     * Scales the photo on screen by factor about (fx, fy), then pans it by
+     * (dx, dy), keeping it between the fitted size and mMaxZoom.
+     */
+    private void zoomBy(float factor, float fx, float fy, float dx, float dy) {
+        if (mDisplayMatrix == null) {
+            return;
+        }
+        float zoom = GeometryMathUtils.clamp(mZoom * factor, 1, mMaxZoom);
+        factor = zoom / mZoom;
+        mZoom = zoom;
+        mZoomMatrix.postScale(factor, factor, fx, fy);
+        mZoomMatrix.postTranslate(dx, dy);
+        if (zoom == 1) {
+            // back at the fitted size, drop any rounding left in the pan
+            mZoomMatrix.reset();
+        }
+        updateDisplayMatrix();
         invalidate();
     }
 
+    /**
+     * Recomputes the display matrix as the fitted photo matrix followed by
+     * the zoom, keeping the zoomed photo over the screen bounds.
+     */
+    private boolean updateDisplayMatrix() {
+        if (mDisplayMatrix == null) {
+            mDisplayMatrix = new AffineMatrix();
+        }
+        if (!CropDrawingUtils.setImageToScreenMatrix(mDisplayMatrix, mImageBounds, mScreenBounds,
+                mRotation)) {
+            Log.w(LOGTAG, "failed to get screen matrix");
+            mDisplayMatrix = null;
+            return false;
+        }
+        // photo units per pixel of the sharpest image that can be shown
+        float sourceScale = mImageBounds.width() / mBitmap.getWidth();
+        if (mTiles != null) {
+            sourceScale = mImageBounds.width() / mTiles.getWidth();
+        }
+        mMaxZoom = Math.max(1, MAX_PIXEL_ZOOM / (mDisplayMatrix.mapRadius(1) * sourceScale));
+        mDisplayMatrix.postConcat(mZoomMatrix);
+
+        // Pan so the zoomed photo covers as much of the screen as it can
+        mScreenImageBounds.set(mImageBounds);
+        mDisplayMatrix.mapRect(mScreenImageBounds);
+        float dx = getPanCorrection(mScreenImageBounds.left, mScreenImageBounds.right,
+                mScreenBounds.left, mScreenBounds.right);
+        float dy = getPanCorrection(mScreenImageBounds.top, mScreenImageBounds.bottom,
+                mScreenBounds.top, mScreenBounds.bottom);
+        mZoomMatrix.postTranslate(dx, dy);
+        mDisplayMatrix.postTranslate(dx, dy);
+
+        if (mDisplayMatrixInverse == null) {
+            mDisplayMatrixInverse = new AffineMatrix();
+        }
+        if (!mDisplayMatrix.invert(mDisplayMatrixInverse)) {
+            Log.w(LOGTAG, "could not invert display matrix");
+            mDisplayMatrixInverse = null;
+            return false;
+        }
+        updateBitmapMatrix();
+        // Scale min side and tolerance by display matrix scale factor
+        float mapRadiusWidth = mDisplayMatrixInverse.mapRadius(mMinCropWidth);
+        float mapRadiusHeight = mDisplayMatrixInverse.mapRadius(mMinCropHeight);
+        mCropObj.setMinInnerSideSize(mapRadiusWidth, mapRadiusHeight);//
+        mCropObj.setTouchTolerance(mDisplayMatrixInverse.mapRadius(mTouchTolerance));
+        return true;
+    }
+
+    /**
+     * Returns the shift that centers [low, high] in [min, max] if it is
+     * smaller, or otherwise moves it to cover [min, max].
+     */
+    private static float getPanCorrection(float low, float high, float min, float max) {
+        if (high - low <= max - min) {
+            return (min + max - low - high) / 2;
+        }
+        if (low > min) {
+            return min - low;
+        }
+        if (high < max) {
+            return max - high;
+        }
+        return 0;
+    }
+
     protected void configChanged() {
         mDirty = true;
     }
@@ -300,6 +530,86 @@ public class CropView extends View {
         }
     }
 
+    /**
+     * The bitmap is drawn straightened inside the crop space, so its matrix
+     * is the display matrix after a rotation about the image center. The
+     * draw matrix first scales the bitmap pixels to photo space.
+     */
+    private void updateBitmapMatrix() {
+        mBitmapMatrix.set(mDisplayMatrix);
+        mBitmapMatrix.preRotate(mStraighten, mImageBounds.centerX(), mImageBounds.centerY());
+        mTileMatrix.setScale(mImageBounds.width() / mBitmap.getWidth(),
+                mImageBounds.height() / mBitmap.getHeight());
+        mTileMatrix.postTranslate(mImageBounds.left, mImageBounds.top);
+        mTileMatrix.postConcat(mBitmapMatrix);
+        mTileMatrix.getValues(mMatrixValues);
+        mDrawMatrix.setValues(mMatrixValues);
+    }
+
+    /**
+     * Draws the full resolution tiles that are sharper than the preview
+     * bitmap at the current zoom over the visible part of the photo. Tiles
+     * that are not decoded yet leave the preview showing through.
+     */
+    private void drawTiles(Canvas canvas) {
+        if (mTiles == null) {
+            return;
+        }
+        mTiles.beginFrame();
+        if (!mBitmapMatrix.invert(mTileMatrix)) {
+            return;
+        }
+        // photo units, and screen pixels, per source pixel
+        float sourceScale = mImageBounds.width() / mTiles.getWidth();
+        float screenScale = mBitmapMatrix.mapRadius(1) * sourceScale;
+        mVisibleBounds.set(0, 0, canvas.getWidth(), canvas.getHeight());
+        mTileMatrix.mapRect(mVisibleBounds);
+        mVisibleBounds.offset(-mImageBounds.left, -mImageBounds.top);
+        mVisibleSource.set(Math.max(0, (int) (mVisibleBounds.left / sourceScale)),
+                Math.max(0, (int) (mVisibleBounds.top / sourceScale)),
+                Math.min(mTiles.getWidth(), (int) Math.ceil(mVisibleBounds.right / sourceScale)),
+                Math.min(mTiles.getHeight(),
+                        (int) Math.ceil(mVisibleBounds.bottom / sourceScale)));
+        if (mVisibleSource.isEmpty()) {
+            return;
+        }
+
+        int level = 0;
+        while ((2 << level) * screenScale <= 1) {
+            level++;
+        }
+        // a coarser level than the zoom asks for if the visible tiles would
+        // not fit in the cache together
+        level = mTiles.getFittingLevel(level, mVisibleSource);
+        int sample = 1 << level;
+        if (sample * mBitmap.getWidth() >= mTiles.getWidth()) {
+            // the preview is already as sharp as this level
+            return;
+        }
+
+        int tileSize = TiledImage.TILE_SIZE << level;
+        int left = mVisibleSource.left / tileSize;
+        int top = mVisibleSource.top / tileSize;
+        int right = mVisibleSource.right;
+        int bottom = mVisibleSource.bottom;
+        float tileScale = sample * sourceScale;
+        for (int row = top; row * tileSize < bottom; row++) {
+            for (int col = left; col * tileSize < right; col++) {
+                Bitmap tile = mTiles.getTile(level, col, row);
+                if (tile == null) {
+                    continue;
+                }
+                mTileMatrix.setScale(tileScale, tileScale);
+                mTileMatrix.postTranslate(mImageBounds.left + col * tileSize * sourceScale,
+                        mImageBounds.top + row * tileSize * sourceScale);
+                mTileMatrix.postConcat(mBitmapMatrix);
+                mTileMatrix.getValues(mMatrixValues);
+                mTileDrawMatrix.setValues(mMatrixValues);
+                canvas.drawBitmap(tile, mTileDrawMatrix, mPaint);
+            }
+        }
+    }
+
     @Override
     public void onDraw(Canvas canvas) {
         if (mBitmap == null) {
@@ -310,7 +620,10 @@ public class CropView extends View {
             clearDisplay();
         }
 
-        mImageBounds = new RectF(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+        if (mPhotoBounds.isEmpty()) {
+            mPhotoBounds.set(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+        }
+        mImageBounds.set(mPhotoBounds);
         mScreenBounds = new RectF(0, 0, canvas.getWidth(), canvas.getHeight());
         mScreenBounds.inset(mMargin, mMargin);
 
@@ -319,36 +632,20 @@ public class CropView extends View {
         if (mCropObj == null) {
             reset();
             mCropObj = new CropObject(mImageBounds, mImageBounds, 0);
+            mCropObj.setExactGeometry(mExactGeometry);
         }
 
         // If display matrix doesn't exist, create it and its dependencies
         if (mDisplayMatrix == null || mDisplayMatrixInverse == null) {
-            mDisplayMatrix = new Matrix();
-            mDisplayMatrix.reset();
-            if (!CropDrawingUtils.setImageToScreenMatrix(mDisplayMatrix, mImageBounds, mScreenBounds,
-                    mRotation)) {
-                Log.w(LOGTAG, "failed to get screen matrix");
-                mDisplayMatrix = null;
-                return;
-            }
-            mDisplayMatrixInverse = new Matrix();
-            mDisplayMatrixInverse.reset();
-            if (!mDisplayMatrix.invert(mDisplayMatrixInverse)) {
-                Log.w(LOGTAG, "could not invert display matrix");
-                mDisplayMatrixInverse = null;
+            if (!updateDisplayMatrix()) {
                 return;
             }
-            // Scale min side and tolerance by display matrix scale factor
-            float mapRadiusWidth = mDisplayMatrixInverse.mapRadius(mMinCropWidth);
-            float mapRadiusHeight = mDisplayMatrixInverse.mapRadius(mMinCropHeight);
-            mCropObj.setMinInnerSideSize(mapRadiusWidth, mapRadiusHeight);//
-            mCropObj.setTouchTolerance(mDisplayMatrixInverse.mapRadius(mTouchTolerance));
         }
 
         mScreenImageBounds.set(mImageBounds);
 
-        // Draw background shadow
-        if (mDisplayMatrix.mapRect(mScreenImageBounds)) {
+        // Draw background shadow, skipped while the photo is straightened
+        if (mBitmapMatrix.mapRect(mScreenImageBounds)) {
             int margin = (int) mDisplayMatrix.mapRadius(mShadowMargin);
             mScreenImageBounds.roundOut(mShadowBounds);
             mShadowBounds.set(mShadowBounds.left - margin, mShadowBounds.top -
@@ -360,7 +657,8 @@ public class CropView extends View {
         mPaint.setAntiAlias(true);
         mPaint.setFilterBitmap(true);
         // Draw actual bitmap
-        canvas.drawBitmap(mBitmap, mDisplayMatrix, mPaint);
+        canvas.drawBitmap(mBitmap, mDrawMatrix, mPaint);
+        drawTiles(canvas);
 
         mCropObj.getInnerBounds(mScreenCropBounds);
 
@@ -0,0 +1,537 @@
+package com.android.gallery3d.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A size bounded LRU cache of crop previews on disk, so that cropping the
+ * same large image again decodes a screen sized file instead of the
+ * original. Opaque previews are stored as JPEG and the others as PNG, both
+ * of which BitmapFactory decodes into pooled bitmaps of any config. Entries
+ * are keyed by Uri, the modification stamp of the image and the size and
+ * config of the preview.
+ * <p>
+ * Previews are compressed and written on a background thread, so storing
+ * one does not hold up the load that decoded it. Changes are appended to a
+ * journal before and after each file is written, so a crash leaves at most
+ * a half written file, which is deleted the next time the cache is opened.
+ * The journal is rewritten once most of its lines are stale.
+ * <p>
+ * The cache is off until one is installed with
+ * {@link #setDefault(DiskPreviewCache)}.
+ */
+public class DiskPreviewCache {
+    private static final String LOGTAG = "DiskPreviewCache";
+
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    private static final String DEFAULT_DIRECTORY = "crop_previews";
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_MAGIC = "libcrop.DiskPreviewCache";
+    private static final String JOURNAL_VERSION = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    private static final int MIN_REDUNDANT_OPS = 1000;
+    private static final int JPEG_QUALITY = 90;
+
+    private static DiskPreviewCache sDefault;
+
+    /**
+     * What is stored about one preview: the size and orientation of the
+     * original image and how the preview was decoded from it.
+     */
+    public static final class Entry {
+        private final File mFile;
+        private long mLength;
+        private int mWidth;
+        private int mHeight;
+        private int mPreviewWidth;
+        private int mPreviewHeight;
+        private int mOrientation;
+        private boolean mOpaque;
+        private int mSideLength;
+
+        Entry(File file) {
+            mFile = file;
+        }
+
+        File getFile() {
+            return mFile;
+        }
+
+        /**
+         * Returns the width of the original image.
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * Returns the height of the original image.
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getPreviewWidth() {
+            return mPreviewWidth;
+        }
+
+        public int getPreviewHeight() {
+            return mPreviewHeight;
+        }
+
+        /**
+         * Returns the EXIF orientation of the original image, or 0 if its
+         * header had none.
+         */
+        public int getOrientation() {
+            return mOrientation;
+        }
+
+        public boolean isOpaque() {
+            return mOpaque;
+        }
+
+        /**
+         * Returns the side length the preview was decoded at, after the
+         * memory budget was applied.
+         */
+        public int getSideLength() {
+            return mSideLength;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mBytes = 0;
+    private Writer mJournal = null;
+    private int mRedundantOps = 0;
+    private boolean mOpened = false;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    // keys with a write queued or running, so each preview is written once
+    private final HashSet<String> mPending = new HashSet<String>();
+
+    public DiskPreviewCache(File directory, long maxBytes) {
+        if (directory == null || maxBytes <= 0) {
+            throw new IllegalArgumentException("bad argument to DiskPreviewCache");
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a cache of DEFAULT_MAX_BYTES in the cache directory of the app.
+     */
+    public DiskPreviewCache(Context context) {
+        this(new File(context.getCacheDir(), DEFAULT_DIRECTORY), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Returns the cache {@link ImageLoader} stores previews in, or null if
+     * none was installed.
+     */
+    public static synchronized DiskPreviewCache getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Installs the cache ImageLoader uses, or turns caching off with null.
+     */
+    public static synchronized void setDefault(DiskPreviewCache cache) {
+        sDefault = cache;
+    }
+
+    /**
+     * Returns the key of the preview of a version of uri decoded at
+     * maxSideLength with one of the PREVIEW_CONFIG_ constants of
+     * {@link ImageLoader}.
+     */
+    public static String getKey(Uri uri, MetadataCache.Metadata metadata, int maxSideLength,
+            boolean useMin, int previewConfig) {
+        String key = uri + "\n" + metadata.getLastModified() + "\n" + metadata.getLength()
+                + "\n" + maxSideLength + "\n" + useMin + "\n" + previewConfig;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16));
+                name.append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the entry stored under key, or null if there is none.
+     */
+    public synchronized Entry get(String key) {
+        if (!open()) {
+            return null;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            appendJournal(READ, key, null);
+        }
+        return entry;
+    }
+
+    /**
+     * Decodes the preview of entry with options, or returns null if the file
+     * is gone or damaged, in which case the entry is removed.
+     */
+    public Bitmap decode(String key, Entry entry, BitmapFactory.Options options) {
+        Bitmap bitmap = BitmapFactory.decodeFile(entry.getFile().getPath(), options);
+        if (bitmap == null) {
+            remove(key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores preview under key in the background, along with what the
+     * loader needs to use it instead of the original: the original size and
+     * header orientation, and the side length the preview was decoded at.
+     * The preview is retained in {@link BitmapPool#getDefault()} until it is
+     * written, so the caller may put it back to the pool at any time.
+     */
+    public void put(final String key, final Bitmap preview, ImageHeader header,
+            final int sideLength) {
+        synchronized (this) {
+            if (!mPending.add(key)) {
+                return;
+            }
+        }
+        // the caller may reuse the header
+        final int width = header.getWidth();
+        final int height = header.getHeight();
+        final int orientation = header.hasOrientation() ? header.getOrientation() : 0;
+        final boolean opaque = header.isOpaque();
+        final BitmapPool pool = BitmapPool.getDefault();
+        pool.retain(preview);
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(key, preview, width, height, orientation, opaque, sideLength);
+                } finally {
+                    pool.release(preview);
+                    synchronized (DiskPreviewCache.this) {
+                        mPending.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private void write(String key, Bitmap preview, int width, int height, int orientation,
+            boolean opaque, int sideLength) {
+        File tmp;
+        synchronized (this) {
+            if (!open()) {
+                return;
+            }
+            appendJournal(DIRTY, key, null);
+            tmp = new File(mDirectory, key + "." + Thread.currentThread().getId() + ".tmp");
+        }
+        // Compressing takes a while, do it without holding up readers
+        OutputStream out = null;
+        boolean written = false;
+        try {
+            out = new FileOutputStream(tmp);
+            written = preview.compress(opaque ? Bitmap.CompressFormat.JPEG
+                    : Bitmap.CompressFormat.PNG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "cannot write " + tmp, e);
+            written = false;
+        } finally {
+            Utils.closeSilently(out);
+        }
+        synchronized (this) {
+            File file = new File(mDirectory, key);
+            if (!written || !tmp.renameTo(file)) {
+                tmp.delete();
+                removeLocked(key);
+                return;
+            }
+            Entry entry = new Entry(file);
+            entry.mLength = file.length();
+            entry.mWidth = width;
+            entry.mHeight = height;
+            entry.mPreviewWidth = preview.getWidth();
+            entry.mPreviewHeight = preview.getHeight();
+            entry.mOrientation = orientation;
+            entry.mOpaque = opaque;
+            entry.mSideLength = sideLength;
+            Entry old = mEntries.put(key, entry);
+            if (old != null) {
+                mBytes -= old.mLength;
+                mRedundantOps++;
+            }
+            mBytes += entry.mLength;
+            appendJournal(CLEAN, key, entry);
+            trimToSize();
+        }
+    }
+
+    public synchronized void remove(String key) {
+        if (open()) {
+            removeLocked(key);
+        }
+    }
+
+    /**
+     * Deletes all stored previews.
+     */
+    public synchronized void clear() {
+        if (!open()) {
+            return;
+        }
+        for (Entry entry : mEntries.values()) {
+            entry.getFile().delete();
+        }
+        mEntries.clear();
+        mBytes = 0;
+        rebuildJournal();
+    }
+
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    public long getMaxSize() {
+        return mMaxBytes;
+    }
+
+    // internal methods, all of which must hold the lock on this
+
+    /**
+     * Reads the journal the first time the cache is used. Returns false if
+     * the directory cannot be used.
+     */
+    private boolean open() {
+        if (mOpened) {
+            return mJournal != null;
+        }
+        mOpened = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(LOGTAG, "cannot create " + mDirectory);
+            return false;
+        }
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        if (journal.exists()) {
+            readJournal(journal);
+        }
+        deleteUnknownFiles();
+        rebuildJournal();
+        return mJournal != null;
+    }
+
+    private void readJournal(File journal) {
+        BufferedReader reader = null;
+        ArrayList<String> dirty = new ArrayList<String>();
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal),
+                    "US-ASCII"));
+            if (!JOURNAL_MAGIC.equals(reader.readLine())
+                    || !JOURNAL_VERSION.equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line, dirty);
+            }
+        } catch (IOException e) {
+            // keep what was read before the damage
+            Log.w(LOGTAG, "cannot read " + journal, e);
+        } finally {
+            Utils.closeSilently(reader);
+        }
+        // Files written by a process that died before finishing them
+        for (String key : dirty) {
+            new File(mDirectory, key).delete();
+        }
+    }
+
+    private void readJournalLine(String line, ArrayList<String> dirty) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            // a line cut short by a crash
+            return;
+        }
+        String op = parts[0];
+        String key = parts[1];
+        if (DIRTY.equals(op)) {
+            dirty.add(key);
+        } else if (REMOVE.equals(op)) {
+            dirty.remove(key);
+            Entry old = mEntries.remove(key);
+            if (old != null) {
+                mBytes -= old.mLength;
+            }
+        } else if (READ.equals(op)) {
+            mEntries.get(key);
+        } else if (CLEAN.equals(op) && parts.length == 10) {
+            dirty.remove(key);
+            Entry entry = new Entry(new File(mDirectory, key));
+            try {
+                entry.mLength = Long.parseLong(parts[2]);
+                entry.mWidth = Integer.parseInt(parts[3]);
+                entry.mHeight = Integer.parseInt(parts[4]);
+                entry.mPreviewWidth = Integer.parseInt(parts[5]);
+                entry.mPreviewHeight = Integer.parseInt(parts[6]);
+                entry.mOrientation = Integer.parseInt(parts[7]);
+                entry.mOpaque = "1".equals(parts[8]);
+                entry.mSideLength = Integer.parseInt(parts[9]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            Entry old = mEntries.put(key, entry);
+            if (old != null) {
+                mBytes -= old.mLength;
+            }
+            mBytes += entry.mLength;
+        }
+    }
+
+    /**
+     * Deletes the files in the directory that no entry refers to, such as
+     * temporary files left behind by a crash.
+     */
+    private void deleteUnknownFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.equals(JOURNAL_FILE) && !mEntries.containsKey(name)) {
+                file.delete();
+            }
+        }
+        // and the entries whose file is gone
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.getFile().exists()) {
+                it.remove();
+                mBytes -= entry.mLength;
+            }
+        }
+    }
+
+    /**
+     * Writes a journal with one line per entry, in LRU order, and replaces
+     * the old one with it.
+     */
+    private void rebuildJournal() {
+        Utils.closeSilently(mJournal);
+        mJournal = null;
+        File tmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                    "US-ASCII"));
+            writer.write(JOURNAL_MAGIC + "\n" + JOURNAL_VERSION + "\n");
+            for (java.util.Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                writer.write(getJournalLine(CLEAN, e.getKey(), e.getValue()));
+            }
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+                Log.w(LOGTAG, "cannot replace journal in " + mDirectory);
+                return;
+            }
+            mJournal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    new File(mDirectory, JOURNAL_FILE), true), "US-ASCII"));
+            mRedundantOps = 0;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "cannot write journal in " + mDirectory, e);
+        } finally {
+            Utils.closeSilently(writer);
+        }
+    }
+
+    private void appendJournal(String op, String key, Entry entry) {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.write(getJournalLine(op, key, entry));
+            // a line is only worth anything once it is on disk
+            mJournal.flush();
+        } catch (IOException e) {
+            Log.w(LOGTAG, "cannot append to journal in " + mDirectory, e);
+        }
+        if (!CLEAN.equals(op)) {
+            mRedundantOps++;
+        }
+        if (mRedundantOps >= MIN_REDUNDANT_OPS && mRedundantOps >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private static String getJournalLine(String op, String key, Entry entry) {
+        if (entry == null) {
+            return op + " " + key + "\n";
+        }
+        return op + " " + key + " " + entry.mLength + " " + entry.mWidth + " " + entry.mHeight
+                + " " + entry.mPreviewWidth + " " + entry.mPreviewHeight + " "
+                + entry.mOrientation + " " + (entry.mOpaque ? "1" : "0") + " "
+                + entry.mSideLength + "\n";
+    }
+
+    private void removeLocked(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            entry.getFile().delete();
+            mBytes -= entry.mLength;
+        }
+        appendJournal(REMOVE, key, null);
+    }
+
+    private void trimToSize() {
+        Iterator<java.util.Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            java.util.Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            eldest.getValue().getFile().delete();
+            mBytes -= eldest.getValue().mLength;
+            appendJournal(REMOVE, eldest.getKey(), null);
+        }
+    }
+}
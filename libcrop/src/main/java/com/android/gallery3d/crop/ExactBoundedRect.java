@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.gallery3d.crop;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * A {@link BoundedRect} that keeps its state in double precision and stores
+ * the inner rectangle as a center plus a scale of an aspect ratio:
+ * width = scale * aspectW and height = scale * aspectH. Moves only change
+ * the center and fixed aspect resizes only change the scale, so the aspect
+ * ratio stays exactly what was set no matter how many events are applied.
+ * The float inner rect seen through {@link #getInner()} is rounded from this
+ * state after every change and never fed back into it.
+ */
+public class ExactBoundedRect extends BoundedRect {
+    private double cos;
+    private double sin;
+    private double outerLeft;
+    private double outerTop;
+    private double outerRight;
+    private double outerBottom;
+    private double outerCenterX;
+    private double outerCenterY;
+
+    private double centerX;
+    private double centerY;
+    private double scale;
+    private double aspectW;
+    private double aspectH;
+    private boolean aspectLocked = false;
+
+    private final RectF tmp = new RectF();
+
+    public ExactBoundedRect(float rotation, Rect outerRect, Rect innerRect) {
+        this(rotation, new RectF(outerRect), new RectF(innerRect));
+    }
+
+    public ExactBoundedRect(float rotation, RectF outerRect, RectF innerRect) {
+        // the float parent only holds what publish() hands it
+        super(rotation, outerRect);
+        setState(rotation, outerRect, innerRect);
+    }
+
+    @Override
+    public void resetTo(float rotation, RectF outerRect, RectF innerRect) {
+        setOuterUnchecked(rotation, outerRect);
+        setState(rotation, outerRect, innerRect);
+    }
+
+    @Override
+    public void setInner(RectF newInner) {
+        setToInner(tmp);
+        if (tmp.equals(newInner))
+            return;
+        setInnerState(newInner);
+        reconstrain();
+        publish();
+    }
+
+    @Override
+    public void setRotation(float rotation) {
+        setToOuter(tmp);
+        setOuterUnchecked(rotation, tmp);
+        setAngle(rotation);
+        reconstrain();
+        publish();
+    }
+
+    /**
+     * Locks the aspect ratio to exactly width : height and fits the current
+     * inner rect to it about its center.
+     */
+    public void setAspectRatio(float width, float height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Width and Height must be greater than zero");
+        }
+        double w = scale * aspectW;
+        double h = scale * aspectH;
+        aspectW = width;
+        aspectH = height;
+        scale = Math.min(w / aspectW, h / aspectH);
+        aspectLocked = true;
+        reconstrain();
+        publish();
+    }
+
+    /**
+     * Unlocks the aspect ratio, the next free resize sets a new one.
+     */
+    public void clearAspectRatio() {
+        aspectLocked = false;
+    }
+
+    @Override
+    public void moveInner(float dx, float dy) {
+        double halfW = scale * aspectW / 2;
+        double halfH = scale * aspectH / 2;
+        double extentX = Math.abs(cos) * halfW + Math.abs(sin) * halfH;
+        double extentY = Math.abs(sin) * halfW + Math.abs(cos) * halfH;
+        double x = toOuterX(centerX, centerY);
+        double y = toOuterY(centerX, centerY);
+        double vx = cos * dx + sin * dy;
+        double vy = -sin * dx + cos * dy;
+        vx = clampTranslation(vx, outerLeft + extentX - x, outerRight - extentX - x);
+        vy = clampTranslation(vy, outerTop + extentY - y, outerBottom - extentY - y);
+        centerX += cos * vx - sin * vy;
+        centerY += sin * vx + cos * vy;
+        publish();
+    }
+
+    /**
+     * Resizes without keeping the aspect ratio, the resulting width and
+     * height become the new ratio.
+     */
+    @Override
+    public void resizeInner(RectF newInner) {
+        double halfW = scale * aspectW / 2;
+        double halfH = scale * aspectH / 2;
+        double left = centerX - halfW;
+        double top = centerY - halfH;
+        double right = centerX + halfW;
+        double bottom = centerY + halfH;
+        double dl = newInner.left - left;
+        double dt = newInner.top - top;
+        double dr = newInner.right - right;
+        double db = newInner.bottom - bottom;
+
+        // Every corner moves linearly, find the largest fraction that fits.
+        double t = 1;
+        t = maxStep(left, top, dl, dt, t);
+        t = maxStep(right, top, dr, dt, t);
+        t = maxStep(right, bottom, dr, db, t);
+        t = maxStep(left, bottom, dl, db, t);
+        if (t <= 0)
+            return;
+
+        left += t * dl;
+        top += t * dt;
+        right += t * dr;
+        bottom += t * db;
+        centerX = (left + right) / 2;
+        centerY = (top + bottom) / 2;
+        aspectW = right - left;
+        aspectH = bottom - top;
+        scale = 1;
+        publish();
+    }
+
+    @Override
+    public void fixedAspectResizeInner(int fixed, float width) {
+        double halfW = scale * aspectW / 2;
+        double halfH = scale * aspectH / 2;
+        // direction from the fixed corner towards the opposite one
+        double dirX = (fixed == 0 || fixed == 6) ? 1 : -1;
+        double dirY = (fixed == 0 || fixed == 2) ? 1 : -1;
+        double fixedX = centerX - dirX * halfW;
+        double fixedY = centerY - dirY * halfH;
+
+        // the fixed corner does not move, so only the other three bound the scale
+        double s = width / aspectW;
+        double ax = dirX * aspectW;
+        double ay = dirY * aspectH;
+        s = maxStep(fixedX, fixedY, ax, 0, s);
+        s = maxStep(fixedX, fixedY, 0, ay, s);
+        s = maxStep(fixedX, fixedY, ax, ay, s);
+        if (s <= 0)
+            return;
+
+        scale = s;
+        centerX = fixedX + ax * s / 2;
+        centerY = fixedY + ay * s / 2;
+        publish();
+    }
+
+    // internal methods
+
+    private void setState(float rotation, RectF outerRect, RectF innerRect) {
+        setAngle(rotation);
+        outerLeft = outerRect.left;
+        outerTop = outerRect.top;
+        outerRight = outerRect.right;
+        outerBottom = outerRect.bottom;
+        outerCenterX = (outerLeft + outerRight) / 2;
+        outerCenterY = (outerTop + outerBottom) / 2;
+        setInnerState(innerRect);
+        reconstrain();
+        publish();
+    }
+
+    private void setAngle(float rotation) {
+        // snap like AffineMatrix so multiples of 90 degrees are exact
+        double radians = Math.toRadians(rotation);
+        cos = Math.cos(radians);
+        sin = Math.sin(radians);
+        if (Math.abs(cos) < 1e-12)
+            cos = 0;
+        if (Math.abs(sin) < 1e-12)
+            sin = 0;
+    }
+
+    private void setInnerState(RectF r) {
+        centerX = ((double) r.left + r.right) / 2;
+        centerY = ((double) r.top + r.bottom) / 2;
+        if (aspectLocked) {
+            scale = Math.min(r.width() / aspectW, r.height() / aspectH);
+        } else {
+            aspectW = (double) r.right - r.left;
+            aspectH = (double) r.bottom - r.top;
+            scale = 1;
+        }
+    }
+
+    /**
+     * Shrinks inner about its center just enough to fit, then moves the
+     * center as little as possible.
+     */
+    private void reconstrain() {
+        double halfW = scale * aspectW / 2;
+        double halfH = scale * aspectH / 2;
+        double extentX = Math.abs(cos) * halfW + Math.abs(sin) * halfH;
+        double extentY = Math.abs(sin) * halfW + Math.abs(cos) * halfH;
+        double f = 1;
+        if (extentX > 0)
+            f = Math.min(f, (outerRight - outerLeft) / (2 * extentX));
+        if (extentY > 0)
+            f = Math.min(f, (outerBottom - outerTop) / (2 * extentY));
+        scale *= f;
+        extentX *= f;
+        extentY *= f;
+
+        double x = toOuterX(centerX, centerY);
+        double y = toOuterY(centerX, centerY);
+        double vx = GeometryMathUtils.clamp(x, outerLeft + extentX, outerRight - extentX) - x;
+        double vy = GeometryMathUtils.clamp(y, outerTop + extentY, outerBottom - extentY) - y;
+        centerX += cos * vx - sin * vy;
+        centerY += sin * vx + cos * vy;
+    }
+
+    /**
+     * Returns the largest t, at most limit, for which (x, y) + t * (vx, vy)
+     * in inner coordinates stays within the rotated outer rect.
+     */
+    private double maxStep(double x, double y, double vx, double vy, double limit) {
+        double px = toOuterX(x, y);
+        double py = toOuterY(x, y);
+        double ux = cos * vx + sin * vy;
+        double uy = -sin * vx + cos * vy;
+        if (ux > 0) {
+            limit = Math.min(limit, (outerRight - px) / ux);
+        } else if (ux < 0) {
+            limit = Math.min(limit, (outerLeft - px) / ux);
+        }
+        if (uy > 0) {
+            limit = Math.min(limit, (outerBottom - py) / uy);
+        } else if (uy < 0) {
+            limit = Math.min(limit, (outerTop - py) / uy);
+        }
+        return limit;
+    }
+
+    // Inverse rotation about the outer center, into the frame where outer
+    // is axis aligned.
+    private double toOuterX(double x, double y) {
+        return outerCenterX + cos * (x - outerCenterX) + sin * (y - outerCenterY);
+    }
+
+    private double toOuterY(double x, double y) {
+        return outerCenterY - sin * (x - outerCenterX) + cos * (y - outerCenterY);
+    }
+
+    private static double clampTranslation(double t, double low, double high) {
+        // inner does not fit along this axis, so no translation can fix it
+        if (low > high)
+            return 0;
+        return GeometryMathUtils.clamp(t, low, high);
+    }
+
+    private void publish() {
+        double halfW = scale * aspectW / 2;
+        double halfH = scale * aspectH / 2;
+        setInnerUnchecked((float) (centerX - halfW), (float) (centerY - halfH),
+                (float) (centerX + halfW), (float) (centerY + halfH));
+    }
+}
@@ -0,0 +1,124 @@
+package com.android.gallery3d.crop;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Adds an EXIF segment holding only an orientation tag to the JPEG written
+ * through it, after the JFIF segment if there is one, so that viewers rotate
+ * the image instead of the pixels being rotated before encoding. Anything
+ * that does not start like a JPEG is passed through unchanged.
+ */
+class ExifOrientationOutputStream extends FilterOutputStream {
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+
+    private final byte[] mSegment;
+    // the start of the stream, held until it is known where the segment goes
+    private byte[] mHead = new byte[32];
+    private int mHeadLength = 0;
+    private boolean mDone = false;
+
+    /**
+     * @param orientation one of the EXIF orientations 1 to 8.
+     */
+    ExifOrientationOutputStream(OutputStream out, int orientation) {
+        super(out);
+        mSegment = createSegment(orientation);
+    }
+
+    /**
+     * Returns an APP1 segment, marker and length included, with an IFD0 that
+     * holds only orientation.
+     */
+    static byte[] createSegment(int orientation) {
+        if (orientation < 1 || orientation > 8) {
+            throw new IllegalArgumentException("bad argument to createSegment");
+        }
+        return new byte[] {
+                (byte) 0xFF, (byte) APP1, 0, 34,
+                'E', 'x', 'i', 'f', 0, 0,
+                // big endian TIFF header, IFD0 right after it
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                // one entry: Orientation, SHORT, count 1
+                0, 1,
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                // no IFD1
+                0, 0, 0, 0
+        };
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mDone) {
+            out.write(b);
+            return;
+        }
+        if (mHeadLength == mHead.length) {
+            mHead = Arrays.copyOf(mHead, mHead.length * 2);
+        }
+        mHead[mHeadLength++] = (byte) b;
+        insert();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (!mDone && len > 0) {
+            write(b[off] & 0xFF);
+            off++;
+            len--;
+        }
+        if (len > 0) {
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Writes out what is held back if the segment could not be placed yet.
+     * Call it once the image is written.
+     */
+    void finish() throws IOException {
+        if (!mDone) {
+            mDone = true;
+            out.write(mHead, 0, mHeadLength);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+
+    // Writes the head and the segment once it is known where it goes.
+    private void insert() throws IOException {
+        if (mHeadLength < 2) {
+            return;
+        }
+        if ((mHead[0] & 0xFF) != 0xFF || (mHead[1] & 0xFF) != 0xD8) {
+            finish();
+            return;
+        }
+        if (mHeadLength < 4) {
+            return;
+        }
+        int split = 2;
+        if ((mHead[2] & 0xFF) == 0xFF && (mHead[3] & 0xFF) == APP0) {
+            // JFIF has to stay first
+            if (mHeadLength < 6) {
+                return;
+            }
+            split = 4 + (((mHead[4] & 0xFF) << 8) | (mHead[5] & 0xFF));
+            if (mHeadLength < split) {
+                return;
+            }
+        }
+        mDone = true;
+        out.write(mHead, 0, split);
+        out.write(mSegment);
+        out.write(mHead, split, mHeadLength - split);
+    }
+}
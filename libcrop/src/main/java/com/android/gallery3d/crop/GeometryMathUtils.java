@@ -10,51 +10,107 @@ public class GeometryMathUtils {
         return Math.max(Math.min(i, high), low);
     }
 
+    public static double clamp(double i, double low, double high) {
+        return Math.max(Math.min(i, high), low);
+    }
+
     public static float vectorLength(float[] a) {
-        return (float) Math.hypot(a[0], a[1]);
+        return vectorLength(a[0], a[1]);
+    }
+
+    public static float vectorLength(float x, float y) {
+        return (float) Math.hypot(x, y);
     }
 
     public static float[] shortestVectorFromPointToLine(float[] point, float[] line) {
-        float x1 = line[0];
-        float x2 = line[2];
-        float y1 = line[1];
-        float y2 = line[3];
+        float[] vec = new float[2];
+        if (!shortestVectorFromPointToLine(point[0], point[1], line[0], line[1], line[2], line[3],
+                vec))
+            return null;
+        return vec;
+    }
+
+    /**
+     * Same as {@link #shortestVectorFromPointToLine(float[], float[])}, but writes
+     * the vector into out instead of allocating it.
+     *
+     * @return false if the line is degenerate, in which case out is untouched.
+     */
+    public static boolean shortestVectorFromPointToLine(float[] point, float[] line, float[] out) {
+        return shortestVectorFromPointToLine(point[0], point[1], line[0], line[1], line[2],
+                line[3], out);
+    }
+
+    public static boolean shortestVectorFromPointToLine(float px, float py, float x1, float y1,
+            float x2, float y2, float[] out) {
         float xdelt = x2 - x1;
         float ydelt = y2 - y1;
         if (xdelt == 0 && ydelt == 0)
-            return null;
-        float u = ((point[0] - x1) * xdelt + (point[1] - y1) * ydelt)
+            return false;
+        float u = ((px - x1) * xdelt + (py - y1) * ydelt)
                 / (xdelt * xdelt + ydelt * ydelt);
-        float[] ret = {
-                (x1 + u * (x2 - x1)), (y1 + u * (y2 - y1))
-        };
-        float[] vec = {
-                ret[0] - point[0], ret[1] - point[1]
-        };
-        return vec;
+        float retX = x1 + u * (x2 - x1);
+        float retY = y1 + u * (y2 - y1);
+        out[0] = retX - px;
+        out[1] = retY - py;
+        return true;
     }
 
 
     public static float[] normalize(float[] a) {
-        float length = (float) Math.hypot(a[0], a[1]);
-        float[] b = {
-                a[0] / length, a[1] / length
-        };
+        float[] b = new float[2];
+        normalize(a[0], a[1], b);
         return b;
     }
 
+    /**
+     * Same as {@link #normalize(float[])}, but writes the unit vector into out,
+     * which may be a.
+     */
+    public static void normalize(float[] a, float[] out) {
+        normalize(a[0], a[1], out);
+    }
+
+    public static void normalize(float x, float y, float[] out) {
+        float length = (float) Math.hypot(x, y);
+        out[0] = x / length;
+        out[1] = y / length;
+    }
+
     // A onto B
     public static float scalarProjection(float[] a, float[] b) {
-        float length = (float) Math.hypot(b[0], b[1]);
-        return dotProduct(a, b) / length;
+        return scalarProjection(a[0], a[1], b[0], b[1]);
     }
+
+    public static float scalarProjection(float ax, float ay, float bx, float by) {
+        float length = (float) Math.hypot(bx, by);
+        return dotProduct(ax, ay, bx, by) / length;
+    }
+
     // A . B
     public static float dotProduct(float[] a, float[] b) {
-        return a[0] * b[0] + a[1] * b[1];
+        return dotProduct(a[0], a[1], b[0], b[1]);
+    }
+
+    public static float dotProduct(float ax, float ay, float bx, float by) {
+        return ax * bx + ay * by;
     }
 
 
     public static float[] lineIntersect(float[] line1, float[] line2) {
+        float[] intersect = new float[2];
+        if (!lineIntersect(line1, line2, intersect))
+            return null;
+        return intersect;
+    }
+
+    /**
+     * Same as {@link #lineIntersect(float[], float[])}, but writes the
+     * intersection into out instead of allocating it.
+     *
+     * @return false if the lines are parallel, in which case out is untouched.
+     */
+    public static boolean lineIntersect(float[] line1, float[] line2, float[] out) {
         float a0 = line1[0];
         float a1 = line1[1];
         float b0 = line1[2];
@@ -72,11 +128,10 @@ public class GeometryMathUtils {
 
         float denom = t1 * t4 - t0 * t5;
         if (denom == 0)
-            return null;
+            return false;
         float u = (t3 * t4 + t5 * t2) / denom;
-        float[] intersect = {
-                b0 + u * t0, b1 + u * t1
-        };
-        return intersect;
+        out[0] = b0 + u * t0;
+        out[1] = b1 + u * t1;
+        return true;
     }
 }
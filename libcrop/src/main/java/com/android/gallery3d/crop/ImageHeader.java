@@ -0,0 +1,872 @@
+package com.android.gallery3d.crop;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Dimensions, MIME type and EXIF orientation of an encoded image, sniffed
+ * from the first bytes of its stream without decoding any pixels. Reading a
+ * header consumes the stream, so callers that want to decode afterwards
+ * mark the stream first and reset it after {@link #read(InputStream)}.
+ * <p>
+ * JPEG, PNG, GIF, WebP, BMP and HEIF sizes are recognized. The orientation
+ * is read from the EXIF APP1 segment of JPEG files, the eXIf chunk of PNG
+ * files and the Exif item of HEIF files, and the embedded thumbnail from
+ * the APP1 segment of JPEG files.
+ * <p>
+ * {@link #readOrientation(InputStream)} only looks for the orientation: it
+ * stops at the first EXIF block and reads that only up to the orientation
+ * tag, so it consumes a few hundred bytes of a typical photo.
+ */
+public class ImageHeader {
+    private static final int JPEG_MARKER_SOI = 0xD8;
+    private static final int JPEG_MARKER_SOS = 0xDA;
+    private static final int JPEG_MARKER_EOI = 0xD9;
+    private static final int JPEG_MARKER_APP1 = 0xE1;
+
+    private static final int PNG_CHUNK_EXIF = 0x65584966; // "eXIf"
+    private static final int PNG_CHUNK_IDAT = 0x49444154; // "IDAT"
+    private static final int PNG_CHUNK_IEND = 0x49454E44; // "IEND"
+    private static final int PNG_CHUNK_TRNS = 0x74524E53; // "tRNS"
+    private static final int PNG_COLOR_GRAY = 0;
+    private static final int PNG_COLOR_RGB = 2;
+
+    private static final int BOX_FTYP = 0x66747970; // "ftyp"
+    private static final int BOX_META = 0x6D657461; // "meta"
+    private static final int BOX_PITM = 0x7069746D; // "pitm"
+    private static final int BOX_IINF = 0x69696E66; // "iinf"
+    private static final int BOX_INFE = 0x696E6665; // "infe"
+    private static final int BOX_ILOC = 0x696C6F63; // "iloc"
+    private static final int BOX_IPRP = 0x69707270; // "iprp"
+    private static final int BOX_IPCO = 0x6970636F; // "ipco"
+    private static final int BOX_IPMA = 0x69706D61; // "ipma"
+    private static final int BOX_ISPE = 0x69737065; // "ispe"
+    private static final int BOX_IROT = 0x69726F74; // "irot"
+    private static final int BRAND_AVIF = 0x61766966; // "avif"
+    private static final int ITEM_TYPE_EXIF = 0x45786966; // "Exif"
+    // HEIF meta boxes are a few KB, anything much larger is not worth reading
+    private static final int MAX_META_BOX_SIZE = 1 << 20;
+
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+    private static final int EXIF_TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int EXIF_TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int EXIF_TYPE_SHORT = 3;
+    private static final int EXIF_TYPE_LONG = 4;
+
+    // Same values as the ORI_ constants in ImageLoader, which this class does
+    // not use so that it can be benchmarked on a plain JVM.
+    private static final int ORIENTATION_NORMAL = 1;
+    private static final int ORIENTATION_ROTATE_180 = 3;
+    private static final int ORIENTATION_ROTATE_90 = 6;
+    private static final int ORIENTATION_ROTATE_270 = 8;
+
+    private int mWidth;
+    private int mHeight;
+    private String mMimeType;
+    private int mOrientation = ORIENTATION_NORMAL;
+    private boolean mHasOrientation;
+    private boolean mOpaque;
+    private byte[] mExif;
+    private int mThumbnailOffset;
+    private int mThumbnailLength;
+    private boolean mOrientationOnly;
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the MIME type of the image, or null if the format was not
+     * recognized.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * Returns the EXIF orientation, one of the ORI_ constants in
+     * {@link ImageLoader}. ORI_NORMAL if the image has none.
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * Returns true if the image carries an orientation tag.
+     */
+    public boolean hasOrientation() {
+        return mHasOrientation;
+    }
+
+    /**
+     * Returns true if the format of the image says it has no transparent
+     * pixels. False if it may have some, or if that is not known.
+     */
+    public boolean isOpaque() {
+        return mOpaque;
+    }
+
+    /**
+     * Returns true if the EXIF data holds a JPEG thumbnail.
+     */
+    public boolean hasThumbnail() {
+        return mThumbnailLength > 0;
+    }
+
+    /**
+     * Returns a copy of the compressed JPEG thumbnail embedded in the EXIF
+     * data, or null if there is none.
+     */
+    public byte[] getThumbnail() {
+        if (mThumbnailLength <= 0) {
+            return null;
+        }
+        byte[] thumbnail = new byte[mThumbnailLength];
+        System.arraycopy(mExif, mThumbnailOffset, thumbnail, 0, mThumbnailLength);
+        return thumbnail;
+    }
+
+    public boolean hasSize() {
+        return mWidth > 0 && mHeight > 0;
+    }
+
+    void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    void setOpaque(boolean opaque) {
+        mOpaque = opaque;
+    }
+
+    public void reset() {
+        mWidth = 0;
+        mHeight = 0;
+        mMimeType = null;
+        mOrientation = ORIENTATION_NORMAL;
+        mHasOrientation = false;
+        mOpaque = false;
+        mExif = null;
+        mThumbnailOffset = 0;
+        mThumbnailLength = 0;
+    }
+
+    /**
+     * Reads the header of the image at the current position of is. Only as
+     * many bytes as the header needs are consumed.
+     *
+     * @return true if the size of the image was found.
+     */
+    public boolean read(InputStream is) throws IOException {
+        mOrientationOnly = false;
+        readHeader(is);
+        return hasSize();
+    }
+
+    /**
+     * Reads only the orientation of the image at the current position of is,
+     * stopping at the orientation tag of the first EXIF block. The size of
+     * the image may or may not be found on the way.
+     *
+     * @return true if the image carries an orientation tag.
+     */
+    public boolean readOrientation(InputStream is) throws IOException {
+        mOrientationOnly = true;
+        try {
+            readHeader(is);
+        } finally {
+            mOrientationOnly = false;
+        }
+        return mHasOrientation;
+    }
+
+    private void readHeader(InputStream is) throws IOException {
+        reset();
+        int b0 = is.read();
+        int b1 = is.read();
+        if (b0 < 0 || b1 < 0) {
+            return;
+        }
+        try {
+            if (b0 == 0xFF && b1 == JPEG_MARKER_SOI) {
+                mMimeType = "image/jpeg";
+                mOpaque = true;
+                readJpeg(is);
+            } else if (b0 == 0x89 && b1 == 'P') {
+                readPng(is);
+            } else if (b0 == 'G' && b1 == 'I') {
+                readGif(is);
+            } else if (b0 == 'R' && b1 == 'I') {
+                readWebp(is);
+            } else if (b0 == 'B' && b1 == 'M') {
+                readBmp(is);
+            } else if (b0 == 0 && b1 == 0) {
+                readHeif(is);
+            }
+        } catch (EOFException e) {
+            // truncated header, report whatever was found
+        }
+    }
+
+    private void readJpeg(InputStream is) throws IOException {
+        while (true) {
+            // Markers may be padded with any number of 0xFF bytes.
+            int marker = readUnsignedByte(is);
+            if (marker != 0xFF) {
+                return;
+            }
+            while (marker == 0xFF) {
+                marker = readUnsignedByte(is);
+            }
+            if (marker == JPEG_MARKER_SOS || marker == JPEG_MARKER_EOI) {
+                return;
+            }
+            // standalone markers carry no length
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue;
+            }
+            int length = readShort(is, true) - 2;
+            if (length < 0) {
+                return;
+            }
+            if (isStartOfFrame(marker)) {
+                readUnsignedByte(is); // sample precision
+                mHeight = readShort(is, true);
+                mWidth = readShort(is, true);
+                return;
+            }
+            if (marker == JPEG_MARKER_APP1 && mOrientationOnly && length >= 14) {
+                if (readExifHeader(is)) {
+                    // only the first EXIF segment counts
+                    readTiffOrientation(is, length - 6);
+                    return;
+                }
+                skipFully(is, length - 6);
+            } else if (marker == JPEG_MARKER_APP1 && !mHasOrientation) {
+                byte[] segment = new byte[length];
+                readFully(is, segment);
+                readExif(segment, 0, length);
+            } else {
+                skipFully(is, length);
+            }
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0-SOF15, except DHT, JPG and DAC which share the range
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                && marker != 0xCC;
+    }
+
+    /**
+     * Reads the orientation and the thumbnail location out of an APP1
+     * payload starting with "Exif\0\0".
+     */
+    private void readExif(byte[] data, int offset, int length) {
+        if (length < 14 || data[offset] != 'E' || data[offset + 1] != 'x'
+                || data[offset + 2] != 'i' || data[offset + 3] != 'f'
+                || data[offset + 4] != 0 || data[offset + 5] != 0) {
+            return;
+        }
+        int tiff = offset + 6;
+        int end = offset + length;
+        boolean bigEndian;
+        if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            bigEndian = true;
+        } else if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            bigEndian = false;
+        } else {
+            return;
+        }
+        if (getShort(data, tiff + 2, bigEndian) != 42) {
+            return;
+        }
+        int ifd = tiff + getInt(data, tiff + 4, bigEndian);
+        if (ifd < tiff || ifd + 2 > end) {
+            return;
+        }
+        int count = getShort(data, ifd, bigEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) {
+                return;
+            }
+            if (getShort(data, entry, bigEndian) == EXIF_TAG_ORIENTATION
+                    && getShort(data, entry + 2, bigEndian) == EXIF_TYPE_SHORT) {
+                setOrientation(getShort(data, entry + 8, bigEndian));
+            }
+        }
+
+        // IFD1 describes the thumbnail
+        int next = ifd + 2 + count * 12;
+        if (next + 4 > end) {
+            return;
+        }
+        int ifd1 = tiff + getInt(data, next, bigEndian);
+        if (ifd1 <= tiff || ifd1 + 2 > end) {
+            return;
+        }
+        int thumbOffset = 0;
+        int thumbLength = 0;
+        count = getShort(data, ifd1, bigEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd1 + 2 + i * 12;
+            if (entry + 12 > end) {
+                return;
+            }
+            int tag = getShort(data, entry, bigEndian);
+            if (tag != EXIF_TAG_THUMBNAIL_OFFSET && tag != EXIF_TAG_THUMBNAIL_LENGTH) {
+                continue;
+            }
+            int type = getShort(data, entry + 2, bigEndian);
+            int value;
+            if (type == EXIF_TYPE_LONG) {
+                value = getInt(data, entry + 8, bigEndian);
+            } else if (type == EXIF_TYPE_SHORT) {
+                value = getShort(data, entry + 8, bigEndian);
+            } else {
+                continue;
+            }
+            if (tag == EXIF_TAG_THUMBNAIL_OFFSET) {
+                thumbOffset = value;
+            } else {
+                thumbLength = value;
+            }
+        }
+        if (thumbOffset > 0 && thumbLength > 0 && thumbOffset <= end - tiff - thumbLength) {
+            mExif = data;
+            mThumbnailOffset = tiff + thumbOffset;
+            mThumbnailLength = thumbLength;
+        }
+    }
+
+
+    /**
+     * Reads the first 6 bytes of an APP1 payload.
+     *
+     * @return true if they are "Exif\0\0", which leaves is at the TIFF header.
+     */
+    private static boolean readExifHeader(InputStream is) throws IOException {
+        byte[] head = new byte[6];
+        readFully(is, head);
+        return head[0] == 'E' && head[1] == 'x' && head[2] == 'i' && head[3] == 'f'
+                && head[4] == 0 && head[5] == 0;
+    }
+
+    /**
+     * Streams through the TIFF structure at the current position of is up
+     * to the orientation tag of IFD0, without buffering the block. The block
+     * is at most limit bytes long, or unbounded if limit is negative.
+     *
+     * @return the number of bytes of the block that were read.
+     */
+    private long readTiffOrientation(InputStream is, long limit) throws IOException {
+        if (limit >= 0 && limit < 8) {
+            return 0;
+        }
+        byte[] buffer = new byte[12];
+        readFully(is, buffer, 8);
+        boolean bigEndian;
+        if (buffer[0] == 'M' && buffer[1] == 'M') {
+            bigEndian = true;
+        } else if (buffer[0] == 'I' && buffer[1] == 'I') {
+            bigEndian = false;
+        } else {
+            return 8;
+        }
+        long ifd = getInt(buffer, 4, bigEndian) & 0xFFFFFFFFL;
+        if (getShort(buffer, 2, bigEndian) != 42 || ifd < 8
+                || (limit >= 0 && ifd + 2 > limit)) {
+            return 8;
+        }
+        // IFD0 almost always follows the header directly
+        skipFully(is, ifd - 8);
+        int count = readShort(is, bigEndian);
+        long position = ifd + 2;
+        for (int i = 0; i < count; i++) {
+            if (limit >= 0 && position + 12 > limit) {
+                break;
+            }
+            readFully(is, buffer, 12);
+            position += 12;
+            if (getShort(buffer, 0, bigEndian) == EXIF_TAG_ORIENTATION
+                    && getShort(buffer, 2, bigEndian) == EXIF_TYPE_SHORT) {
+                setOrientation(getShort(buffer, 8, bigEndian));
+                break;
+            }
+        }
+        return position;
+    }
+
+    void setOrientation(int orientation) {
+        if (orientation >= ORIENTATION_NORMAL && orientation <= ORIENTATION_ROTATE_270) {
+            mOrientation = orientation;
+            mHasOrientation = true;
+        }
+    }
+
+    private void readPng(InputStream is) throws IOException {
+        // rest of the signature, then the IHDR chunk which always comes first
+        byte[] head = new byte[6 + 8 + 8];
+        readFully(is, head);
+        if (head[0] != 'N' || head[1] != 'G' || head[10] != 'I' || head[11] != 'H'
+                || head[12] != 'D' || head[13] != 'R') {
+            return;
+        }
+        mMimeType = "image/png";
+        mWidth = getInt(head, 14, true);
+        mHeight = getInt(head, 18, true);
+
+        // Rest of IHDR and its CRC, then the chunks up to the image data.
+        // eXIf holds a bare TIFF block, it and tRNS have to come before IDAT.
+        byte[] chunk = new byte[9];
+        readFully(is, chunk);
+        int colorType = chunk[1] & 0xFF;
+        mOpaque = colorType == PNG_COLOR_GRAY || colorType == PNG_COLOR_RGB;
+        while (true) {
+            readFully(is, chunk, 8);
+            long length = getInt(chunk, 0, true) & 0xFFFFFFFFL;
+            int type = getInt(chunk, 4, true);
+            long read = 0;
+            if (type == PNG_CHUNK_EXIF && !mHasOrientation) {
+                read = readTiffOrientation(is, length);
+                if (mOrientationOnly) {
+                    return;
+                }
+            } else if (type == PNG_CHUNK_TRNS) {
+                mOpaque = false;
+            } else if (type == PNG_CHUNK_IDAT || type == PNG_CHUNK_IEND) {
+                return;
+            }
+            skipFully(is, length - read + 4);
+        }
+    }
+
+    private void readGif(InputStream is) throws IOException {
+        byte[] head = new byte[4 + 4];
+        readFully(is, head);
+        if (head[0] != 'F' || head[1] != '8') {
+            return;
+        }
+        mMimeType = "image/gif";
+        mWidth = getShort(head, 4, false);
+        mHeight = getShort(head, 6, false);
+    }
+
+    private void readWebp(InputStream is) throws IOException {
+        // "FF" size "WEBP" chunk-tag chunk-size, then up to 10 bytes of payload
+        byte[] head = new byte[2 + 4 + 4 + 4 + 4 + 10];
+        readFully(is, head);
+        if (head[0] != 'F' || head[1] != 'F' || head[6] != 'W' || head[7] != 'E'
+                || head[8] != 'B' || head[9] != 'P' || head[10] != 'V' || head[11] != 'P'
+                || head[12] != '8') {
+            return;
+        }
+        mMimeType = "image/webp";
+        int p = 18;
+        if (head[13] == ' ') {
+            // lossy: 3 byte frame tag, 3 byte start code, 14 bit sizes
+            if ((head[p + 3] & 0xFF) != 0x9D || (head[p + 4] & 0xFF) != 0x01
+                    || (head[p + 5] & 0xFF) != 0x2A) {
+                return;
+            }
+            mWidth = getShort(head, p + 6, false) & 0x3FFF;
+            mHeight = getShort(head, p + 8, false) & 0x3FFF;
+            // a simple lossy file has no alpha channel
+            mOpaque = true;
+        } else if (head[13] == 'L') {
+            // lossless: signature byte, then 14 bit sizes minus one
+            if ((head[p] & 0xFF) != 0x2F) {
+                return;
+            }
+            int bits = getInt(head, p + 1, false);
+            mWidth = (bits & 0x3FFF) + 1;
+            mHeight = ((bits >> 14) & 0x3FFF) + 1;
+            mOpaque = (bits & (1 << 28)) == 0;
+        } else if (head[13] == 'X') {
+            // extended: 4 bytes of flags, then 24 bit canvas sizes minus one
+            mOpaque = (head[p] & 0x10) == 0;
+            mWidth = getInt24(head, p + 4) + 1;
+            mHeight = getInt24(head, p + 7) + 1;
+        }
+    }
+
+    private void readBmp(InputStream is) throws IOException {
+        // file header, then the info header size, width and height
+        byte[] head = new byte[12 + 4 + 4 + 4];
+        readFully(is, head);
+        mMimeType = "image/bmp";
+        mWidth = Math.abs(getInt(head, 16, false));
+        mHeight = Math.abs(getInt(head, 20, false));
+    }
+
+    /**
+     * Reads an ISO base media file (HEIF or AVIF). The size and the Exif item
+     * are found in the meta box, the orientation is read from the Exif item,
+     * or from the rotation property of the primary item if there is none.
+     */
+    private void readHeif(InputStream is) throws IOException {
+        // size of the ftyp box, the first two bytes of which were zero
+        byte[] head = new byte[2 + 4 + 4];
+        readFully(is, head);
+        if (getInt(head, 2, true) != BOX_FTYP) {
+            return;
+        }
+        long position = 2 + head.length;
+        long ftypSize = getShort(head, 0, true);
+        if (ftypSize < 16) {
+            return;
+        }
+        int brand = getInt(head, 6, true);
+        mMimeType = brand == BRAND_AVIF ? "image/avif" : "image/heif";
+        skipFully(is, ftypSize - position);
+        position = ftypSize;
+
+        // Top level boxes up to meta, which is usually right after ftyp.
+        HeifMeta meta = null;
+        byte[] box = new byte[16];
+        while (meta == null) {
+            readFully(is, box, 8);
+            long size = getInt(box, 0, true) & 0xFFFFFFFFL;
+            int type = getInt(box, 4, true);
+            int headerSize = 8;
+            if (size == 1) {
+                readFully(is, box, 8);
+                size = ((long) getInt(box, 0, true) << 32) | (getInt(box, 4, true) & 0xFFFFFFFFL);
+                headerSize = 16;
+            }
+            if (size < headerSize) {
+                // a box running to the end of the file, or garbage
+                return;
+            }
+            if (type == BOX_META) {
+                if (size > MAX_META_BOX_SIZE) {
+                    return;
+                }
+                byte[] data = new byte[(int) size - headerSize];
+                readFully(is, data);
+                meta = new HeifMeta();
+                // meta is a full box, its children follow version and flags
+                meta.parse(data, 4, data.length);
+            } else {
+                skipFully(is, size - headerSize);
+            }
+            position += size;
+        }
+
+        if (meta.mWidth > 0 && meta.mHeight > 0) {
+            mWidth = meta.mWidth;
+            mHeight = meta.mHeight;
+        }
+        // The Exif item holds a 4 byte offset to the TIFF header, usually
+        // zero, and lives in mdat after meta. Items stored before meta, or
+        // in another file, are not worth going back for.
+        if (meta.mExifOffset >= position && meta.mExifLength > 4) {
+            skipFully(is, meta.mExifOffset - position);
+            readFully(is, box, 4);
+            long tiff = getInt(box, 0, true) & 0xFFFFFFFFL;
+            long length = meta.mExifLength - 4;
+            if (tiff + 8 <= length) {
+                skipFully(is, tiff);
+                readTiffOrientation(is, length - tiff);
+            }
+        }
+        if (!mHasOrientation && meta.mRotation > 0) {
+            // irot counts quarter turns anti-clockwise
+            switch (meta.mRotation) {
+                case 1:
+                    setOrientation(ORIENTATION_ROTATE_270);
+                    break;
+                case 2:
+                    setOrientation(ORIENTATION_ROTATE_180);
+                    break;
+                case 3:
+                    setOrientation(ORIENTATION_ROTATE_90);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * What the crop needs out of a HEIF meta box: the size and rotation of
+     * the primary item and where the Exif item is stored.
+     */
+    private static class HeifMeta {
+        int mWidth;
+        int mHeight;
+        int mRotation;
+        long mExifOffset = -1;
+        long mExifLength;
+
+        private int mPrimaryItem = -1;
+        private int mExifItem = -1;
+        private byte[] mData;
+        // children of ipco and the ipma box, resolved once meta is read
+        private int mPropertiesStart = -1;
+        private int mPropertiesEnd;
+        private int mAssociations = -1;
+        private int mAssociationsEnd;
+        private int mLocations = -1;
+        private int mLocationsEnd;
+
+        void parse(byte[] data, int start, int end) {
+            mData = data;
+            parseChildren(start, end);
+            if (mExifItem >= 0 && mLocations >= 0) {
+                parseLocations(mLocations, mLocationsEnd);
+            }
+            if (mPrimaryItem >= 0 && mPropertiesStart >= 0 && mAssociations >= 0) {
+                parseAssociations(mAssociations, mAssociationsEnd);
+            }
+            mData = null;
+        }
+
+        private void parseChildren(int offset, int end) {
+            while (offset + 8 <= end) {
+                long size = getInt(mData, offset, true) & 0xFFFFFFFFL;
+                int type = getInt(mData, offset + 4, true);
+                if (size < 8 || size > end - offset) {
+                    return;
+                }
+                int body = offset + 8;
+                int boxEnd = offset + (int) size;
+                if (type == BOX_PITM && body + 6 <= boxEnd) {
+                    mPrimaryItem = mData[body] == 0 ? getShort(mData, body + 4, true)
+                            : getInt(mData, body + 4, true);
+                } else if (type == BOX_IINF && body + 6 <= boxEnd) {
+                    // entry count is 16 bits in version 0, 32 bits otherwise
+                    parseChildren(body + (mData[body] == 0 ? 6 : 8), boxEnd);
+                } else if (type == BOX_INFE && body + 4 <= boxEnd) {
+                    parseItemInfo(body, boxEnd);
+                } else if (type == BOX_ILOC) {
+                    mLocations = body;
+                    mLocationsEnd = boxEnd;
+                } else if (type == BOX_IPRP) {
+                    parseChildren(body, boxEnd);
+                } else if (type == BOX_IPCO) {
+                    mPropertiesStart = body;
+                    mPropertiesEnd = boxEnd;
+                } else if (type == BOX_IPMA) {
+                    mAssociations = body;
+                    mAssociationsEnd = boxEnd;
+                }
+                offset = boxEnd;
+            }
+        }
+
+        private void parseItemInfo(int offset, int end) {
+            // versions before 2 carry no item type
+            int version = mData[offset];
+            int p = offset + 4;
+            if (version < 2) {
+                return;
+            }
+            int item;
+            if (version == 2) {
+                if (p + 8 > end) {
+                    return;
+                }
+                item = getShort(mData, p, true);
+                p += 2;
+            } else {
+                if (p + 10 > end) {
+                    return;
+                }
+                item = getInt(mData, p, true);
+                p += 4;
+            }
+            // skip the protection index
+            if (getInt(mData, p + 2, true) == ITEM_TYPE_EXIF) {
+                mExifItem = item;
+            }
+        }
+
+        private void parseLocations(int offset, int end) {
+            int version = mData[offset];
+            int p = offset + 4;
+            if (version > 2 || p + 4 > end) {
+                return;
+            }
+            int offsetSize = (mData[p] >> 4) & 0xF;
+            int lengthSize = mData[p] & 0xF;
+            int baseOffsetSize = (mData[p + 1] >> 4) & 0xF;
+            int indexSize = version > 0 ? mData[p + 1] & 0xF : 0;
+            p += 2;
+            int count;
+            if (version < 2) {
+                count = getShort(mData, p, true);
+                p += 2;
+            } else {
+                if (p + 4 > end) {
+                    return;
+                }
+                count = getInt(mData, p, true);
+                p += 4;
+            }
+            int itemSize = version < 2 ? 2 : 4;
+            int methodSize = version > 0 ? 2 : 0;
+            for (int i = 0; i < count; i++) {
+                if (p + itemSize + methodSize + 2 + baseOffsetSize + 2 > end) {
+                    return;
+                }
+                int item = itemSize == 2 ? getShort(mData, p, true) : getInt(mData, p, true);
+                p += itemSize;
+                int method = methodSize > 0 ? mData[p + 1] & 0xF : 0;
+                p += methodSize;
+                p += 2; // data reference index
+                long baseOffset = getSized(mData, p, baseOffsetSize);
+                p += baseOffsetSize;
+                int extents = getShort(mData, p, true);
+                p += 2;
+                int extentSize = indexSize + offsetSize + lengthSize;
+                if (extents < 1 || p + extents * extentSize > end) {
+                    return;
+                }
+                // Only items stored in one piece in this file are read.
+                if (item == mExifItem && method == 0 && extents == 1) {
+                    mExifOffset = baseOffset + getSized(mData, p + indexSize, offsetSize);
+                    mExifLength = getSized(mData, p + indexSize + offsetSize, lengthSize);
+                    return;
+                }
+                p += extents * extentSize;
+            }
+        }
+
+        private void parseAssociations(int offset, int end) {
+            int version = mData[offset];
+            boolean largeIndex = (mData[offset + 3] & 1) != 0;
+            int p = offset + 4;
+            if (p + 4 > end) {
+                return;
+            }
+            int count = getInt(mData, p, true);
+            p += 4;
+            int itemSize = version < 1 ? 2 : 4;
+            int indexSize = largeIndex ? 2 : 1;
+            for (int i = 0; i < count; i++) {
+                if (p + itemSize + 1 > end) {
+                    return;
+                }
+                int item = itemSize == 2 ? getShort(mData, p, true) : getInt(mData, p, true);
+                p += itemSize;
+                int associations = mData[p] & 0xFF;
+                p++;
+                if (p + associations * indexSize > end) {
+                    return;
+                }
+                if (item != mPrimaryItem) {
+                    p += associations * indexSize;
+                    continue;
+                }
+                for (int j = 0; j < associations; j++, p += indexSize) {
+                    // the top bit marks essential properties
+                    int index = largeIndex ? getShort(mData, p, true) & 0x7FFF
+                            : mData[p] & 0x7F;
+                    applyProperty(index);
+                }
+                return;
+            }
+        }
+
+        private void applyProperty(int index) {
+            // property indices start at 1
+            int offset = mPropertiesStart;
+            for (int i = 1; offset + 8 <= mPropertiesEnd; i++) {
+                long size = getInt(mData, offset, true) & 0xFFFFFFFFL;
+                if (size < 8 || size > mPropertiesEnd - offset) {
+                    return;
+                }
+                if (i == index) {
+                    int type = getInt(mData, offset + 4, true);
+                    int body = offset + 8;
+                    if (type == BOX_ISPE && size >= 20) {
+                        mWidth = getInt(mData, body + 4, true);
+                        mHeight = getInt(mData, body + 8, true);
+                    } else if (type == BOX_IROT && size >= 9) {
+                        mRotation = mData[body] & 0x3;
+                    }
+                    return;
+                }
+                offset += (int) size;
+            }
+        }
+
+        private static long getSized(byte[] b, int offset, int size) {
+            switch (size) {
+                case 4:
+                    return getInt(b, offset, true) & 0xFFFFFFFFL;
+                case 8:
+                    return ((long) getInt(b, offset, true) << 32)
+                            | (getInt(b, offset + 4, true) & 0xFFFFFFFFL);
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    // stream and byte order helpers
+
+    private static int readUnsignedByte(InputStream is) throws IOException {
+        int b = is.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static int readShort(InputStream is, boolean bigEndian) throws IOException {
+        int b0 = readUnsignedByte(is);
+        int b1 = readUnsignedByte(is);
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static void readFully(InputStream is, byte[] buffer) throws IOException {
+        readFully(is, buffer, buffer.length);
+    }
+
+    private static void readFully(InputStream is, byte[] buffer, int length)
+            throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = is.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+    private static void skipFully(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long n = is.skip(count);
+            if (n <= 0) {
+                // skip() may give up early, fall back to reading
+                readUnsignedByte(is);
+                n = 1;
+            }
+            count -= n;
+        }
+    }
+
+    private static int getShort(byte[] b, int offset, boolean bigEndian) {
+        int b0 = b[offset] & 0xFF;
+        int b1 = b[offset + 1] & 0xFF;
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static int getInt(byte[] b, int offset, boolean bigEndian) {
+        if (bigEndian) {
+            return (getShort(b, offset, true) << 16) | getShort(b, offset + 2, true);
+        }
+        return (getShort(b, offset + 2, false) << 16) | getShort(b, offset, false);
+    }
+
+    private static int getInt24(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | ((b[offset + 1] & 0xFF) << 8) | ((b[offset + 2] & 0xFF) << 16);
+    }
+}
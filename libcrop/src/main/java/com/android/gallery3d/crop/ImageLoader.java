@@ -1,6 +1,7 @@
 package com.android.gallery3d.crop;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
@@ -9,10 +10,14 @@ import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.media.ExifInterface;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.MediaStore;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.WindowManager;
 import android.webkit.MimeTypeMap;
 
+import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -36,10 +41,90 @@ public class ImageLoader {
     public static final int ORI_FLIP_VERT = ExifInterface.ORIENTATION_FLIP_VERTICAL;
     public static final int ORI_TRANSPOSE = ExifInterface.ORIENTATION_TRANSPOSE;
     public static final int ORI_TRANSVERSE = ExifInterface.ORIENTATION_TRANSVERSE;
+    private static final int ORI_UNKNOWN = ExifInterface.ORIENTATION_UNDEFINED;
+
+    /**
+     * Preview configs for {@link LoadOptions#previewConfig}. ARGB_8888 decodes a mutable
+     * bitmap that can go back to the {@link BitmapPool}. LOW_MEMORY decodes
+     * opaque images as RGB_565, at half the memory. HARDWARE keeps the pixels
+     * in graphics memory only, from Oreo on, and falls back to LOW_MEMORY
+     * before that. HARDWARE bitmaps are immutable, can only be drawn by a
+     * hardware accelerated canvas and are never pooled.
+     */
+    public static final int PREVIEW_CONFIG_ARGB_8888 = 0;
+    public static final int PREVIEW_CONFIG_LOW_MEMORY = 1;
+    public static final int PREVIEW_CONFIG_HARDWARE = 2;
+
+    // Bitmap.Config.HARDWARE is newer than the SDK this is compiled against
+    private static final String HARDWARE_CONFIG_NAME = "HARDWARE";
+    private static final int HARDWARE_CONFIG_SDK = 26;
 
     private static final int BITMAP_LOAD_BACKOUT_ATTEMPTS = 5;
     private static final float OVERDRAW_ZOOM = 1.2f;
 
+    // Stream buffer for single pass loads, and how far a header may be read
+    // before the stream can no longer be reset for the pixel decode. The
+    // limit covers a full 64K EXIF segment plus the usual ICC and XMP ones.
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+    private static final int HEADER_MARK_LIMIT = 256 * 1024;
+    // enough for the EXIF orientation of a typical photo in one read
+    private static final int HEADER_BUFFER_SIZE = 1024;
+
+    // Thumbnails padded to another aspect ratio than the image are not used
+    private static final float THUMBNAIL_ASPECT_TOLERANCE = 0.02f;
+
+    /**
+     * Receives the image header after it has been read and before the
+     * pixels are decoded, on the loading thread.
+     */
+    public interface HeaderCallback {
+        void onHeaderRead(ImageHeader header);
+    }
+
+    /**
+     * Options for {@link #loadConstrainedBitmap(Uri, Context, int, Rect, ImageHeader, boolean,
+     * LoadOptions)}. The defaults load the same way as
+     * {@link #loadConstrainedBitmap(Uri, Context, int, Rect, boolean)}.
+     */
+    public static class LoadOptions {
+        /**
+         * Decode an image larger than maxSideLength with its chosen side at
+         * maxSideLength instead of the next power of two below it. The
+         * decoder subsamples to the smallest power of two that is still at
+         * least that large and scales the rest of the way through the
+         * density options, so no intermediate bitmap is allocated.
+         */
+        public boolean exactSize = false;
+
+        /**
+         * Called as soon as the size and orientation are known, for example
+         * to show a thumbnail while the pixels are decoded.
+         */
+        public HeaderCallback headerCallback = null;
+
+        /**
+         * One of the PREVIEW_CONFIG_ constants, picks the bitmap config the
+         * image is decoded into.
+         */
+        public int previewConfig = PREVIEW_CONFIG_ARGB_8888;
+
+        /**
+         * The most bytes the bitmap may take, or 0 for no limit, see
+         * {@link MemoryBudget#getPreviewBytes()}. An opaque image that does
+         * not fit is decoded as RGB_565 first, and at a smaller size if that
+         * is not enough.
+         */
+        public long maxBytes = 0;
+
+        /**
+         * Set by a load with exactSize, before the header callback runs, to
+         * the {@link MetadataCache} entry of the image or null if it has
+         * none. The rest of the load can use it instead of stamping the
+         * image again.
+         */
+        public MetadataCache.Metadata outMetadata = null;
+    }
+
     /**
      * Loads a bitmap at a given URI that is downsampled so that both sides are
      * smaller than maxSideLength. The Bitmap's original dimensions are stored
@@ -54,21 +139,359 @@ public class ImageLoader {
      */
     public static Bitmap loadConstrainedBitmap(Uri uri, Context context, int maxSideLength,
                                                Rect originalBounds, boolean useMin) {
+        return loadConstrainedBitmap(uri, context, maxSideLength, originalBounds, null, useMin,
+                null);
+    }
+
+    /**
+     * Same as {@link #loadConstrainedBitmap(Uri, Context, int, Rect, boolean)},
+     * but opens the image only once: the header is sniffed for the size and
+     * EXIF orientation, then the stream is reset and the pixels are decoded
+     * from it.
+     *
+     * @param header  If not null, receives the size, type and orientation
+     *                found in the image header.
+     * @param loadOptions If not null, how to load the image.
+     */
+    public static Bitmap loadConstrainedBitmap(Uri uri, Context context, int maxSideLength,
+                                               Rect originalBounds, ImageHeader header,
+                                               boolean useMin, LoadOptions loadOptions) {
         if (maxSideLength <= 0 || uri == null || context == null) {
             throw new IllegalArgumentException("bad argument to getScaledBitmap");
         }
-        // Get width and height of stored bitmap
-        Rect storedBounds = loadBitmapBounds(context, uri);
+        if (header == null) {
+            header = new ImageHeader();
+        }
+        if (loadOptions == null) {
+            loadOptions = new LoadOptions();
+        }
+        boolean exactSize = loadOptions.exactSize;
+        int previewConfig = loadOptions.previewConfig;
+        long maxBytes = loadOptions.maxBytes;
+        MetadataCache.Metadata metadata = null;
+        if (exactSize) {
+            metadata = MetadataCache.getDefault().get(context, uri);
+            loadOptions.outMetadata = metadata;
+        }
+        // Screen sized previews are worth keeping on disk, see DiskPreviewCache
+        DiskPreviewCache disk = exactSize ? DiskPreviewCache.getDefault() : null;
+        String diskKey = null;
+        if (disk != null && metadata != null) {
+            diskKey = DiskPreviewCache.getKey(uri, metadata, maxSideLength, useMin,
+                    previewConfig);
+            Bitmap bitmap = loadCachedPreview(context, disk, diskKey, maxSideLength,
+                    originalBounds, header, useMin, previewConfig, maxBytes);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        InputStream is = null;
+        try {
+            is = openBufferedStream(context, uri);
+            is.mark(HEADER_MARK_LIMIT);
+            header.read(is);
+            boolean rewound = rewind(is);
+            if (!header.hasSize()) {
+                // Unknown format, let the decoder find the bounds
+                if (!rewound) {
+                    Utils.closeSilently(is);
+                    is = openBufferedStream(context, uri);
+                }
+                BitmapFactory.Options o = new BitmapFactory.Options();
+                o.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(is, null, o);
+                header.setSize(o.outWidth, o.outHeight);
+                Utils.closeSilently(is);
+                is = null;
+            } else if (!rewound) {
+                Utils.closeSilently(is);
+                is = null;
+            }
+
+            // Get width and height of stored bitmap
+            int w = header.getWidth();
+            int h = header.getHeight();
+            if (originalBounds != null) {
+                originalBounds.set(0, 0, w, h);
+            }
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            maxSideLength = fitToBudget(w, h, maxSideLength, useMin, header.isOpaque(),
+                    previewConfig, maxBytes, options);
+            int sampleSize = getSampleSize(w, h, maxSideLength, useMin);
+            if (sampleSize <= 0) {
+                return null;
+            }
+            if (loadOptions.headerCallback != null) {
+                loadOptions.headerCallback.onHeaderRead(header);
+            }
+            boolean hardware = isHardwareConfig(options.inPreferredConfig);
+            options.inMutable = !hardware;
+            options.inSampleSize = sampleSize;
+            if (exactSize) {
+                setExactScale(options, useMin ? Math.min(w, h) : Math.max(w, h), maxSideLength,
+                        header.getMimeType());
+            }
+            BitmapPool pool = BitmapPool.getDefault();
+            if (!hardware) {
+                pool.setInBitmap(options, w, h);
+            }
+            Bitmap bitmap;
+            try {
+                if (is == null) {
+                    // The stream could not be rewound, open it again
+                    bitmap = loadBitmap(context, uri, options);
+                } else {
+                    bitmap = BitmapFactory.decodeStream(is, null, options);
+                }
+                if (bitmap != options.inBitmap) {
+                    pool.put(options.inBitmap);
+                }
+            } catch (IllegalArgumentException e) {
+                // The decoder refused the pooled bitmap and consumed the
+                // stream, decode again into a new one
+                Log.w(LOGTAG, "cannot reuse bitmap for " + uri, e);
+                pool.put(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = loadBitmap(context, uri, options);
+            }
+            if (bitmap != null && options.inDensity != 0) {
+                // Draw like any other decoded bitmap, not at the made up density
+                bitmap.setDensity(context.getResources().getDisplayMetrics().densityDpi);
+            }
+            if (bitmap != null && diskKey != null) {
+                disk.put(diskKey, bitmap, header, maxSideLength);
+            }
+            return bitmap;
+        } catch (FileNotFoundException e) {
+            Log.e(LOGTAG, "FileNotFoundException for " + uri, e);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "failed to read image header for " + uri, e);
+        } finally {
+            Utils.closeSilently(is);
+        }
+        return null;
+    }
+
+    /**
+     * Starts decoding the crop preview of uri in the background, so that a
+     * {@link CropActivity} started for it soon after can show it at once.
+     * Call it as soon as it is likely that the image will be cropped, for
+     * example when it is long pressed.
+     */
+    public static void prefetch(Context context, Uri uri) {
+        prefetch(context, uri, PREVIEW_CONFIG_ARGB_8888);
+    }
+
+    /**
+     * Same as {@link #prefetch(Context, Uri)}, for a crop started with the
+     * {@link CropActivity#PREVIEW_CONFIG} extra set to previewConfig.
+     */
+    public static void prefetch(Context context, Uri uri, int previewConfig) {
+        if (context == null || uri == null) {
+            throw new IllegalArgumentException("bad argument to prefetch");
+        }
+        PreviewPrefetcher.getDefault().prefetch(context, uri, getScreenImageSize(context),
+                previewConfig);
+    }
+
+    /**
+     * Returns the longer side of the default display, the size previews are
+     * decoded at.
+     */
+    public static int getScreenImageSize(Context context) {
+        DisplayMetrics metrics = new DisplayMetrics();
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        wm.getDefaultDisplay().getMetrics(metrics);
+        return Math.max(metrics.heightPixels, metrics.widthPixels);
+    }
+
+    /**
+     * Picks the config to decode a w x h image in and sets it on options,
+     * then returns the side length, at most maxSideLength, that keeps the
+     * bitmap within maxBytes. An opaque image that does not fit is decoded as
+     * RGB_565 before it is decoded smaller.
+     */
+    private static int fitToBudget(int w, int h, int maxSideLength, boolean useMin,
+            boolean opaque, int previewConfig, long maxBytes, BitmapFactory.Options options) {
+        Bitmap.Config config = getPreviewConfig(opaque, previewConfig);
+        if (maxBytes > 0) {
+            int side = MemoryBudget.getMaxSideLength(w, h, maxSideLength, useMin, maxBytes,
+                    config);
+            if (side < maxSideLength && config == Bitmap.Config.ARGB_8888 && opaque) {
+                // give up color depth the image does not need before resolution
+                config = Bitmap.Config.RGB_565;
+                side = MemoryBudget.getMaxSideLength(w, h, maxSideLength, useMin, maxBytes,
+                        config);
+            }
+            maxSideLength = side;
+        }
+        options.inPreferredConfig = config;
+        return maxSideLength;
+    }
+
+    /**
+     * Decodes the preview stored in disk under key, if it was stored at the
+     * size and config the image would be decoded at now. Fills in
+     * originalBounds and header from the entry like a decode of the image
+     * would. Returns null if there is no such preview.
+     */
+    private static Bitmap loadCachedPreview(Context context, DiskPreviewCache disk, String key,
+            int maxSideLength, Rect originalBounds, ImageHeader header, boolean useMin,
+            int previewConfig, long maxBytes) {
+        DiskPreviewCache.Entry entry = disk.get(key);
+        if (entry == null) {
+            return null;
+        }
+        int w = entry.getWidth();
+        int h = entry.getHeight();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        int side = fitToBudget(w, h, maxSideLength, useMin, entry.isOpaque(), previewConfig,
+                maxBytes, options);
+        if (side != entry.getSideLength()) {
+            // the budget changed since, the stored preview is the wrong size
+            return null;
+        }
+        boolean hardware = isHardwareConfig(options.inPreferredConfig);
+        options.inMutable = !hardware;
+        BitmapPool pool = BitmapPool.getDefault();
+        if (!hardware) {
+            pool.setInBitmap(options, entry.getPreviewWidth(), entry.getPreviewHeight());
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = disk.decode(key, entry, options);
+            if (bitmap != options.inBitmap) {
+                pool.put(options.inBitmap);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w(LOGTAG, "cannot reuse bitmap for cached preview " + key, e);
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = disk.decode(key, entry, options);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        header.reset();
+        header.setSize(w, h);
+        header.setOpaque(entry.isOpaque());
+        if (entry.getOrientation() != 0) {
+            header.setOrientation(entry.getOrientation());
+        }
         if (originalBounds != null) {
-            originalBounds.set(storedBounds);
+            originalBounds.set(0, 0, w, h);
         }
-        int w = storedBounds.width();
-        int h = storedBounds.height();
+        return bitmap;
+    }
 
-        // If bitmap cannot be decoded, return null
-        if (w <= 0 || h <= 0) {
+    /**
+     * Returns the config to decode the preview of an image with the given
+     * header in, for one of the PREVIEW_CONFIG_ constants.
+     */
+    static Bitmap.Config getPreviewConfig(ImageHeader header, int previewConfig) {
+        return getPreviewConfig(header.isOpaque(), previewConfig);
+    }
+
+    private static Bitmap.Config getPreviewConfig(boolean opaque, int previewConfig) {
+        if (previewConfig == PREVIEW_CONFIG_HARDWARE) {
+            Bitmap.Config hardware = getHardwareConfig();
+            if (hardware != null) {
+                return hardware;
+            }
+            previewConfig = PREVIEW_CONFIG_LOW_MEMORY;
+        }
+        if (previewConfig == PREVIEW_CONFIG_LOW_MEMORY && opaque) {
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Returns Bitmap.Config.HARDWARE, or null if this device has none.
+     */
+    private static Bitmap.Config getHardwareConfig() {
+        if (Build.VERSION.SDK_INT < HARDWARE_CONFIG_SDK) {
             return null;
         }
+        try {
+            return Bitmap.Config.valueOf(HARDWARE_CONFIG_NAME);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isHardwareConfig(Bitmap.Config config) {
+        return config != null && HARDWARE_CONFIG_NAME.equals(config.name());
+    }
+
+    /**
+     * Returns true if the pixels of bitmap live in graphics memory only, so
+     * it cannot be read, changed or drawn by a software canvas.
+     */
+    public static boolean isHardwareBitmap(Bitmap bitmap) {
+        return bitmap != null && isHardwareConfig(bitmap.getConfig());
+    }
+
+    private static InputStream openBufferedStream(Context context, Uri uri)
+            throws FileNotFoundException {
+        InputStream is = context.getContentResolver().openInputStream(uri);
+        if (is == null) {
+            throw new FileNotFoundException("no stream for " + uri);
+        }
+        return new BufferedInputStream(is, STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Resets a marked stream, returning false if the header was read past
+     * the mark limit.
+     */
+    private static boolean rewind(InputStream is) {
+        try {
+            is.reset();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets up options so that a side of imageSide pixels decodes to exactly
+     * targetSide pixels: inSampleSize does the largest power of two step
+     * that does not go below the target and inDensity / inTargetDensity
+     * scale the subsampled image down the rest of the way. Does nothing for
+     * images that are already small enough.
+     */
+    private static void setExactScale(BitmapFactory.Options options, int imageSide,
+                                      int targetSide, String mimeType) {
+        options.inScaled = false;
+        if (imageSide <= targetSide) {
+            return;
+        }
+        int sampleSize = 1;
+        while (imageSide / (sampleSize * 2) >= targetSide) {
+            sampleSize <<= 1;
+        }
+        options.inSampleSize = sampleSize;
+        // libjpeg rounds subsampled sizes up, the other decoders round down
+        int sampledSide = JPEG_MIME_TYPE.equals(mimeType)
+                ? (imageSide + sampleSize - 1) / sampleSize : imageSide / sampleSize;
+        if (sampledSide != targetSide) {
+            options.inScaled = true;
+            options.inDensity = sampledSide;
+            options.inTargetDensity = targetSide;
+        }
+    }
+
+    /**
+     * Returns the power of two sample size that brings the chosen side of a
+     * w x h image within maxSideLength, or 0 if the image cannot be decoded.
+     */
+    private static int getSampleSize(int w, int h, int maxSideLength, boolean useMin) {
+        // If bitmap cannot be decoded, return 0
+        if (w <= 0 || h <= 0) {
+            return 0;
+        }
 
         // Find best downsampling size
         int imageSide = 0;
@@ -86,9 +509,9 @@ public class ImageLoader {
         // Make sure sample size is reasonable
         if (sampleSize <= 0 ||
                 0 >= (int) (Math.min(w, h) / sampleSize)) {
-            return null;
+            return 0;
         }
-        return loadDownsampledBitmap(context, uri, sampleSize);
+        return sampleSize;
     }
 
 
@@ -96,9 +519,17 @@ public class ImageLoader {
      * Returns the bounds of the bitmap stored at a given Url.
      */
     public static Rect loadBitmapBounds(Context context, Uri uri) {
+        MetadataCache cache = MetadataCache.getDefault();
+        MetadataCache.Metadata meta = cache.get(context, uri);
+        if (meta != null && meta.hasSize()) {
+            return new Rect(0, 0, meta.getWidth(), meta.getHeight());
+        }
         BitmapFactory.Options o = new BitmapFactory.Options();
         o.inJustDecodeBounds = true;
         loadBitmap(context, uri, o);
+        if (meta != null && o.outWidth > 0 && o.outHeight > 0) {
+            cache.setSize(meta, o.outWidth, o.outHeight);
+        }
         return new Rect(0, 0, o.outWidth, o.outHeight);
     }
 
@@ -133,18 +564,134 @@ public class ImageLoader {
     }
 
 
+    /**
+     * Returns a small preview of the image that is much cheaper to get than
+     * decoding it: the JPEG thumbnail embedded in the EXIF data found by
+     * header, or else the mini thumbnail MediaStore already has for uri.
+     * Returns null if there is neither, or if the thumbnail does not have
+     * the aspect ratio of the image.
+     */
+    public static Bitmap loadThumbnail(Context context, Uri uri, ImageHeader header) {
+        Bitmap thumbnail = null;
+        byte[] data = header.getThumbnail();
+        if (data != null) {
+            thumbnail = BitmapFactory.decodeByteArray(data, 0, data.length);
+        }
+        if (!isThumbnailFor(thumbnail, header)) {
+            thumbnail = loadMediaStoreThumbnail(context, uri);
+        }
+        if (!isThumbnailFor(thumbnail, header)) {
+            return null;
+        }
+        return thumbnail;
+    }
+
+    private static boolean isThumbnailFor(Bitmap thumbnail, ImageHeader header) {
+        if (thumbnail == null || !header.hasSize()) {
+            return false;
+        }
+        float aspect = header.getWidth() / (float) header.getHeight();
+        float thumbAspect = thumbnail.getWidth() / (float) thumbnail.getHeight();
+        return Math.abs(thumbAspect - aspect) <= THUMBNAIL_ASPECT_TOLERANCE * aspect;
+    }
+
+    /**
+     * Returns the MediaStore mini thumbnail of uri if it has been generated
+     * already, getting it would otherwise decode the whole image.
+     */
+    private static Bitmap loadMediaStoreThumbnail(Context context, Uri uri) {
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+                || !MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+            return null;
+        }
+        ContentResolver resolver = context.getContentResolver();
+        Cursor cursor = null;
+        try {
+            long id = ContentUris.parseId(uri);
+            if (id < 0) {
+                return null;
+            }
+            cursor = MediaStore.Images.Thumbnails.queryMiniThumbnail(resolver, id,
+                    MediaStore.Images.Thumbnails.MINI_KIND,
+                    new String[]{MediaStore.Images.Thumbnails.IMAGE_ID});
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            return MediaStore.Images.Thumbnails.getThumbnail(resolver, id,
+                    MediaStore.Images.Thumbnails.MINI_KIND, null);
+        } catch (NumberFormatException e) {
+            // not an item uri
+        } catch (UnsupportedOperationException e) {
+            // not an item uri
+        } catch (SQLiteException e) {
+            Log.w(LOGTAG, "cannot query thumbnail for " + uri, e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        return null;
+    }
+
     /**
      * Returns the rotation of image at the given URI as one of 0, 90, 180,
      * 270.  Defaults to 0.
      */
     public static int getMetadataRotation(Context context, Uri uri) {
-        int orientation = getMetadataOrientation(context, uri);
+        return getRotation(getMetadataOrientation(context, uri));
+    }
+
+    /**
+     * Same as {@link #getMetadataRotation(Context, Uri)}, but takes the
+     * orientation from an already read header and only asks the content
+     * provider when the header has none, so the image is not opened again.
+     */
+    public static int getMetadataRotation(Context context, Uri uri, ImageHeader header) {
+        return getMetadataRotation(context, uri, header,
+                MetadataCache.getDefault().get(context, uri));
+    }
+
+    /**
+     * Same as {@link #getMetadataRotation(Context, Uri, ImageHeader)}, with
+     * the metadata the load already got, see {@link LoadOptions#outMetadata}.
+     */
+    static int getMetadataRotation(Context context, Uri uri, ImageHeader header,
+            MetadataCache.Metadata meta) {
+        MetadataCache cache = MetadataCache.getDefault();
+        if (meta != null) {
+            cache.update(meta, header);
+        }
+        if (header.hasOrientation()) {
+            return getRotation(header.getOrientation());
+        }
+        if (meta != null && meta.hasOrientation()) {
+            return getRotation(meta.getOrientation());
+        }
+        int ori = queryOrientation(context, uri);
+        if (ori == ORI_UNKNOWN) {
+            // the header was read, so the image has no EXIF orientation
+            ori = ORI_NORMAL;
+        }
+        if (meta != null) {
+            cache.setOrientation(meta, ori);
+        }
+        return getRotation(ori);
+    }
+
+    /**
+     * Returns the rotation part of an orientation, like
+     * ExifInterface.getRotationDegrees. The mirrored orientations are a
+     * horizontal flip followed by a clockwise rotation, the crop only applies
+     * the rotation.
+     */
+    static int getRotation(int orientation) {
         switch (orientation) {
             case ORI_ROTATE_90:
+            case ORI_TRANSVERSE:
                 return 90;
             case ORI_ROTATE_180:
+            case ORI_FLIP_VERT:
                 return 180;
             case ORI_ROTATE_270:
+            case ORI_TRANSPOSE:
                 return 270;
             default:
                 return 0;
@@ -159,25 +706,56 @@ public class ImageLoader {
         if (uri == null || context == null) {
             throw new IllegalArgumentException("bad argument to getOrientation");
         }
+        MetadataCache cache = MetadataCache.getDefault();
+        MetadataCache.Metadata meta = cache.get(context, uri);
+        if (meta != null && meta.hasOrientation()) {
+            return meta.getOrientation();
+        }
+        int ori = readMetadataOrientation(context, uri);
+        if (meta != null) {
+            cache.setOrientation(meta, ori);
+        }
+        return ori;
+    }
 
+    private static int readMetadataOrientation(Context context, Uri uri) {
         // First try to find orientation data in Gallery's ContentProvider.
+        int ori = queryOrientation(context, uri);
+        if (ori != ORI_UNKNOWN) {
+            return ori;
+        }
+        // Fall back to the EXIF data of the image itself, which only needs
+        // its first few hundred bytes.
+        InputStream is = null;
+        try {
+            is = context.getContentResolver().openInputStream(uri);
+            if (is != null) {
+                ImageHeader header = new ImageHeader();
+                header.readOrientation(new BufferedInputStream(is, HEADER_BUFFER_SIZE));
+                return header.getOrientation();
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to read EXIF orientation", e);
+        } catch (SecurityException e) {
+            Log.w(LOGTAG, "Failed to read EXIF orientation", e);
+        } finally {
+            Utils.closeSilently(is);
+        }
+        return ORI_NORMAL;
+    }
+
+    /**
+     * Returns the orientation stored in the content provider for uri, or
+     * ORI_UNKNOWN if it has none.
+     */
+    private static int queryOrientation(Context context, Uri uri) {
         Cursor cursor = null;
         try {
             cursor = context.getContentResolver().query(uri,
                     new String[]{MediaStore.Images.ImageColumns.ORIENTATION},
                     null, null, null);
             if (cursor != null && cursor.moveToNext()) {
-                int ori = cursor.getInt(0);
-                switch (ori) {
-                    case 90:
-                        return ORI_ROTATE_90;
-                    case 270:
-                        return ORI_ROTATE_270;
-                    case 180:
-                        return ORI_ROTATE_180;
-                    default:
-                        return ORI_NORMAL;
-                }
+                return getOrientationForDegrees(cursor.getInt(0));
             }
         } catch (SQLiteException e) {
             // Do nothing
@@ -190,53 +768,25 @@ public class ImageLoader {
         } finally {
             if (cursor != null) cursor.close();
         }
-        ExifInterface exif = null;
-        InputStream is = null;
-        // Fall back to checking EXIF tags in file or input stream.
-        try {
-            if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
-                String mimeType = getMimeType(uri);
-                if (!JPEG_MIME_TYPE.equals(mimeType)) {
-                    return ORI_NORMAL;
-                }
-                String path = uri.getPath();
-                exif = new ExifInterface(path);
-                return parseExif(exif);
-                //exif.readExif(path);
-            }
-        } catch (IOException e) {
-            Log.w(LOGTAG, "Failed to read EXIF orientation", e);
-        } finally {
-            try {
-                if (is != null) {
-                    is.close();
-                }
-            } catch (IOException e) {
-                Log.w(LOGTAG, "Failed to close InputStream", e);
-            }
-        }
-        return ORI_NORMAL;
+        return ORI_UNKNOWN;
     }
 
-    private static int parseExif(ExifInterface exif) {
-        Integer tagval = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ORI_NORMAL);
-        if (tagval != null) {
-            int orientation = tagval;
-            switch (orientation) {
-                case ORI_NORMAL:
-                case ORI_ROTATE_90:
-                case ORI_ROTATE_180:
-                case ORI_ROTATE_270:
-                case ORI_FLIP_HOR:
-                case ORI_FLIP_VERT:
-                case ORI_TRANSPOSE:
-                case ORI_TRANSVERSE:
-                    return orientation;
-                default:
-                    return ORI_NORMAL;
-            }
+    /**
+     * Returns the ORI_ constant for a clockwise rotation in degrees, such as
+     * a MediaStore orientation. It is also the EXIF orientation tag that
+     * shows an image rotated by degrees.
+     */
+    static int getOrientationForDegrees(int degrees) {
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return ORI_ROTATE_90;
+            case 270:
+                return ORI_ROTATE_270;
+            case 180:
+                return ORI_ROTATE_180;
+            default:
+                return ORI_NORMAL;
         }
-        return ORI_NORMAL;
     }
 
     /**
@@ -0,0 +1,498 @@
+package com.android.gallery3d.crop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A baseline JPEG encoder that takes the image sixteen rows at a time, so a
+ * large image can be encoded from stripes that never exist in memory
+ * together. It writes JFIF with 4:2:0 chroma subsampling, the quantization
+ * tables of the JPEG standard scaled by quality the way libjpeg does, and the
+ * standard Huffman tables, so it needs no pass over the whole image.
+ */
+class JpegStreamEncoder implements StripeEncoder {
+    private static final int MCU_SIZE = 16;
+
+    /**
+     * The natural index of the coefficient at each zigzag position.
+     */
+    static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int[] LUMINANCE_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] CHROMINANCE_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    private static final int[] DC_LUMINANCE_BITS = {
+            0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0
+    };
+    private static final int[] DC_LUMINANCE_VALUES = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11
+    };
+    private static final int[] DC_CHROMINANCE_BITS = {
+            0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0
+    };
+    private static final int[] DC_CHROMINANCE_VALUES = DC_LUMINANCE_VALUES;
+    private static final int[] AC_LUMINANCE_BITS = {
+            0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d
+    };
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] AC_CHROMINANCE_BITS = {
+            0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77
+    };
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+            0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+            0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+            0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+            0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+            0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    // scale factors of the AAN forward DCT
+    private static final float[] AAN_SCALE = {
+            1.0f, 1.387039845f, 1.306562965f, 1.175875602f,
+            1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+    };
+
+    /**
+     * The code and length of each symbol of a Huffman table, built from the
+     * BITS and HUFFVAL lists of a DHT segment.
+     */
+    static final class HuffmanTable {
+        final int[] mBits;
+        final int[] mValues;
+        final int[] mCodes = new int[256];
+        final int[] mLengths = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            mBits = bits;
+            mValues = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    mCodes[values[k]] = code;
+                    mLengths[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    /**
+     * Writes entropy coded data, stuffing a zero byte after every 0xFF.
+     */
+    static final class BitWriter {
+        private final OutputStream mOut;
+        private final byte[] mBuffer = new byte[8192];
+        private int mCount = 0;
+        private int mBits = 0;
+        private int mBitCount = 0;
+
+        BitWriter(OutputStream out) {
+            mOut = out;
+        }
+
+        void writeBits(int value, int length) throws IOException {
+            mBits = (mBits << length) | (value & ((1 << length) - 1));
+            mBitCount += length;
+            while (mBitCount >= 8) {
+                int b = (mBits >> (mBitCount - 8)) & 0xFF;
+                writeByte(b);
+                if (b == 0xFF) {
+                    writeByte(0);
+                }
+                mBitCount -= 8;
+            }
+        }
+
+        /**
+         * Encodes one block of quantized coefficients in zigzag order and
+         * returns its DC value, the prediction for the next block.
+         */
+        int writeBlock(int[] zigzag, int previousDc, HuffmanTable dc, HuffmanTable ac)
+                throws IOException {
+            int diff = zigzag[0] - previousDc;
+            int size = getBitLength(diff);
+            writeBits(dc.mCodes[size], dc.mLengths[size]);
+            if (size > 0) {
+                writeBits(diff < 0 ? diff - 1 : diff, size);
+            }
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int v = zigzag[k];
+                if (v == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    writeBits(ac.mCodes[0xF0], ac.mLengths[0xF0]);
+                    run -= 16;
+                }
+                size = getBitLength(v);
+                int symbol = (run << 4) | size;
+                writeBits(ac.mCodes[symbol], ac.mLengths[symbol]);
+                writeBits(v < 0 ? v - 1 : v, size);
+                run = 0;
+            }
+            if (run > 0) {
+                writeBits(ac.mCodes[0], ac.mLengths[0]);
+            }
+            return zigzag[0];
+        }
+
+        /**
+         * Pads the last byte with one bits and writes out the buffer.
+         */
+        void flush() throws IOException {
+            if (mBitCount > 0) {
+                writeBits(0x7F, 8 - mBitCount);
+            }
+            mOut.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                mOut.write(mBuffer, 0, mCount);
+                mCount = 0;
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        private static int getBitLength(int value) {
+            return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+        }
+    }
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mLuminanceQuant = new int[64];
+    private final int[] mChrominanceQuant = new int[64];
+    private final float[] mLuminanceDivisors = new float[64];
+    private final float[] mChrominanceDivisors = new float[64];
+    private final HuffmanTable mDcLuminance =
+            new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private final HuffmanTable mAcLuminance =
+            new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private final HuffmanTable mDcChrominance =
+            new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private final HuffmanTable mAcChrominance =
+            new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+    private final BitWriter mWriter;
+    // one MCU row of each component, the chroma ones already subsampled
+    private final float[] mY;
+    private final float[] mCb;
+    private final float[] mCr;
+    private final int mMcuColumns;
+    private final float[] mBlock = new float[64];
+    private final int[] mZigzag = new int[64];
+    private int mDcY = 0;
+    private int mDcCb = 0;
+    private int mDcCr = 0;
+    private int mRows = 0;
+    private boolean mStarted = false;
+
+    /**
+     * @param quality 1 to 100, like Bitmap.compress().
+     */
+    JpegStreamEncoder(OutputStream out, int width, int height, int quality) {
+        if (out == null || width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF) {
+            throw new IllegalArgumentException("bad argument to JpegStreamEncoder");
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mWriter = new BitWriter(out);
+        mMcuColumns = (width + MCU_SIZE - 1) / MCU_SIZE;
+        mY = new float[mMcuColumns * MCU_SIZE * MCU_SIZE];
+        mCb = new float[mMcuColumns * 8 * 8];
+        mCr = new float[mMcuColumns * 8 * 8];
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        setQuant(LUMINANCE_QUANT, scale, mLuminanceQuant, mLuminanceDivisors);
+        setQuant(CHROMINANCE_QUANT, scale, mChrominanceQuant, mChrominanceDivisors);
+    }
+
+    private static void setQuant(int[] base, int scale, int[] quant, float[] divisors) {
+        for (int i = 0; i < 64; i++) {
+            int q = (base[i] * scale + 50) / 100;
+            quant[i] = Math.max(1, Math.min(255, q));
+            divisors[i] = 1f / (quant[i] * AAN_SCALE[i >> 3] * AAN_SCALE[i & 7] * 8f);
+        }
+    }
+
+    @Override
+    public int getRowAlignment() {
+        return MCU_SIZE;
+    }
+
+    @Override
+    public void writeRows(int[] pixels, int rows) throws IOException {
+        if (rows <= 0 || mRows + rows > mHeight || pixels.length < rows * mWidth
+                || (rows % MCU_SIZE != 0 && mRows + rows != mHeight)) {
+            throw new IllegalArgumentException("bad argument to writeRows");
+        }
+        if (!mStarted) {
+            writeHeader();
+        }
+        for (int y = 0; y < rows; y += MCU_SIZE) {
+            convertMcuRow(pixels, y, Math.min(MCU_SIZE, rows - y));
+            encodeMcuRow();
+        }
+        mRows += rows;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mRows != mHeight) {
+            throw new IllegalStateException("wrote " + mRows + " of " + mHeight + " rows");
+        }
+        mWriter.flush();
+        mOut.write(0xFF);
+        mOut.write(0xD9);
+        mOut.flush();
+    }
+
+    /**
+     * Converts rows starting at row y of pixels to YCbCr, repeating the last
+     * row and column to fill the MCUs, and subsamples the chroma.
+     */
+    private void convertMcuRow(int[] pixels, int y, int rows) {
+        int stride = mMcuColumns * MCU_SIZE;
+        Arrays.fill(mCb, 0);
+        Arrays.fill(mCr, 0);
+        for (int dy = 0; dy < MCU_SIZE; dy++) {
+            int row = (y + Math.min(dy, rows - 1)) * mWidth;
+            int chromaRow = (dy >> 1) * (stride >> 1);
+            for (int x = 0; x < stride; x++) {
+                int c = pixels[row + Math.min(x, mWidth - 1)];
+                int r = (c >> 16) & 0xFF;
+                int g = (c >> 8) & 0xFF;
+                int b = c & 0xFF;
+                mY[dy * stride + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+                int i = chromaRow + (x >> 1);
+                mCb[i] += -0.168736f * r - 0.331264f * g + 0.5f * b;
+                mCr[i] += 0.5f * r - 0.418688f * g - 0.081312f * b;
+            }
+        }
+        for (int i = 0; i < mCb.length; i++) {
+            // the average of four pixels, already centered on 0
+            mCb[i] *= 0.25f;
+            mCr[i] *= 0.25f;
+        }
+    }
+
+    private void encodeMcuRow() throws IOException {
+        int stride = mMcuColumns * MCU_SIZE;
+        int chromaStride = stride >> 1;
+        for (int mcu = 0; mcu < mMcuColumns; mcu++) {
+            int x = mcu * MCU_SIZE;
+            mDcY = encodeBlock(mY, x, stride, mLuminanceDivisors, mDcY, mDcLuminance,
+                    mAcLuminance);
+            mDcY = encodeBlock(mY, x + 8, stride, mLuminanceDivisors, mDcY, mDcLuminance,
+                    mAcLuminance);
+            mDcY = encodeBlock(mY, 8 * stride + x, stride, mLuminanceDivisors, mDcY,
+                    mDcLuminance, mAcLuminance);
+            mDcY = encodeBlock(mY, 8 * stride + x + 8, stride, mLuminanceDivisors, mDcY,
+                    mDcLuminance, mAcLuminance);
+            mDcCb = encodeBlock(mCb, mcu * 8, chromaStride, mChrominanceDivisors, mDcCb,
+                    mDcChrominance, mAcChrominance);
+            mDcCr = encodeBlock(mCr, mcu * 8, chromaStride, mChrominanceDivisors, mDcCr,
+                    mDcChrominance, mAcChrominance);
+        }
+    }
+
+    private int encodeBlock(float[] plane, int offset, int stride, float[] divisors,
+            int previousDc, HuffmanTable dc, HuffmanTable ac) throws IOException {
+        float[] block = mBlock;
+        for (int y = 0; y < 8; y++) {
+            System.arraycopy(plane, offset + y * stride, block, y * 8, 8);
+        }
+        forwardDct(block);
+        for (int k = 0; k < 64; k++) {
+            int i = ZIGZAG[k];
+            mZigzag[k] = Math.round(block[i] * divisors[i]);
+        }
+        return mWriter.writeBlock(mZigzag, previousDc, dc, ac);
+    }
+
+    /**
+     * The floating point AAN forward DCT of libjpeg, in place. The results
+     * are scaled by 8 and by AAN_SCALE of their row and column, which the
+     * quantization divisors undo.
+     */
+    private static void forwardDct(float[] d) {
+        for (int pass = 0; pass < 2; pass++) {
+            // rows first, then columns
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int line = 0; line < 8; line++) {
+                int o = line * next;
+                float tmp0 = d[o] + d[o + 7 * step];
+                float tmp7 = d[o] - d[o + 7 * step];
+                float tmp1 = d[o + step] + d[o + 6 * step];
+                float tmp6 = d[o + step] - d[o + 6 * step];
+                float tmp2 = d[o + 2 * step] + d[o + 5 * step];
+                float tmp5 = d[o + 2 * step] - d[o + 5 * step];
+                float tmp3 = d[o + 3 * step] + d[o + 4 * step];
+                float tmp4 = d[o + 3 * step] - d[o + 4 * step];
+
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                d[o] = tmp10 + tmp11;
+                d[o + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                d[o + 2 * step] = tmp13 + z1;
+                d[o + 6 * step] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                d[o + 5 * step] = z13 + z2;
+                d[o + 3 * step] = z13 - z2;
+                d[o + step] = z11 + z4;
+                d[o + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        mStarted = true;
+        OutputStream out = mOut;
+        writeMarker(out, 0xD8);
+        // JFIF 1.01, no density, no thumbnail
+        writeMarker(out, 0xE0);
+        writeShort(out, 16);
+        out.write(new byte[] {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        writeMarker(out, 0xDB);
+        writeShort(out, 2 + 2 * 65);
+        writeQuant(out, 0, mLuminanceQuant);
+        writeQuant(out, 1, mChrominanceQuant);
+        writeMarker(out, 0xC0);
+        writeShort(out, 8 + 3 * 3);
+        out.write(8);
+        writeShort(out, mHeight);
+        writeShort(out, mWidth);
+        out.write(3);
+        out.write(new byte[] {1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+        writeMarker(out, 0xC4);
+        writeShort(out, 2 + getHuffmanLength(mDcLuminance) + getHuffmanLength(mAcLuminance)
+                + getHuffmanLength(mDcChrominance) + getHuffmanLength(mAcChrominance));
+        writeHuffman(out, 0x00, mDcLuminance);
+        writeHuffman(out, 0x10, mAcLuminance);
+        writeHuffman(out, 0x01, mDcChrominance);
+        writeHuffman(out, 0x11, mAcChrominance);
+        writeMarker(out, 0xDA);
+        writeShort(out, 6 + 2 * 3);
+        out.write(3);
+        out.write(new byte[] {1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private static void writeQuant(OutputStream out, int id, int[] quant) throws IOException {
+        out.write(id);
+        for (int k = 0; k < 64; k++) {
+            out.write(quant[ZIGZAG[k]]);
+        }
+    }
+
+    private static int getHuffmanLength(HuffmanTable table) {
+        return 1 + 16 + table.mValues.length;
+    }
+
+    static void writeHuffman(OutputStream out, int id, HuffmanTable table) throws IOException {
+        out.write(id);
+        for (int bits : table.mBits) {
+            out.write(bits);
+        }
+        for (int value : table.mValues) {
+            out.write(value);
+        }
+    }
+
+    static void writeMarker(OutputStream out, int marker) throws IOException {
+        out.write(0xFF);
+        out.write(marker);
+    }
+
+    static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value >> 8);
+        out.write(value);
+    }
+}
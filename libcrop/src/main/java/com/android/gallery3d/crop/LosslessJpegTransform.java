@@ -0,0 +1,1041 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.Rect;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Crops and rotates a baseline JPEG without decoding it to pixels, like
+ * jpegtran -crop and -rotate.
+ * The quantized DCT blocks of the MCUs under the crop are entropy decoded
+ * and written out again unchanged, so the result has exactly the quality of
+ * the original and takes a fraction of the time of a decode and re-encode.
+ * <p>
+ * Blocks cannot be split, so the left and top edges of the crop are moved
+ * out to the nearest MCU boundary, at most 15 pixels. The right and bottom
+ * edges are kept, the decoder hides the rest of their MCUs.
+ * <p>
+ * The input is read twice: once to count the Huffman symbols of the cropped
+ * blocks, whose DC differences change with their neighbors, and once to
+ * write them with tables built for those counts.
+ * <p>
+ * A rotation by 90, 180 or 270 degrees is done on the blocks: each one is
+ * transposed and the signs of its odd frequencies flipped, which rotates
+ * its pixels exactly, and the blocks are written in rotated order. That
+ * needs the coefficients of the crop in memory, see
+ * {@link #getCoefficientBytes(Rect)}. Edges of the crop that become the left
+ * or top edge of the output are moved to MCU boundaries too, inwards at the
+ * edge of the image where the MCU is only partly filled, like jpegtran -trim.
+ * <p>
+ * Quantization tables, JFIF,
+ * ICC profile and Adobe segments are copied, EXIF is dropped like the
+ * re-encoding save path does. Progressive, arithmetic coded, 12 bit and
+ * multi scan JPEGs are not supported.
+ */
+class LosslessJpegTransform {
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int DHT = 0xC4;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DRI = 0xDD;
+    private static final int APP0 = 0xE0;
+    private static final int APP2 = 0xE2;
+    private static final int APP14 = 0xEE;
+    private static final int RST0 = 0xD0;
+    private static final int RST7 = 0xD7;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Opens the JPEG to transform. It is opened twice.
+     */
+    interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Receives the blocks of the crop in the order they are coded.
+     */
+    interface BlockSink {
+        /**
+         * @param component index of the component in the frame.
+         * @param column    column of the block in the component, counted
+         *                  from the left edge of the crop.
+         * @param row       row of the block, counted from the top of the crop.
+         * @param zigzag    the quantized coefficients in zigzag order, only
+         *                  valid during the call.
+         */
+        void block(int component, int column, int row, int[] zigzag) throws IOException;
+    }
+
+    private static final class Component {
+        int mId;
+        int mH;
+        int mV;
+        int mQuantTable;
+        int mDcTable;
+        int mAcTable;
+        int mDcPrediction;
+    }
+
+    /**
+     * A Huffman table of the input, set up for decoding as in Annex F.2.2.3
+     * of the JPEG standard, with a lookup table for codes up to 8 bits.
+     */
+    private static final class DecodeTable {
+        final int[] mMaxCode = new int[18];
+        final int[] mValuePointer = new int[17];
+        final int[] mMinCode = new int[17];
+        final int[] mValues;
+        // length << 8 | value for each 8 bit prefix, 0 if the code is longer
+        final int[] mLookup = new int[256];
+
+        DecodeTable(int[] bits, int[] values) {
+            mValues = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                mValuePointer[length] = k;
+                mMinCode[length] = code;
+                int count = bits[length - 1];
+                if (length <= 8) {
+                    for (int i = 0; i < count; i++) {
+                        int prefix = (code + i) << (8 - length);
+                        for (int j = 0; j < 1 << (8 - length); j++) {
+                            mLookup[prefix + j] = (length << 8) | values[k + i];
+                        }
+                    }
+                }
+                code += count;
+                k += count;
+                mMaxCode[length] = count > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            mMaxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reads entropy coded data, removing stuffed bytes and stopping at
+     * markers.
+     */
+    private static final class BitReader {
+        private final InputStream mIn;
+        private int mBits = 0;
+        private int mBitCount = 0;
+        private int mMarker = -1;
+
+        BitReader(InputStream in) {
+            mIn = in;
+        }
+
+        private void fill(int n) throws IOException {
+            while (mBitCount < n) {
+                int b = 0;
+                if (mMarker < 0) {
+                    b = readByte(mIn);
+                    if (b == 0xFF) {
+                        int next = readByte(mIn);
+                        while (next == 0xFF) {
+                            next = readByte(mIn);
+                        }
+                        if (next != 0) {
+                            // a marker, pad with zeros until it is handled
+                            mMarker = next;
+                            b = 0;
+                        }
+                    }
+                }
+                mBits = (mBits << 8) | b;
+                mBitCount += 8;
+            }
+        }
+
+        int readBits(int n) throws IOException {
+            if (n == 0) {
+                return 0;
+            }
+            fill(n);
+            mBitCount -= n;
+            return (mBits >> mBitCount) & ((1 << n) - 1);
+        }
+
+        int decode(DecodeTable table) throws IOException {
+            fill(8);
+            int entry = table.mLookup[(mBits >> (mBitCount - 8)) & 0xFF];
+            if (entry != 0) {
+                mBitCount -= entry >> 8;
+                return entry & 0xFF;
+            }
+            int code = readBits(1);
+            int length = 1;
+            while (code > table.mMaxCode[length]) {
+                code = (code << 1) | readBits(1);
+                length++;
+            }
+            if (length > 16) {
+                throw new IOException("bad Huffman code");
+            }
+            return table.mValues[table.mValuePointer[length] + code - table.mMinCode[length]];
+        }
+
+        /**
+         * Skips to the restart marker that ends an interval.
+         */
+        void restart() throws IOException {
+            mBitCount = 0;
+            mBits = 0;
+            if (mMarker < 0) {
+                int b = readByte(mIn);
+                while (true) {
+                    while (b != 0xFF) {
+                        b = readByte(mIn);
+                    }
+                    b = readByte(mIn);
+                    if (b != 0 && b != 0xFF) {
+                        break;
+                    }
+                }
+                mMarker = b;
+            }
+            if (mMarker < RST0 || mMarker > RST7) {
+                throw new IOException("expected restart marker, found " + mMarker);
+            }
+            mMarker = -1;
+        }
+    }
+
+    private final ArrayList<byte[]> mKeptSegments = new ArrayList<byte[]>();
+    private final ArrayList<byte[]> mQuantSegments = new ArrayList<byte[]>();
+    private final DecodeTable[] mDcTables = new DecodeTable[4];
+    private final DecodeTable[] mAcTables = new DecodeTable[4];
+    private Component[] mComponents;
+    // the components in the order of the scan
+    private Component[] mScan;
+    private int mFrameMarker;
+    private int mWidth;
+    private int mHeight;
+    private int mRestartInterval;
+    private int mMcuWidth;
+    private int mMcuHeight;
+    private int mMcusPerRow;
+    private final int[] mZigzag = new int[64];
+    private byte[] mExifSegment = null;
+
+    /**
+     * Reads the header of in up to the start of the scan data. Returns
+     * false if the image is not a JPEG that can be transformed.
+     */
+    boolean readHeader(InputStream in) throws IOException {
+        mKeptSegments.clear();
+        mQuantSegments.clear();
+        mComponents = null;
+        mScan = null;
+        mRestartInterval = 0;
+        if (readByte(in) != 0xFF || readByte(in) != SOI) {
+            return false;
+        }
+        while (true) {
+            int marker = readMarker(in);
+            if (marker == EOI) {
+                return false;
+            }
+            byte[] segment = new byte[readShort(in) - 2];
+            readFully(in, segment);
+            switch (marker) {
+                case SOF0:
+                case SOF1:
+                    if (!readFrame(marker, segment)) {
+                        return false;
+                    }
+                    break;
+                case DHT:
+                    readHuffmanTables(segment);
+                    break;
+                case DQT:
+                    mQuantSegments.add(segment);
+                    break;
+                case DRI:
+                    mRestartInterval = ((segment[0] & 0xFF) << 8) | (segment[1] & 0xFF);
+                    break;
+                case SOS:
+                    return readScan(segment);
+                case APP0:
+                case APP2:
+                case APP14:
+                    byte[] kept = new byte[segment.length + 1];
+                    kept[0] = (byte) marker;
+                    System.arraycopy(segment, 0, kept, 1, segment.length);
+                    mKeptSegments.add(kept);
+                    break;
+                default:
+                    if (marker >= 0xC2 && marker <= 0xCF && marker != DHT && marker != 0xC8
+                            && marker != 0xCC) {
+                        // progressive, lossless or arithmetic coded
+                        return false;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private boolean readFrame(int marker, byte[] s) {
+        if ((s[0] & 0xFF) != 8) {
+            return false;
+        }
+        mFrameMarker = marker;
+        mHeight = ((s[1] & 0xFF) << 8) | (s[2] & 0xFF);
+        mWidth = ((s[3] & 0xFF) << 8) | (s[4] & 0xFF);
+        int count = s[5] & 0xFF;
+        if (mWidth == 0 || mHeight == 0 || count == 0 || s.length < 6 + count * 3) {
+            return false;
+        }
+        mComponents = new Component[count];
+        int maxH = 1;
+        int maxV = 1;
+        for (int i = 0; i < count; i++) {
+            Component c = new Component();
+            c.mId = s[6 + i * 3] & 0xFF;
+            c.mH = count == 1 ? 1 : (s[7 + i * 3] >> 4) & 0xF;
+            c.mV = count == 1 ? 1 : s[7 + i * 3] & 0xF;
+            c.mQuantTable = s[8 + i * 3] & 0xFF;
+            if (c.mH < 1 || c.mH > 4 || c.mV < 1 || c.mV > 4) {
+                return false;
+            }
+            maxH = Math.max(maxH, c.mH);
+            maxV = Math.max(maxV, c.mV);
+            mComponents[i] = c;
+        }
+        mMcuWidth = 8 * maxH;
+        mMcuHeight = 8 * maxV;
+        mMcusPerRow = (mWidth + mMcuWidth - 1) / mMcuWidth;
+        return true;
+    }
+
+    private void readHuffmanTables(byte[] s) throws IOException {
+        int p = 0;
+        while (p < s.length) {
+            int tc = (s[p] >> 4) & 0xF;
+            int th = s[p] & 0xF;
+            if (th > 3 || p + 17 > s.length) {
+                throw new IOException("bad Huffman table");
+            }
+            int[] bits = new int[16];
+            int total = 0;
+            for (int i = 0; i < 16; i++) {
+                bits[i] = s[p + 1 + i] & 0xFF;
+                total += bits[i];
+            }
+            if (total > 256 || p + 17 + total > s.length) {
+                throw new IOException("bad Huffman table");
+            }
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = s[p + 17 + i] & 0xFF;
+            }
+            DecodeTable table = new DecodeTable(bits, values);
+            if (tc == 0) {
+                mDcTables[th] = table;
+            } else {
+                mAcTables[th] = table;
+            }
+            p += 17 + total;
+        }
+    }
+
+    private boolean readScan(byte[] s) {
+        int count = s[0] & 0xFF;
+        if (mComponents == null || count != mComponents.length || s.length < 4 + count * 2) {
+            // only single scan images have all blocks in one pass
+            return false;
+        }
+        mScan = new Component[count];
+        for (int i = 0; i < count; i++) {
+            int id = s[1 + i * 2] & 0xFF;
+            Component c = findComponent(id);
+            if (c == null) {
+                return false;
+            }
+            c.mDcTable = (s[2 + i * 2] >> 4) & 0xF;
+            c.mAcTable = s[2 + i * 2] & 0xF;
+            if (c.mDcTable > 3 || c.mAcTable > 3 || mDcTables[c.mDcTable] == null
+                    || mAcTables[c.mAcTable] == null) {
+                return false;
+            }
+            mScan[i] = c;
+        }
+        int p = 1 + count * 2;
+        return (s[p] & 0xFF) == 0 && (s[p + 1] & 0xFF) == 63 && (s[p + 2] & 0xFF) == 0;
+    }
+
+    private Component findComponent(int id) {
+        for (Component c : mComponents) {
+            if (c.mId == id) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Adds an EXIF segment with only the given orientation tag to the
+     * output, or none for 0.
+     */
+    void setExifOrientation(int orientation) {
+        mExifSegment = orientation == 0 ? null
+                : ExifOrientationOutputStream.createSegment(orientation);
+    }
+
+    /**
+     * Moves the left and top of crop out to MCU boundaries and clips it to
+     * the image, and aligns the edges that a rotation by degrees turns into
+     * the left or top edge. Returns false if nothing is left.
+     */
+    boolean alignCrop(Rect crop, int degrees) {
+        if (!crop.intersect(0, 0, mWidth, mHeight)) {
+            return false;
+        }
+        crop.left = crop.left / mMcuWidth * mMcuWidth;
+        crop.top = crop.top / mMcuHeight * mMcuHeight;
+        if (degrees == 90 || degrees == 180) {
+            crop.bottom = alignEnd(crop.bottom, mMcuHeight, mHeight);
+        }
+        if (degrees == 180 || degrees == 270) {
+            crop.right = alignEnd(crop.right, mMcuWidth, mWidth);
+        }
+        return !crop.isEmpty();
+    }
+
+    private static int alignEnd(int end, int mcuSize, int limit) {
+        int aligned = (end + mcuSize - 1) / mcuSize * mcuSize;
+        // past the image the MCU only holds padding, leave it out then
+        return aligned <= limit ? aligned : end / mcuSize * mcuSize;
+    }
+
+    /**
+     * Returns the bytes the coefficients of an aligned crop take in memory,
+     * which a rotation needs.
+     */
+    long getCoefficientBytes(Rect crop) {
+        long blocks = 0;
+        for (Component c : mComponents) {
+            blocks += (long) getMcuColumns(crop) * c.mH * getMcuRows(crop) * c.mV;
+        }
+        return blocks * 64 * 2;
+    }
+
+    private int getMcuColumns(Rect crop) {
+        return (crop.right + mMcuWidth - 1) / mMcuWidth - crop.left / mMcuWidth;
+    }
+
+    private int getMcuRows(Rect crop) {
+        return (crop.bottom + mMcuHeight - 1) / mMcuHeight - crop.top / mMcuHeight;
+    }
+
+    /**
+     * Crops the JPEG from source to out, see the class comment. crop is in
+     * the pixels of the stored image, before any EXIF orientation, and is
+     * set to the part that was actually written. Returns false if the image
+     * is not supported, nothing has been written then.
+     */
+    boolean crop(Source source, Rect crop, OutputStream out) throws IOException {
+        // count the symbols the cropped blocks need
+        final int[][] dcCounts = new int[4][257];
+        final int[][] acCounts = new int[4][257];
+        InputStream in = new BufferedInputStream(source.open(), BUFFER_SIZE);
+        try {
+            if (!readHeader(in) || !alignCrop(crop, 0)) {
+                return false;
+            }
+            final int[] predictions = new int[mComponents.length];
+            readBlocks(in, crop, new BlockSink() {
+                @Override
+                public void block(int component, int column, int row, int[] zigzag) {
+                    Component c = mComponents[component];
+                    countBlock(zigzag, predictions[component], dcCounts[c.mDcTable],
+                            acCounts[c.mAcTable]);
+                    predictions[component] = zigzag[0];
+                }
+            });
+        } finally {
+            Utils.closeSilently(in);
+        }
+        final JpegStreamEncoder.HuffmanTable[] dcTables = new JpegStreamEncoder.HuffmanTable[4];
+        final JpegStreamEncoder.HuffmanTable[] acTables = new JpegStreamEncoder.HuffmanTable[4];
+        for (Component c : mScan) {
+            if (dcTables[c.mDcTable] == null) {
+                dcTables[c.mDcTable] = buildTable(dcCounts[c.mDcTable]);
+            }
+            if (acTables[c.mAcTable] == null) {
+                acTables[c.mAcTable] = buildTable(acCounts[c.mAcTable]);
+            }
+        }
+
+        in = new BufferedInputStream(source.open(), BUFFER_SIZE);
+        try {
+            Rect again = new Rect(crop);
+            if (!readHeader(in) || !alignCrop(again, 0) || !again.equals(crop)) {
+                throw new IOException("image changed while it was cropped");
+            }
+            writeHeader(out, crop.width(), crop.height(), dcTables, acTables);
+            final JpegStreamEncoder.BitWriter writer = new JpegStreamEncoder.BitWriter(out);
+            final int[] predictions = new int[mComponents.length];
+            readBlocks(in, crop, new BlockSink() {
+                @Override
+                public void block(int component, int column, int row, int[] zigzag)
+                        throws IOException {
+                    Component c = mComponents[component];
+                    predictions[component] = writer.writeBlock(zigzag, predictions[component],
+                            dcTables[c.mDcTable], acTables[c.mAcTable]);
+                }
+            });
+            writer.flush();
+            JpegStreamEncoder.writeMarker(out, EOI);
+            out.flush();
+        } finally {
+            Utils.closeSilently(in);
+        }
+        return true;
+    }
+
+    /**
+     * Crops the JPEG from source like {@link #crop(Source, Rect, OutputStream)}
+     * and rotates it clockwise by degrees, a multiple of 90. The input is only
+     * read once when it is rotated.
+     */
+    boolean transform(Source source, Rect crop, int degrees, OutputStream out)
+            throws IOException {
+        degrees = ((degrees % 360) + 360) % 360;
+        if (degrees == 0) {
+            return crop(source, crop, out);
+        } else if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("bad argument to transform");
+        }
+        final int[] columns;
+        final int[] rows;
+        final short[][] blocks;
+        InputStream in = new BufferedInputStream(source.open(), BUFFER_SIZE);
+        try {
+            if (!readHeader(in) || !alignCrop(crop, degrees)) {
+                return false;
+            }
+            // block grid of each component, after rotation
+            int count = mComponents.length;
+            columns = new int[count];
+            rows = new int[count];
+            blocks = new short[count][];
+            final int[] sourceColumns = new int[count];
+            final int[] sourceRows = new int[count];
+            for (int i = 0; i < count; i++) {
+                Component c = mComponents[i];
+                sourceColumns[i] = getMcuColumns(crop) * c.mH;
+                sourceRows[i] = getMcuRows(crop) * c.mV;
+                boolean swap = degrees != 180;
+                columns[i] = swap ? sourceRows[i] : sourceColumns[i];
+                rows[i] = swap ? sourceColumns[i] : sourceRows[i];
+                blocks[i] = new short[columns[i] * rows[i] * 64];
+            }
+            final int[] permutation = new int[64];
+            final int[] signs = new int[64];
+            getBlockTransform(degrees, permutation, signs);
+            final int rotation = degrees;
+            readBlocks(in, crop, new BlockSink() {
+                @Override
+                public void block(int component, int column, int row, int[] zigzag) {
+                    int x;
+                    int y;
+                    if (rotation == 90) {
+                        x = sourceRows[component] - 1 - row;
+                        y = column;
+                    } else if (rotation == 180) {
+                        x = sourceColumns[component] - 1 - column;
+                        y = sourceRows[component] - 1 - row;
+                    } else {
+                        x = row;
+                        y = sourceColumns[component] - 1 - column;
+                    }
+                    short[] dst = blocks[component];
+                    int offset = (y * columns[component] + x) * 64;
+                    for (int k = 0; k < 64; k++) {
+                        dst[offset + k] = (short) (signs[k] * zigzag[permutation[k]]);
+                    }
+                }
+            });
+        } finally {
+            Utils.closeSilently(in);
+        }
+
+        int width = crop.width();
+        int height = crop.height();
+        if (degrees != 180) {
+            // the frame turns on its side, and so do the MCUs
+            width = crop.height();
+            height = crop.width();
+            for (Component c : mComponents) {
+                int h = c.mH;
+                c.mH = c.mV;
+                c.mV = h;
+            }
+            int mcuWidth = mMcuWidth;
+            mMcuWidth = mMcuHeight;
+            mMcuHeight = mcuWidth;
+            transposeQuantTables();
+        }
+
+        // count the symbols of the rotated blocks, then write them
+        final int[][] dcCounts = new int[4][257];
+        final int[][] acCounts = new int[4][257];
+        final int[] predictions = new int[mComponents.length];
+        walkBlocks(blocks, columns, new BlockSink() {
+            @Override
+            public void block(int component, int column, int row, int[] zigzag) {
+                Component c = mComponents[component];
+                countBlock(zigzag, predictions[component], dcCounts[c.mDcTable],
+                        acCounts[c.mAcTable]);
+                predictions[component] = zigzag[0];
+            }
+        });
+        final JpegStreamEncoder.HuffmanTable[] dcTables = new JpegStreamEncoder.HuffmanTable[4];
+        final JpegStreamEncoder.HuffmanTable[] acTables = new JpegStreamEncoder.HuffmanTable[4];
+        for (Component c : mScan) {
+            if (dcTables[c.mDcTable] == null) {
+                dcTables[c.mDcTable] = buildTable(dcCounts[c.mDcTable]);
+            }
+            if (acTables[c.mAcTable] == null) {
+                acTables[c.mAcTable] = buildTable(acCounts[c.mAcTable]);
+            }
+        }
+        writeHeader(out, width, height, dcTables, acTables);
+        final JpegStreamEncoder.BitWriter writer = new JpegStreamEncoder.BitWriter(out);
+        Arrays.fill(predictions, 0);
+        walkBlocks(blocks, columns, new BlockSink() {
+            @Override
+            public void block(int component, int column, int row, int[] zigzag)
+                    throws IOException {
+                Component c = mComponents[component];
+                predictions[component] = writer.writeBlock(zigzag, predictions[component],
+                        dcTables[c.mDcTable], acTables[c.mAcTable]);
+            }
+        });
+        writer.flush();
+        JpegStreamEncoder.writeMarker(out, EOI);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Sets, for each zigzag position of a block rotated by degrees, the
+     * zigzag position of the coefficient it comes from and its sign. A
+     * transpose swaps the frequencies, a mirror flips the sign of the odd
+     * ones along it.
+     */
+    private static void getBlockTransform(int degrees, int[] permutation, int[] signs) {
+        int[] zigzagOf = new int[64];
+        for (int k = 0; k < 64; k++) {
+            zigzagOf[JpegStreamEncoder.ZIGZAG[k]] = k;
+        }
+        for (int k = 0; k < 64; k++) {
+            int natural = JpegStreamEncoder.ZIGZAG[k];
+            int v = natural >> 3;
+            int u = natural & 7;
+            int odd;
+            if (degrees == 90) {
+                // transpose, then mirror left to right
+                permutation[k] = zigzagOf[u * 8 + v];
+                odd = u;
+            } else if (degrees == 180) {
+                // mirror both ways
+                permutation[k] = k;
+                odd = u + v;
+            } else {
+                // transpose, then mirror top to bottom
+                permutation[k] = zigzagOf[u * 8 + v];
+                odd = v;
+            }
+            signs[k] = (odd & 1) != 0 ? -1 : 1;
+        }
+    }
+
+    /**
+     * Transposes the quantization tables to go with transposed blocks.
+     */
+    private void transposeQuantTables() {
+        int[] permutation = new int[64];
+        getBlockTransform(90, permutation, new int[64]);
+        for (int i = 0; i < mQuantSegments.size(); i++) {
+            byte[] segment = mQuantSegments.get(i).clone();
+            for (int offset = 0; offset < segment.length; ) {
+                // a precision of 1 means 16 bit entries
+                int size = (segment[offset] & 0xF0) != 0 ? 2 : 1;
+                if (offset + 1 + 64 * size > segment.length) {
+                    break;
+                }
+                byte[] table = Arrays.copyOfRange(segment, offset + 1, offset + 1 + 64 * size);
+                for (int k = 0; k < 64; k++) {
+                    System.arraycopy(table, permutation[k] * size,
+                            segment, offset + 1 + k * size, size);
+                }
+                offset += 1 + 64 * size;
+            }
+            mQuantSegments.set(i, segment);
+        }
+    }
+
+    /**
+     * Hands the rotated blocks to sink in the order they are coded.
+     */
+    private void walkBlocks(short[][] blocks, int[] columns, BlockSink sink)
+            throws IOException {
+        int mcusPerRow = columns[0] / mComponents[0].mH;
+        int mcuRows = blocks[0].length / 64 / columns[0] / mComponents[0].mV;
+        for (int my = 0; my < mcuRows; my++) {
+            for (int mx = 0; mx < mcusPerRow; mx++) {
+                for (Component c : mScan) {
+                    int component = indexOf(c);
+                    for (int v = 0; v < c.mV; v++) {
+                        for (int h = 0; h < c.mH; h++) {
+                            int column = mx * c.mH + h;
+                            int row = my * c.mV + v;
+                            int offset = (row * columns[component] + column) * 64;
+                            for (int k = 0; k < 64; k++) {
+                                mZigzag[k] = blocks[component][offset + k];
+                            }
+                            sink.block(component, column, row, mZigzag);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the scan from in, which must be just past the header, up to
+     * the last MCU row under crop, and hands the blocks of the MCUs under
+     * crop to sink in the order they are coded.
+     */
+    void readBlocks(InputStream in, Rect crop, BlockSink sink) throws IOException {
+        BitReader reader = new BitReader(in);
+        int mcuLeft = crop.left / mMcuWidth;
+        int mcuTop = crop.top / mMcuHeight;
+        int mcuRight = (crop.right + mMcuWidth - 1) / mMcuWidth;
+        int mcuBottom = (crop.bottom + mMcuHeight - 1) / mMcuHeight;
+        for (Component c : mComponents) {
+            c.mDcPrediction = 0;
+        }
+        int index = 0;
+        for (int my = 0; my < mcuBottom; my++) {
+            for (int mx = 0; mx < mMcusPerRow; mx++) {
+                if (mRestartInterval > 0 && index > 0 && index % mRestartInterval == 0) {
+                    reader.restart();
+                    for (Component c : mComponents) {
+                        c.mDcPrediction = 0;
+                    }
+                }
+                index++;
+                boolean inside = my >= mcuTop && mx >= mcuLeft && mx < mcuRight;
+                for (Component c : mScan) {
+                    int component = indexOf(c);
+                    for (int v = 0; v < c.mV; v++) {
+                        for (int h = 0; h < c.mH; h++) {
+                            decodeBlock(reader, c, inside);
+                            if (inside) {
+                                sink.block(component, (mx - mcuLeft) * c.mH + h,
+                                        (my - mcuTop) * c.mV + v, mZigzag);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private int indexOf(Component c) {
+        for (int i = 0; i < mComponents.length; i++) {
+            if (mComponents[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the next block of c into mZigzag, or only skips over its AC
+     * coefficients if they are not needed.
+     */
+    private void decodeBlock(BitReader reader, Component c, boolean keep) throws IOException {
+        int[] zz = mZigzag;
+        int s = reader.decode(mDcTables[c.mDcTable]);
+        c.mDcPrediction += extend(reader.readBits(s), s);
+        if (keep) {
+            Arrays.fill(zz, 0);
+            zz[0] = c.mDcPrediction;
+        }
+        DecodeTable ac = mAcTables[c.mAcTable];
+        for (int k = 1; k < 64; k++) {
+            int rs = reader.decode(ac);
+            int r = rs >> 4;
+            s = rs & 0xF;
+            if (s == 0) {
+                if (r != 15) {
+                    break;
+                }
+                k += 15;
+            } else {
+                k += r;
+                int value = extend(reader.readBits(s), s);
+                if (k > 63) {
+                    throw new IOException("bad block");
+                }
+                if (keep) {
+                    zz[k] = value;
+                }
+            }
+        }
+    }
+
+    private static int extend(int value, int size) {
+        return size == 0 || value >= 1 << (size - 1) ? value : value - (1 << size) + 1;
+    }
+
+    /**
+     * Counts the symbols writing the block takes, like
+     * {@link JpegStreamEncoder.BitWriter#writeBlock}.
+     */
+    static void countBlock(int[] zigzag, int previousDc, int[] dc, int[] ac) {
+        dc[getBitLength(zigzag[0] - previousDc)]++;
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int v = zigzag[k];
+            if (v == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                ac[0xF0]++;
+                run -= 16;
+            }
+            ac[(run << 4) | getBitLength(v)]++;
+            run = 0;
+        }
+        if (run > 0) {
+            ac[0]++;
+        }
+    }
+
+    private static int getBitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+    }
+
+    /**
+     * Builds the optimal table with codes of at most 16 bits for the given
+     * symbol counts, as in Annex K.2 of the JPEG standard and libjpeg.
+     */
+    static JpegStreamEncoder.HuffmanTable buildTable(int[] counts) {
+        long[] freq = new long[257];
+        boolean empty = true;
+        for (int i = 0; i < 256; i++) {
+            freq[i] = counts[i];
+            empty &= counts[i] == 0;
+        }
+        if (empty) {
+            // a table with no codes is not allowed
+            freq[0] = 1;
+        }
+        // a reserved symbol keeps any real code from being all ones
+        freq[256] = 1;
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        Arrays.fill(others, -1);
+        while (true) {
+            int c1 = -1;
+            int c2 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (freq[i] != 0 && freq[i] <= v) {
+                    v = freq[i];
+                    c1 = i;
+                }
+            }
+            v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+                if (freq[i] != 0 && freq[i] <= v && i != c1) {
+                    v = freq[i];
+                    c2 = i;
+                }
+            }
+            if (c2 < 0) {
+                break;
+            }
+            freq[c1] += freq[c2];
+            freq[c2] = 0;
+            codeSize[c1]++;
+            while (others[c1] >= 0) {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+            others[c1] = c2;
+            codeSize[c2]++;
+            while (others[c2] >= 0) {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+        int[] bits = new int[33];
+        for (int i = 0; i <= 256; i++) {
+            if (codeSize[i] > 0) {
+                bits[codeSize[i]]++;
+            }
+        }
+        // move codes longer than 16 bits up the tree
+        for (int i = 32; i > 16; i--) {
+            while (bits[i] > 0) {
+                int j = i - 2;
+                while (bits[j] == 0) {
+                    j--;
+                }
+                bits[i] -= 2;
+                bits[i - 1]++;
+                bits[j + 1] += 2;
+                bits[j]--;
+            }
+        }
+        // and drop the reserved symbol, which has the longest code
+        int i = 16;
+        while (bits[i] == 0) {
+            i--;
+        }
+        bits[i]--;
+        int[] tableBits = new int[16];
+        System.arraycopy(bits, 1, tableBits, 0, 16);
+        int total = 0;
+        for (int b : tableBits) {
+            total += b;
+        }
+        int[] values = new int[total];
+        int k = 0;
+        for (int length = 1; length <= 32 && k < total; length++) {
+            for (int symbol = 0; symbol < 256 && k < total; symbol++) {
+                if (codeSize[symbol] == length) {
+                    values[k++] = symbol;
+                }
+            }
+        }
+        return new JpegStreamEncoder.HuffmanTable(tableBits, values);
+    }
+
+    /**
+     * Writes the header of a width x height crop with the frame and tables
+     * of the input and the given Huffman tables.
+     */
+    void writeHeader(OutputStream out, int width, int height,
+            JpegStreamEncoder.HuffmanTable[] dcTables,
+            JpegStreamEncoder.HuffmanTable[] acTables) throws IOException {
+        JpegStreamEncoder.writeMarker(out, SOI);
+        // JFIF first, then EXIF, then the rest
+        boolean exifWritten = mExifSegment == null;
+        for (byte[] segment : mKeptSegments) {
+            if (!exifWritten && (segment[0] & 0xFF) != APP0) {
+                out.write(mExifSegment);
+                exifWritten = true;
+            }
+            JpegStreamEncoder.writeMarker(out, segment[0] & 0xFF);
+            JpegStreamEncoder.writeShort(out, segment.length + 1);
+            out.write(segment, 1, segment.length - 1);
+        }
+        if (!exifWritten) {
+            out.write(mExifSegment);
+        }
+        for (byte[] segment : mQuantSegments) {
+            JpegStreamEncoder.writeMarker(out, DQT);
+            JpegStreamEncoder.writeShort(out, segment.length + 2);
+            out.write(segment);
+        }
+        JpegStreamEncoder.writeMarker(out, mFrameMarker);
+        JpegStreamEncoder.writeShort(out, 8 + mComponents.length * 3);
+        out.write(8);
+        JpegStreamEncoder.writeShort(out, height);
+        JpegStreamEncoder.writeShort(out, width);
+        out.write(mComponents.length);
+        for (Component c : mComponents) {
+            out.write(c.mId);
+            out.write((c.mH << 4) | c.mV);
+            out.write(c.mQuantTable);
+        }
+        for (int i = 0; i < 4; i++) {
+            writeTable(out, i, dcTables[i]);
+            writeTable(out, 0x10 | i, acTables[i]);
+        }
+        JpegStreamEncoder.writeMarker(out, SOS);
+        JpegStreamEncoder.writeShort(out, 6 + mScan.length * 2);
+        out.write(mScan.length);
+        for (Component c : mScan) {
+            out.write(c.mId);
+            out.write((c.mDcTable << 4) | c.mAcTable);
+        }
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    private static void writeTable(OutputStream out, int id,
+            JpegStreamEncoder.HuffmanTable table) throws IOException {
+        if (table == null) {
+            return;
+        }
+        JpegStreamEncoder.writeMarker(out, DHT);
+        JpegStreamEncoder.writeShort(out, 2 + 17 + table.mValues.length);
+        JpegStreamEncoder.writeHuffman(out, id, table);
+    }
+
+    private static int readMarker(InputStream in) throws IOException {
+        int b = readByte(in);
+        while (b != 0xFF) {
+            // tolerate garbage between segments like libjpeg does
+            b = readByte(in);
+        }
+        while (b == 0xFF) {
+            b = readByte(in);
+        }
+        return b;
+    }
+
+    private static int readShort(InputStream in) throws IOException {
+        return (readByte(in) << 8) | readByte(in);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+        int n = 0;
+        while (n < b.length) {
+            int read = in.read(b, n, b.length - n);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            n += read;
+        }
+    }
+}
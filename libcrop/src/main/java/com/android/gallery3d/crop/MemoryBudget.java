@@ -0,0 +1,138 @@
+package com.android.gallery3d.crop;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * How much memory one crop session may spend on decoded pixels. The budget
+ * is a share of the memory class of the device, capped by what the heap has
+ * left, counting bitmaps held by the {@link BitmapPool} as free since the
+ * decoder reuses or drops them. Memory pressure reported through
+ * {@link #onTrimMemory(int)} halves the budget per level for the rest of the
+ * session and trims the pool, critical pressure also drops prefetched
+ * previews.
+ * <p>
+ * From Oreo on bitmap pixels live outside the Java heap, so only the memory
+ * class limits the budget there.
+ */
+public class MemoryBudget {
+    private static final long MB = 1024 * 1024;
+
+    // The preview may take a quarter of the memory class, the tile cache an
+    // eighth, and neither more than half of the heap that is left.
+    private static final int PREVIEW_FRACTION = 4;
+    private static final int TILE_FRACTION = 8;
+    // saving holds the crop and one copy of it, and runs without a preview
+    private static final int SAVE_FRACTION = 2;
+    private static final int FREE_HEAP_FRACTION = 2;
+    private static final long MIN_PREVIEW_BYTES = MB;
+    private static final long MIN_TILE_BYTES = MB;
+    private static final long MIN_SAVE_BYTES = 4 * MB;
+    private static final int NATIVE_BITMAP_SDK = 26;
+
+    private final long mMemoryClassBytes;
+    private int mTrimShift = 0;
+
+    public MemoryBudget(Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("bad argument to MemoryBudget");
+        }
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        long memoryClass = am == null ? maxMemory : am.getMemoryClass() * MB;
+        // android:largeHeap raises the heap above the memory class
+        mMemoryClassBytes = Math.max(memoryClass, maxMemory);
+    }
+
+    /**
+     * Returns the number of bytes the preview bitmap may take now.
+     */
+    public synchronized long getPreviewBytes() {
+        return getBytes(PREVIEW_FRACTION, MIN_PREVIEW_BYTES);
+    }
+
+    /**
+     * Returns the number of bytes the full resolution tiles may take now.
+     */
+    public synchronized long getTileBytes() {
+        return getBytes(TILE_FRACTION, MIN_TILE_BYTES);
+    }
+
+    /**
+     * Returns the number of bytes saving the crop may hold in bitmaps at
+     * once. Larger crops are saved in stripes, see {@link StripedCrop}.
+     */
+    public synchronized long getSaveBytes() {
+        return getBytes(SAVE_FRACTION, MIN_SAVE_BYTES);
+    }
+
+    /**
+     * Returns how many times the budget has been halved by memory pressure.
+     */
+    public synchronized int getTrimShift() {
+        return mTrimShift;
+    }
+
+    /**
+     * Shrinks the budget and the bitmap pool for the given
+     * {@link ComponentCallbacks2} trim level.
+     */
+    public void onTrimMemory(int level) {
+        BitmapPool pool = BitmapPool.getDefault();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // nothing is on screen, the pool only holds on to memory
+            pool.clear();
+            PreviewPrefetcher.getDefault().clear();
+            return;
+        }
+        int shift;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            shift = 3;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            shift = 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            shift = 1;
+        } else {
+            return;
+        }
+        synchronized (this) {
+            mTrimShift = Math.max(mTrimShift, shift);
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            PreviewPrefetcher.getDefault().clear();
+        }
+        pool.trimTo(pool.getMaxSize() >> shift);
+    }
+
+    /**
+     * Returns the longest side, at most maxSideLength, that a w x h image
+     * can be decoded at within maxBytes, where the side is the shorter one
+     * of the image if useMin is set and the longer one otherwise.
+     */
+    public static int getMaxSideLength(int w, int h, int maxSideLength, boolean useMin,
+            long maxBytes, Bitmap.Config config) {
+        if (w <= 0 || h <= 0 || maxBytes <= 0) {
+            return maxSideLength;
+        }
+        int side = useMin ? Math.min(w, h) : Math.max(w, h);
+        int other = useMin ? Math.max(w, h) : Math.min(w, h);
+        // a side of s decodes s * s * other / side pixels
+        double pixels = (double) maxBytes / BitmapPool.getBytesPerPixel(config);
+        int fit = (int) Math.sqrt(pixels * side / other);
+        return Math.max(1, Math.min(maxSideLength, fit));
+    }
+
+    private long getBytes(int fraction, long minBytes) {
+        long bytes = mMemoryClassBytes / fraction;
+        if (Build.VERSION.SDK_INT < NATIVE_BITMAP_SDK) {
+            Runtime runtime = Runtime.getRuntime();
+            long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())
+                    + BitmapPool.getDefault().getSize();
+            bytes = Math.min(bytes, free / FREE_HEAP_FRACTION);
+        }
+        return Math.max(minBytes, bytes >> mTrimShift);
+    }
+}
@@ -0,0 +1,519 @@
+package com.android.gallery3d.crop;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An LRU cache of what the crop screen needs to know about an image before
+ * decoding it: size, orientation, MIME type and local file path. Entries are
+ * keyed by Uri and stamped with the last modified time and size of the
+ * image, a lookup that finds a different stamp drops the entry. The stamp
+ * is read with a stat for file Uris and with one query for content Uris,
+ * which on a miss also fills in the orientation and path the provider knows.
+ * Content Uris whose provider has no modification time are not cached, the
+ * size alone misses edits that keep it, like an EXIF orientation rewritten
+ * in place.
+ * <p>
+ * With {@link #setPersistentFile(File)} the cache is loaded from and written
+ * back to a file, so it survives the process. Changes are written in the
+ * background a second after the first one, together with whatever else
+ * changed in the meantime.
+ */
+public class MetadataCache {
+    private static final String LOGTAG = "MetadataCache";
+
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+    private static final int FILE_MAGIC = 0x43524d44; // "CRMD"
+    private static final int FILE_VERSION = 1;
+    private static final long UNKNOWN = -1;
+    // how long changes are collected before the persistent file is written
+    private static final long SAVE_DELAY_MS = 1000;
+
+    // Only what the stamp and a new entry need, so the provider does not
+    // build a row of every column it has.
+    private static final String[] MEDIA_PROJECTION = {
+            MediaStore.MediaColumns.DATE_MODIFIED,
+            MediaStore.MediaColumns.SIZE,
+            MediaStore.Images.ImageColumns.ORIENTATION,
+            MediaStore.MediaColumns.MIME_TYPE,
+            MediaStore.MediaColumns.DATA
+    };
+    // DocumentsContract.Document.COLUMN_LAST_MODIFIED, newer than minSdk
+    private static final String DOCUMENT_LAST_MODIFIED = "last_modified";
+    // Other providers do not know the MediaStore only columns. Document
+    // providers name the modification time differently, SIZE and MIME_TYPE
+    // are the same columns as in OpenableColumns and DocumentsContract.
+    private static final String[] CONTENT_PROJECTION = {
+            MediaStore.MediaColumns.DATE_MODIFIED,
+            DOCUMENT_LAST_MODIFIED,
+            MediaStore.MediaColumns.SIZE,
+            MediaStore.MediaColumns.MIME_TYPE
+    };
+
+    private static MetadataCache sDefault;
+
+    /**
+     * What is known about one version of an image. Values that have not
+     * been found yet read as 0 or null.
+     */
+    public static final class Metadata {
+        private final long mLastModified;
+        private final long mLength;
+        private int mWidth;
+        private int mHeight;
+        private int mOrientation;
+        private String mMimeType;
+        private String mLocalPath;
+
+        Metadata(long lastModified, long length) {
+            mLastModified = lastModified;
+            mLength = length;
+        }
+
+        /**
+         * Returns the modification time the image had when it was read.
+         */
+        long getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * Returns the length the image had when it was read.
+         */
+        long getLength() {
+            return mLength;
+        }
+
+        public synchronized int getWidth() {
+            return mWidth;
+        }
+
+        public synchronized int getHeight() {
+            return mHeight;
+        }
+
+        public synchronized boolean hasSize() {
+            return mWidth > 0 && mHeight > 0;
+        }
+
+        /**
+         * Returns one of the ORI_ constants in {@link ImageLoader}, or 0 if
+         * the orientation is not known yet.
+         */
+        public synchronized int getOrientation() {
+            return mOrientation;
+        }
+
+        public synchronized boolean hasOrientation() {
+            return mOrientation != 0;
+        }
+
+        public synchronized String getMimeType() {
+            return mMimeType;
+        }
+
+        /**
+         * Returns the path of the image on local storage, or null if it has
+         * none.
+         */
+        public synchronized String getLocalPath() {
+            return mLocalPath;
+        }
+
+        private boolean isStamp(long lastModified, long length) {
+            return mLastModified == lastModified && mLength == length;
+        }
+    }
+
+    private final int mMaxEntries;
+    private final LinkedHashMap<String, Metadata> mEntries;
+    private File mFile = null;
+    private boolean mSavePending = false;
+    private ScheduledExecutorService mSaver = null;
+    private final Object mWriteLock = new Object();
+
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mStale = 0;
+
+    public MetadataCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than zero");
+        }
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, Metadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the process wide cache used by {@link ImageLoader} and
+     * {@link SaveImage}.
+     */
+    public static synchronized MetadataCache getDefault() {
+        if (sDefault == null) {
+            sDefault = new MetadataCache(DEFAULT_MAX_ENTRIES);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Returns the metadata of the current version of uri, cached or a new
+     * entry with what a provider query gave. Returns null if the image
+     * cannot be stamped, in which case nothing is cached for it.
+     * <p>
+     * Every call stamps the image again, which for a content Uri is a
+     * provider query. Code that needs the metadata at several points of one
+     * load should get it once and pass it on.
+     */
+    public Metadata get(Context context, Uri uri) {
+        if (context == null || uri == null) {
+            throw new IllegalArgumentException("bad argument to MetadataCache.get");
+        }
+        String scheme = uri.getScheme();
+        if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+            File file = new File(uri.getPath());
+            if (!file.exists()) {
+                return null;
+            }
+            long lastModified = file.lastModified();
+            long length = file.length();
+            synchronized (this) {
+                Metadata m = lookup(uri, lastModified, length);
+                if (m == null) {
+                    m = new Metadata(lastModified, length);
+                    m.mMimeType = ImageLoader.getMimeType(uri);
+                    m.mLocalPath = file.getPath();
+                    mEntries.put(uri.toString(), m);
+                }
+                return m;
+            }
+        } else if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            return queryContent(context, uri);
+        }
+        return null;
+    }
+
+    /**
+     * Records what an image header found about m.
+     */
+    public void update(Metadata m, ImageHeader header) {
+        synchronized (m) {
+            if (header.hasSize()) {
+                m.mWidth = header.getWidth();
+                m.mHeight = header.getHeight();
+            }
+            if (header.getMimeType() != null) {
+                m.mMimeType = header.getMimeType();
+            }
+            if (header.hasOrientation()) {
+                m.mOrientation = header.getOrientation();
+            }
+        }
+        save();
+    }
+
+    public void setSize(Metadata m, int width, int height) {
+        synchronized (m) {
+            m.mWidth = width;
+            m.mHeight = height;
+        }
+        save();
+    }
+
+    /**
+     * @param orientation one of the ORI_ constants in {@link ImageLoader}.
+     */
+    public void setOrientation(Metadata m, int orientation) {
+        synchronized (m) {
+            m.mOrientation = orientation;
+        }
+        save();
+    }
+
+    public synchronized void invalidate(Uri uri) {
+        if (mEntries.remove(uri.toString()) != null) {
+            saveLocked();
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        saveLocked();
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of lookups that were not cached, including the
+     * stale ones.
+     */
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the number of lookups that found an entry for an older
+     * version of the image.
+     */
+    public synchronized int getStaleCount() {
+        return mStale;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MetadataCache[entries=" + mEntries.size() + ", hits=" + mHits + ", misses="
+                + mMisses + ", stale=" + mStale + "]";
+    }
+
+    /**
+     * Loads the entries saved in file, and writes the cache back to it
+     * after it changes. Pass null to stop writing.
+     */
+    public synchronized void setPersistentFile(File file) {
+        mFile = file;
+        if (file != null && file.exists()) {
+            load(file);
+        }
+    }
+
+    // internal methods
+
+    // Must hold the lock on this.
+    private Metadata lookup(Uri uri, long lastModified, long length) {
+        String key = uri.toString();
+        Metadata m = mEntries.get(key);
+        if (m != null && m.isStamp(lastModified, length)) {
+            mHits++;
+            return m;
+        }
+        if (m != null) {
+            mStale++;
+            mEntries.remove(key);
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Stamps a content Uri with one query, which on a miss also gives the
+     * orientation, MIME type and path if the provider has them.
+     */
+    private Metadata queryContent(Context context, Uri uri) {
+        Cursor cursor = null;
+        try {
+            boolean media = MediaStore.AUTHORITY.equals(uri.getAuthority());
+            cursor = context.getContentResolver().query(uri,
+                    media ? MEDIA_PROJECTION : CONTENT_PROJECTION, null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            long lastModified = getLong(cursor, MediaStore.MediaColumns.DATE_MODIFIED);
+            if (lastModified == UNKNOWN && !media) {
+                lastModified = getLong(cursor, DOCUMENT_LAST_MODIFIED);
+            }
+            if (lastModified == UNKNOWN) {
+                return null;
+            }
+            long length = getLong(cursor, MediaStore.MediaColumns.SIZE);
+            synchronized (this) {
+                Metadata m = lookup(uri, lastModified, length);
+                if (m == null) {
+                    m = new Metadata(lastModified, length);
+                    int column = cursor.getColumnIndex(MediaStore.Images.ImageColumns.ORIENTATION);
+                    if (column >= 0 && !cursor.isNull(column)) {
+                        m.mOrientation = ImageLoader.getOrientationForDegrees(cursor.getInt(column));
+                    }
+                    column = cursor.getColumnIndex(MediaStore.MediaColumns.MIME_TYPE);
+                    if (column >= 0 && !cursor.isNull(column)) {
+                        m.mMimeType = cursor.getString(column);
+                    }
+                    column = cursor.getColumnIndex(MediaStore.MediaColumns.DATA);
+                    if (media && column >= 0 && !cursor.isNull(column)) {
+                        m.mLocalPath = cursor.getString(column);
+                    }
+                    mEntries.put(uri.toString(), m);
+                    saveLocked();
+                }
+                return m;
+            }
+        } catch (Exception e) {
+            // Providers throw all kinds of exceptions for queries they do not support
+            Log.w(LOGTAG, "cannot query metadata for " + uri, e);
+            return null;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private static long getLong(Cursor cursor, String name) {
+        int column = cursor.getColumnIndex(name);
+        if (column < 0 || cursor.isNull(column)) {
+            return UNKNOWN;
+        }
+        return cursor.getLong(column);
+    }
+
+    private synchronized void save() {
+        saveLocked();
+    }
+
+    /**
+     * Schedules a write of the persistent file, if there is one. Changes
+     * made before the write starts go out with it, so a load that updates an
+     * entry several times writes the file once, and never on the calling
+     * thread. Must hold the lock on this.
+     */
+    private void saveLocked() {
+        if (mFile == null || mSavePending) {
+            return;
+        }
+        if (mSaver == null) {
+            mSaver = Executors.newSingleThreadScheduledExecutor();
+        }
+        mSavePending = true;
+        mSaver.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes changes that are waiting for the scheduled save to the
+     * persistent file now, on the calling thread.
+     */
+    void flush() {
+        // Keeps two writes from sharing the tmp file, and the file from
+        // being replaced by an older copy.
+        synchronized (mWriteLock) {
+            File file;
+            byte[] data;
+            synchronized (this) {
+                if (mFile == null || !mSavePending) {
+                    return;
+                }
+                mSavePending = false;
+                file = mFile;
+                data = toByteArray();
+            }
+            write(file, data);
+        }
+    }
+
+    // Must hold the lock on this.
+    private byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Metadata> e : mEntries.entrySet()) {
+                Metadata m = e.getValue();
+                synchronized (m) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(m.mLastModified);
+                    out.writeLong(m.mLength);
+                    out.writeInt(m.mWidth);
+                    out.writeInt(m.mHeight);
+                    out.writeInt(m.mOrientation);
+                    writeString(out, m.mMimeType);
+                    writeString(out, m.mLocalPath);
+                }
+            }
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write(File file, byte[] data) {
+        // Write a new file and rename it over the old one, so a crash never
+        // leaves a half written cache behind.
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(LOGTAG, "cannot replace " + file);
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(LOGTAG, "cannot write " + tmp, e);
+            tmp.delete();
+        } finally {
+            Utils.closeSilently(out);
+        }
+    }
+
+    // Must hold the lock on this.
+    private void load(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Metadata m = new Metadata(in.readLong(), in.readLong());
+                m.mWidth = in.readInt();
+                m.mHeight = in.readInt();
+                m.mOrientation = in.readInt();
+                m.mMimeType = readString(in);
+                m.mLocalPath = readString(in);
+                mEntries.put(key, m);
+            }
+        } catch (FileNotFoundException e) {
+            // nothing saved yet
+        } catch (IOException e) {
+            // keep what was read before the damage
+            Log.w(LOGTAG, "cannot read " + file, e);
+        } finally {
+            Utils.closeSilently(in);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
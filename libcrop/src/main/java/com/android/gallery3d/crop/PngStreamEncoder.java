@@ -0,0 +1,228 @@
+package com.android.gallery3d.crop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder that takes the image a few rows at a time. Each row gets the
+ * filter that leaves the smallest sum of differences, as libpng does, and the
+ * compressed data goes out in IDAT chunks as the deflater produces it.
+ */
+class PngStreamEncoder implements StripeEncoder {
+    private static final byte[] SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+    };
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mChannels;
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    // raw bytes of this and the previous row, and the filtered row with
+    // its filter type byte in front
+    private byte[] mRow;
+    private byte[] mPrevious;
+    private final byte[] mFiltered;
+    private final byte[] mBest;
+    private int mRows = 0;
+    private boolean mStarted = false;
+
+    /**
+     * @param alpha whether to keep the alpha channel, otherwise RGB is
+     *              written.
+     */
+    PngStreamEncoder(OutputStream out, int width, int height, boolean alpha) {
+        if (out == null || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad argument to PngStreamEncoder");
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mChannels = alpha ? 4 : 3;
+        int rowBytes = width * mChannels;
+        mRow = new byte[rowBytes];
+        mPrevious = new byte[rowBytes];
+        mFiltered = new byte[rowBytes + 1];
+        mBest = new byte[rowBytes + 1];
+    }
+
+    @Override
+    public int getRowAlignment() {
+        return 1;
+    }
+
+    @Override
+    public void writeRows(int[] pixels, int rows) throws IOException {
+        if (rows <= 0 || mRows + rows > mHeight || pixels.length < rows * mWidth) {
+            throw new IllegalArgumentException("bad argument to writeRows");
+        }
+        if (!mStarted) {
+            writeHeader();
+        }
+        for (int y = 0; y < rows; y++) {
+            toBytes(pixels, y * mWidth, mRow);
+            filterRow();
+            mDeflater.setInput(mBest, 0, mBest.length);
+            while (!mDeflater.needsInput()) {
+                deflate();
+            }
+            byte[] tmp = mPrevious;
+            mPrevious = mRow;
+            mRow = tmp;
+            // the filters of the next row depend on whether this one exists
+            mRows++;
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mRows != mHeight) {
+            throw new IllegalStateException("wrote " + mRows + " of " + mHeight + " rows");
+        }
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+        mDeflater.end();
+        writeChunk("IEND", mChunk, 0);
+        mOut.flush();
+    }
+
+    private void writeHeader() throws IOException {
+        mStarted = true;
+        mOut.write(SIGNATURE);
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, mWidth);
+        putInt(ihdr, 4, mHeight);
+        ihdr[8] = 8; // bit depth
+        ihdr[9] = (byte) (mChannels == 4 ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        // compression, filter and interlace methods are all 0
+        writeChunk("IHDR", ihdr, ihdr.length);
+    }
+
+    private void toBytes(int[] pixels, int offset, byte[] row) {
+        int p = 0;
+        for (int x = 0; x < mWidth; x++) {
+            int c = pixels[offset + x];
+            row[p++] = (byte) (c >> 16);
+            row[p++] = (byte) (c >> 8);
+            row[p++] = (byte) c;
+            if (mChannels == 4) {
+                row[p++] = (byte) (c >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Filters mRow into mBest with the filter that gives the smallest sum of
+     * absolute values, which usually compresses best.
+     */
+    private void filterRow() {
+        long bestSum = Long.MAX_VALUE;
+        for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+            if (mRows == 0 && (filter == FILTER_UP || filter == FILTER_PAETH)) {
+                // the same as NONE and SUB for the first row
+                continue;
+            }
+            long sum = filter(filter, mFiltered, bestSum);
+            if (sum < bestSum) {
+                bestSum = sum;
+                System.arraycopy(mFiltered, 0, mBest, 0, mFiltered.length);
+            }
+        }
+    }
+
+    // Returns the sum of the filtered row, or stops once it reaches limit.
+    private long filter(int filter, byte[] out, long limit) {
+        byte[] row = mRow;
+        byte[] up = mPrevious;
+        boolean hasUp = mRows > 0;
+        int bpp = mChannels;
+        out[0] = (byte) filter;
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = hasUp ? up[i] & 0xFF : 0;
+            int c = i >= bpp && hasUp ? up[i - bpp] & 0xFF : 0;
+            int predicted;
+            switch (filter) {
+                case FILTER_SUB:
+                    predicted = a;
+                    break;
+                case FILTER_UP:
+                    predicted = b;
+                    break;
+                case FILTER_AVERAGE:
+                    predicted = (a + b) >> 1;
+                    break;
+                case FILTER_PAETH:
+                    predicted = paeth(a, b, c);
+                    break;
+                default:
+                    predicted = 0;
+                    break;
+            }
+            byte d = (byte) (x - predicted);
+            out[i + 1] = d;
+            sum += Math.abs((int) d);
+            if (sum >= limit) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private void deflate() throws IOException {
+        int n = mDeflater.deflate(mChunk, 0, mChunk.length);
+        if (n > 0) {
+            writeChunk("IDAT", mChunk, n);
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] head = new byte[8];
+        putInt(head, 0, length);
+        for (int i = 0; i < 4; i++) {
+            head[4 + i] = (byte) type.charAt(i);
+        }
+        mOut.write(head);
+        mOut.write(data, 0, length);
+        mCrc.reset();
+        mCrc.update(head, 4, 4);
+        mCrc.update(data, 0, length);
+        byte[] crc = new byte[4];
+        putInt(crc, 0, (int) mCrc.getValue());
+        mOut.write(crc);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
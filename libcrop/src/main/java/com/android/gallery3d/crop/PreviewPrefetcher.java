@@ -0,0 +1,239 @@
+package com.android.gallery3d.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decodes crop previews before the crop screen asks for them, see
+ * {@link ImageLoader#prefetch(Context, Uri)}. Previews are decoded one at a
+ * time in the background, with the same size, config and memory budget
+ * that {@link CropActivity} uses, and held until the crop screen takes them.
+ * A preview that is taken while it is still decoding is waited for rather
+ * than decoded twice.
+ * <p>
+ * Only the most recently requested previews are kept, older ones go back
+ * to the {@link BitmapPool}. A preview is dropped when it is taken for a
+ * different version of the image than it was decoded from.
+ */
+class PreviewPrefetcher {
+    private static final String LOGTAG = "PreviewPrefetcher";
+
+    private static final int MAX_ENTRIES = 2;
+
+    private static PreviewPrefetcher sDefault;
+
+    /**
+     * A decoded preview with what the crop screen needs to show it.
+     */
+    static final class Preview {
+        final Bitmap mBitmap;
+        final Rect mBounds;
+        final int mRotation;
+        private final MetadataCache.Metadata mMetadata;
+
+        Preview(Bitmap bitmap, Rect bounds, int rotation, MetadataCache.Metadata metadata) {
+            mBitmap = bitmap;
+            mBounds = bounds;
+            mRotation = rotation;
+            mMetadata = metadata;
+        }
+    }
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final LinkedHashMap<String, PrefetchTask> mTasks =
+            new LinkedHashMap<String, PrefetchTask>(16, 0.75f, true);
+
+    static synchronized PreviewPrefetcher getDefault() {
+        if (sDefault == null) {
+            sDefault = new PreviewPrefetcher();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Starts decoding the preview of uri at maxSideLength, unless it is
+     * already decoded or queued.
+     */
+    void prefetch(Context context, Uri uri, int maxSideLength, int previewConfig) {
+        Context appContext = context.getApplicationContext();
+        String key = getKey(uri, maxSideLength, previewConfig);
+        PrefetchTask task;
+        synchronized (this) {
+            if (mTasks.containsKey(key)) {
+                return;
+            }
+            task = new PrefetchTask(new DecodeCallable(appContext, uri, maxSideLength,
+                    previewConfig));
+            mTasks.put(key, task);
+            Iterator<PrefetchTask> it = mTasks.values().iterator();
+            while (mTasks.size() > MAX_ENTRIES && it.hasNext()) {
+                PrefetchTask eldest = it.next();
+                it.remove();
+                eldest.discard();
+            }
+        }
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Removes and returns the prefetched preview of uri, waiting for it if it
+     * is still being decoded. Returns null if uri was not prefetched with
+     * these arguments, the decode failed, the image changed since, or the
+     * preview takes more than maxBytes. The caller owns the returned bitmap.
+     */
+    Preview take(Context context, Uri uri, int maxSideLength, int previewConfig,
+            long maxBytes) {
+        PrefetchTask task;
+        synchronized (this) {
+            task = mTasks.remove(getKey(uri, maxSideLength, previewConfig));
+        }
+        if (task == null) {
+            return null;
+        }
+        Preview preview;
+        try {
+            preview = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (this) {
+                task.discard();
+            }
+            return null;
+        } catch (ExecutionException e) {
+            Log.w(LOGTAG, "cannot prefetch " + uri, e.getCause());
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+        if (preview == null) {
+            return null;
+        }
+        boolean stale = preview.mMetadata != null
+                && preview.mMetadata != MetadataCache.getDefault().get(context, uri);
+        if (stale || (maxBytes > 0 && preview.mBitmap.getByteCount() > maxBytes)) {
+            BitmapPool.getDefault().put(preview.mBitmap);
+            return null;
+        }
+        return preview;
+    }
+
+    /**
+     * Drops all prefetched previews, stopping decodes that have not started.
+     */
+    void clear() {
+        synchronized (this) {
+            for (PrefetchTask task : mTasks.values()) {
+                task.discard();
+            }
+            mTasks.clear();
+        }
+    }
+
+    private static String getKey(Uri uri, int maxSideLength, int previewConfig) {
+        return uri + "#" + maxSideLength + "#" + previewConfig;
+    }
+
+    private class PrefetchTask extends FutureTask<Preview> {
+        private final DecodeCallable mCallable;
+
+        PrefetchTask(DecodeCallable callable) {
+            super(callable);
+            mCallable = callable;
+        }
+
+        // Must hold the lock on PreviewPrefetcher.this. A decode that has
+        // not started is cancelled, a running one hands its bitmap to the
+        // pool itself once it sees the discard.
+        void discard() {
+            int state = mCallable.mState;
+            mCallable.mState = DecodeCallable.DISCARDED;
+            if (state == DecodeCallable.QUEUED) {
+                cancel(false);
+            } else if (state == DecodeCallable.DECODED) {
+                release();
+            }
+        }
+
+        private void release() {
+            try {
+                // the result is set right after the callable returns
+                Preview preview = get();
+                if (preview != null) {
+                    BitmapPool.getDefault().put(preview.mBitmap);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // nothing was decoded
+            }
+        }
+    }
+
+    private class DecodeCallable implements Callable<Preview> {
+        static final int QUEUED = 0;
+        static final int DECODING = 1;
+        static final int DECODED = 2;
+        static final int DISCARDED = 3;
+
+        private final Context mContext;
+        private final Uri mUri;
+        private final int mMaxSideLength;
+        private final int mPreviewConfig;
+        // Guarded by PreviewPrefetcher.this, so that exactly one of the
+        // decode and discard() hands an unwanted bitmap to the pool.
+        int mState = QUEUED;
+
+        DecodeCallable(Context context, Uri uri, int maxSideLength, int previewConfig) {
+            mContext = context;
+            mUri = uri;
+            mMaxSideLength = maxSideLength;
+            mPreviewConfig = previewConfig;
+        }
+
+        @Override
+        public Preview call() {
+            synchronized (PreviewPrefetcher.this) {
+                if (mState == DISCARDED) {
+                    return null;
+                }
+                mState = DECODING;
+            }
+            ImageHeader header = new ImageHeader();
+            Rect bounds = new Rect();
+            ImageLoader.LoadOptions options = new ImageLoader.LoadOptions();
+            options.exactSize = true;
+            options.previewConfig = mPreviewConfig;
+            options.maxBytes = new MemoryBudget(mContext).getPreviewBytes();
+            Bitmap bitmap = ImageLoader.loadConstrainedBitmap(mUri, mContext, mMaxSideLength,
+                    bounds, header, false, options);
+            Preview preview = null;
+            if (bitmap != null) {
+                MetadataCache.Metadata metadata = options.outMetadata;
+                int rotation = ImageLoader.getMetadataRotation(mContext, mUri, header, metadata);
+                preview = new Preview(bitmap, bounds, rotation, metadata);
+            }
+            synchronized (PreviewPrefetcher.this) {
+                if (mState == DISCARDED) {
+                    if (bitmap != null) {
+                        BitmapPool.getDefault().put(bitmap);
+                    }
+                    return null;
+                }
+                mState = DECODED;
+            }
+            return preview;
+        }
+    }
+}
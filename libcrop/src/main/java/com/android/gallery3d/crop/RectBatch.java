@@ -0,0 +1,46 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.RectF;
+
+/**
+ * A fixed number of rectangles stored as struct-of-arrays: one float array
+ * per edge. Batch operations such as
+ * {@link CropMath#getScaledCropBounds(RectBatch, RectBatch, RectBatch, RectBatch)}
+ * walk these arrays in one tight loop, which the JIT can unroll and
+ * vectorize, instead of chasing one RectF per rectangle.
+ */
+public final class RectBatch {
+    public final float[] left;
+    public final float[] top;
+    public final float[] right;
+    public final float[] bottom;
+
+    public RectBatch(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size must not be negative");
+        }
+        left = new float[size];
+        top = new float[size];
+        right = new float[size];
+        bottom = new float[size];
+    }
+
+    public int size() {
+        return left.length;
+    }
+
+    public void set(int index, float l, float t, float r, float b) {
+        left[index] = l;
+        top[index] = t;
+        right[index] = r;
+        bottom[index] = b;
+    }
+
+    public void set(int index, RectF r) {
+        set(index, r.left, r.top, r.right, r.bottom);
+    }
+
+    public void get(int index, RectF r) {
+        r.set(left[index], top[index], right[index], bottom[index]);
+    }
+}
@@ -187,6 +187,12 @@ public class SaveImage {
             return null;
         }
 
+        MetadataCache.Metadata meta = MetadataCache.getDefault().get(context, srcUri);
+        if (meta != null) {
+            String path = meta.getLocalPath();
+            return path == null ? null : new File(path);
+        }
+
         final File[] file = new File[1];
         // sourceUri can be a file path or a content Uri, it need to be handled
         // differently.
@@ -0,0 +1,28 @@
+package com.android.gallery3d.crop;
+
+import java.io.IOException;
+
+/**
+ * Encodes an image that is handed over a few rows at a time, top to bottom,
+ * so that it never has to be in memory at once. Rows are packed ARGB colors
+ * as returned by Bitmap.getPixels(), not premultiplied.
+ */
+interface StripeEncoder {
+    /**
+     * Returns the number of rows every call to {@link #writeRows(int[], int)}
+     * except the last must pass a multiple of.
+     */
+    int getRowAlignment();
+
+    /**
+     * Encodes the next rows of the image, which are taken from the start of
+     * pixels with a stride of the image width.
+     */
+    void writeRows(int[] pixels, int rows) throws IOException;
+
+    /**
+     * Writes the end of the image once all rows were written. Does not close
+     * the stream.
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,399 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Crops, rotates and scales an image that is too large to hold in memory
+ * and encodes the result, one horizontal stripe of the output at a time.
+ * Each stripe is decoded from the part of the image under it with a
+ * {@link BitmapRegionDecoder}, drawn through the output matrix and handed to
+ * a {@link StripeEncoder}. The next stripe is decoded on a second thread
+ * while the current one is encoded, so memory use is bounded by a few
+ * stripes however large the output is.
+ * <p>
+ * A straightened stripe maps back to a region of the image about as tall as
+ * the stripe is wide, so such stripes are decoded in pieces, see
+ * {@link #getPieceWidth(AffineMatrix, int, int, int)}.
+ */
+class StripedCrop {
+    private static final String LOGTAG = "StripedCrop";
+
+    // bytes of one stripe of output pixels
+    private static final int STRIPE_BYTES = 1024 * 1024;
+    // source pixels to decode around each stripe so filtering is seamless
+    private static final int MARGIN = 2;
+    private static final int BUFFERS = 2;
+    // decoded pixels the region under a piece of a stripe may take, relative
+    // to the output pixels of the piece
+    static final int MAX_REGION_SCALE = 8;
+
+    private static final int[] END = new int[0];
+    private static final int[] FAILED = new int[0];
+
+    private final Source mSource;
+    private final int mWidth;
+    private final int mHeight;
+    private boolean mCircle = false;
+    private int mStripeRows;
+    private volatile boolean mCancelled = false;
+
+    // stripes travel from the decode thread to the encoder in mFilled and
+    // back in mFree, each buffer holds mStripeRows rows
+    private final BlockingQueue<int[]> mFilled = new ArrayBlockingQueue<int[]>(BUFFERS + 1);
+    private final BlockingQueue<int[]> mFree = new ArrayBlockingQueue<int[]>(BUFFERS);
+
+    /**
+     * Produces the rows of the output. All methods are called on the decode
+     * thread.
+     */
+    interface Source {
+        /**
+         * Called before the first stripe with the number of rows every
+         * stripe but the last has.
+         */
+        void open(int width, int stripeRows);
+
+        /**
+         * Fills pixels with the rows output rows starting at y, with a
+         * stride of the output width. Returns false if they cannot be made.
+         */
+        boolean read(int[] pixels, int y, int rows);
+
+        /**
+         * Called once the decode thread is done, whether or not it
+         * succeeded, and only if open was called.
+         */
+        void close();
+    }
+
+    /**
+     * @param decoder    the decoder of the whole image.
+     * @param toOutput   maps image coordinates to output coordinates.
+     * @param sampleSize the sample size to decode regions at, see
+     *                   BitmapFactory.Options.inSampleSize.
+     */
+    StripedCrop(BitmapRegionDecoder decoder, Matrix toOutput, int outputWidth, int outputHeight,
+            int sampleSize) {
+        this(new RegionSource(decoder, toOutput, sampleSize), outputWidth, outputHeight);
+    }
+
+    StripedCrop(Source source, int outputWidth, int outputHeight) {
+        if (source == null || outputWidth <= 0 || outputHeight <= 0) {
+            throw new IllegalArgumentException("bad argument to StripedCrop");
+        }
+        mSource = source;
+        mWidth = outputWidth;
+        mHeight = outputHeight;
+    }
+
+    /**
+     * Masks the output to the largest circle that fits it, like
+     * {@link CropActivity#getCircleBitmap(Bitmap)}.
+     */
+    void setCircle(boolean circle) {
+        mCircle = circle;
+    }
+
+    /**
+     * Returns the width of the pieces a stripe of rows output rows is decoded
+     * in, so that the region under each piece takes at most MAX_REGION_SCALE
+     * times its output pixels when decoded at sampleSize, or the width of the
+     * stripe if it can be decoded at once. Pieces are not made narrower than
+     * they are tall.
+     *
+     * @param toImage maps output coordinates to image coordinates.
+     */
+    static int getPieceWidth(AffineMatrix toImage, int width, int rows, int sampleSize) {
+        Rect region = new Rect();
+        int piece = width;
+        while (piece > rows) {
+            getRegion(toImage, 0, 0, piece, rows, sampleSize, region);
+            long pixels = (long) region.width() * region.height() / sampleSize / sampleSize;
+            if (pixels <= (long) MAX_REGION_SCALE * piece * rows) {
+                break;
+            }
+            piece = (piece + 1) / 2;
+        }
+        return piece;
+    }
+
+    /**
+     * Sets region to the image pixels under the given output rect, with the
+     * margin that keeps filtering seamless. It is not clipped to the image.
+     */
+    static void getRegion(AffineMatrix toImage, int left, int top, int right, int bottom,
+            int sampleSize, Rect region) {
+        RectF source = new RectF(left, top, right, bottom);
+        toImage.mapRect(source);
+        source.roundOut(region);
+        region.inset(-MARGIN * sampleSize, -MARGIN * sampleSize);
+    }
+
+    /**
+     * Returns the number of bytes the in memory path would need at once to
+     * produce a outputWidth x outputHeight crop from a decoded region of
+     * regionWidth x regionHeight: the region, the rotated or scaled copy and
+     * the circle mask if any.
+     */
+    static long getInMemoryBytes(int regionWidth, int regionHeight, int outputWidth,
+            int outputHeight, boolean circle) {
+        long region = (long) regionWidth * regionHeight * 4;
+        long output = (long) outputWidth * outputHeight * 4;
+        return region + output * (circle ? 2 : 1);
+    }
+
+    /**
+     * Encodes the output to out in format with quality, see
+     * Bitmap.compress(). Returns false if a stripe could not be decoded.
+     */
+    boolean encode(OutputStream out, Bitmap.CompressFormat format, int quality)
+            throws IOException {
+        if (format == Bitmap.CompressFormat.PNG) {
+            return encode(new PngStreamEncoder(out, mWidth, mHeight, true));
+        }
+        return encode(new JpegStreamEncoder(out, mWidth, mHeight, quality));
+    }
+
+    /**
+     * Encodes the output with encoder, which must be for an image of the
+     * output size. Returns false if a stripe could not be made. Can be
+     * called once.
+     */
+    boolean encode(StripeEncoder encoder) throws IOException {
+        int alignment = encoder.getRowAlignment();
+        int rows = Math.max(1, STRIPE_BYTES / (mWidth * 4));
+        mStripeRows = Math.max(alignment, rows / alignment * alignment);
+        mStripeRows = Math.min(mStripeRows, mHeight);
+        for (int i = 0; i < BUFFERS; i++) {
+            mFree.add(new int[mStripeRows * mWidth]);
+        }
+
+        Thread decodeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decodeStripes();
+            }
+        }, LOGTAG);
+        decodeThread.start();
+        try {
+            for (int y = 0; ; y += mStripeRows) {
+                int[] pixels = mFilled.take();
+                if (pixels == END) {
+                    break;
+                } else if (pixels == FAILED) {
+                    return false;
+                }
+                encoder.writeRows(pixels, Math.min(mStripeRows, mHeight - y));
+                mFree.put(pixels);
+            }
+            encoder.finish();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            mCancelled = true;
+            decodeThread.interrupt();
+            // the caller recycles the decoder once this returns
+            joinUninterruptibly(decodeThread);
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void decodeStripes() {
+        boolean opened = false;
+        boolean sent = false;
+        try {
+            mSource.open(mWidth, mStripeRows);
+            opened = true;
+            for (int y = 0; y < mHeight && !mCancelled; y += mStripeRows) {
+                int rows = Math.min(mStripeRows, mHeight - y);
+                int[] pixels = mFree.take();
+                if (!mSource.read(pixels, y, rows)) {
+                    Log.w(LOGTAG, "cannot decode stripe at row " + y);
+                    return;
+                }
+                if (mCircle) {
+                    maskCircle(pixels, y, rows);
+                }
+                mFilled.put(pixels);
+            }
+            mFilled.put(END);
+            sent = true;
+        } catch (InterruptedException e) {
+            // the encoder is gone
+        } finally {
+            if (!sent) {
+                // do not leave the encoder waiting, whatever went wrong
+                mFilled.offer(FAILED);
+            }
+            if (opened) {
+                mSource.close();
+            }
+        }
+    }
+
+    /**
+     * Clears the pixels of the rows starting at y that are outside of the
+     * circle, blending the one pixel wide edge.
+     */
+    private void maskCircle(int[] pixels, int y, int rows) {
+        float radius = Math.min(mWidth, mHeight) / 2f;
+        float cx = mWidth / 2f;
+        float cy = mHeight / 2f;
+        for (int row = 0; row < rows; row++) {
+            float dy = y + row + 0.5f - cy;
+            for (int x = 0; x < mWidth; x++) {
+                float dx = x + 0.5f - cx;
+                float coverage = radius - (float) Math.sqrt(dx * dx + dy * dy) + 0.5f;
+                int i = row * mWidth + x;
+                if (coverage <= 0) {
+                    pixels[i] = 0;
+                } else if (coverage < 1) {
+                    int alpha = (int) ((pixels[i] >>> 24) * coverage);
+                    pixels[i] = (alpha << 24) | (pixels[i] & 0xFFFFFF);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes each stripe by decoding the part of the image under it with a
+     * {@link BitmapRegionDecoder} and drawing it through the output matrix,
+     * a piece at a time.
+     */
+    private static class RegionSource implements Source {
+        private final BitmapRegionDecoder mDecoder;
+        private final Rect mImageBounds;
+        private final Matrix mToOutput;
+        private final AffineMatrix mToImage = new AffineMatrix();
+        private final int mSampleSize;
+        private int mWidth;
+        private int mPieceWidth;
+        private Bitmap mStripe;
+        private Canvas mCanvas;
+        private Paint mPaint;
+
+        RegionSource(BitmapRegionDecoder decoder, Matrix toOutput, int sampleSize) {
+            Matrix toImage = new Matrix();
+            if (decoder == null || toOutput == null || sampleSize < 1
+                    || !toOutput.invert(toImage)) {
+                throw new IllegalArgumentException("bad argument to StripedCrop");
+            }
+            float[] values = new float[9];
+            toImage.getValues(values);
+            mToImage.setValues(values);
+            mDecoder = decoder;
+            mImageBounds = new Rect(0, 0, decoder.getWidth(), decoder.getHeight());
+            mToOutput = new Matrix(toOutput);
+            mSampleSize = sampleSize;
+        }
+
+        @Override
+        public void open(int width, int stripeRows) {
+            mWidth = width;
+            mPieceWidth = getPieceWidth(mToImage, width, stripeRows, mSampleSize);
+            mStripe = Bitmap.createBitmap(width, stripeRows, Bitmap.Config.ARGB_8888);
+            mCanvas = new Canvas(mStripe);
+            mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        }
+
+        @Override
+        public boolean read(int[] pixels, int y, int rows) {
+            if (!drawStripe(y)) {
+                return false;
+            }
+            mStripe.getPixels(pixels, 0, mWidth, 0, 0, mWidth, rows);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (mStripe != null) {
+                mStripe.recycle();
+            }
+        }
+
+        /**
+         * Draws the output rows starting at y into the stripe. Returns false
+         * if the image under them could not be decoded.
+         */
+        private boolean drawStripe(int y) {
+            mStripe.eraseColor(Color.TRANSPARENT);
+            int rows = mStripe.getHeight();
+            Rect region = new Rect();
+            for (int x = 0; x < mWidth; x += mPieceWidth) {
+                int right = Math.min(x + mPieceWidth, mWidth);
+                getRegion(mToImage, x, y, right, y + rows, mSampleSize, region);
+                if (!region.intersect(mImageBounds)) {
+                    // outside of the image, leave it transparent
+                    continue;
+                }
+                Bitmap bitmap = decodeRegion(region);
+                if (bitmap == null) {
+                    return false;
+                }
+                Matrix m = new Matrix();
+                m.setScale(mSampleSize, mSampleSize);
+                m.postTranslate(region.left, region.top);
+                m.postConcat(mToOutput);
+                m.postTranslate(0, -y);
+                // the region reaches into the neighboring pieces, whose own
+                // regions filter those pixels correctly
+                mCanvas.save();
+                mCanvas.clipRect(x, 0, right, rows);
+                mCanvas.drawBitmap(bitmap, m, mPaint);
+                mCanvas.restore();
+                BitmapPool.getDefault().put(bitmap);
+            }
+            return true;
+        }
+
+        private Bitmap decodeRegion(Rect region) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = mSampleSize;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            BitmapPool pool = BitmapPool.getDefault();
+            pool.setInBitmap(options, region.width(), region.height());
+            Bitmap bitmap;
+            try {
+                bitmap = mDecoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                pool.put(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = mDecoder.decodeRegion(region, options);
+            }
+            if (bitmap != options.inBitmap) {
+                pool.put(options.inBitmap);
+            }
+            return bitmap;
+        }
+    }
+}
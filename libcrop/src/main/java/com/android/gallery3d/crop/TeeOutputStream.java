@@ -0,0 +1,85 @@
+package com.android.gallery3d.crop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Writes everything written to it to each of a list of streams as it
+ * arrives, so an encoder can feed several destinations without its output
+ * being copied into memory first. A stream that fails is dropped and the
+ * others keep getting written, writes only fail once all streams did.
+ * Closing it does not close the streams.
+ */
+class TeeOutputStream extends OutputStream {
+    private final ArrayList<OutputStream> mStreams = new ArrayList<OutputStream>();
+    private final ArrayList<OutputStream> mFailed = new ArrayList<OutputStream>();
+
+    void add(OutputStream out) {
+        if (out == null) {
+            throw new IllegalArgumentException("bad argument to add");
+        }
+        mStreams.add(out);
+    }
+
+    boolean isEmpty() {
+        return mStreams.isEmpty() && mFailed.isEmpty();
+    }
+
+    /**
+     * Returns true if writing to out failed.
+     */
+    boolean hasFailed(OutputStream out) {
+        return mFailed.contains(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        IOException error = null;
+        for (int i = mStreams.size() - 1; i >= 0; i--) {
+            try {
+                mStreams.get(i).write(b);
+            } catch (IOException e) {
+                error = fail(i, e);
+            }
+        }
+        checkError(error);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        IOException error = null;
+        for (int i = mStreams.size() - 1; i >= 0; i--) {
+            try {
+                mStreams.get(i).write(b, off, len);
+            } catch (IOException e) {
+                error = fail(i, e);
+            }
+        }
+        checkError(error);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        IOException error = null;
+        for (int i = mStreams.size() - 1; i >= 0; i--) {
+            try {
+                mStreams.get(i).flush();
+            } catch (IOException e) {
+                error = fail(i, e);
+            }
+        }
+        checkError(error);
+    }
+
+    private IOException fail(int i, IOException e) {
+        mFailed.add(mStreams.remove(i));
+        return e;
+    }
+
+    private void checkError(IOException error) throws IOException {
+        if (error != null && mStreams.isEmpty()) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.android.gallery3d.crop;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Full resolution tiles of a large image, decoded on demand in the
+ * background with a {@link BitmapRegionDecoder}. Level n of the pyramid is
+ * the image subsampled by 2^n and cut into TILE_SIZE square tiles, so a tile
+ * covers TILE_SIZE << n source pixels on each side.
+ * <p>
+ * Decoded tiles are kept in an LRU cache bounded by bytes, evicted tiles go
+ * back to the {@link BitmapPool}, so memory use depends on the budget and
+ * not on the size of the source. Tiles requested for a frame that are still
+ * queued when the next frame starts are dropped, which keeps a fast pan or
+ * zoom from building up a backlog of tiles nobody looks at anymore.
+ * <p>
+ * Tiles requested or returned in the current or the previous frame are
+ * never evicted: the current frame would request them again and never
+ * finish loading, and a frame that is still being rendered may draw them, so
+ * they must not be reused by the pool. The cache can go over its budget by
+ * those tiles, {@link #getFittingLevel(int, Rect)} picks levels that keep
+ * them within it.
+ */
+public class TiledImage {
+    private static final String LOGTAG = "TiledImage";
+
+    public static final int TILE_SIZE = 256;
+    // bytes of a full ARGB_8888 tile
+    private static final long TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+    private static final int DEFAULT_MEMORY_FRACTION = 16;
+
+    /**
+     * Called on the decoding thread when a tile becomes available.
+     */
+    public interface Callback {
+        void onTileDecoded();
+    }
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mMaxBytes;
+
+    private final LinkedHashMap<Long, Bitmap> mTiles = new LinkedHashMap<Long, Bitmap>(16, 0.75f,
+            true);
+    private long mBytes = 0;
+    private final HashSet<Long> mPending = new HashSet<Long>();
+    private final HashSet<Long> mWanted = new HashSet<Long>();
+    // tiles returned by getTile in the current and the previous frame
+    private HashSet<Long> mDrawn = new HashSet<Long>();
+    private HashSet<Long> mLastDrawn = new HashSet<Long>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Object mDecoderLock = new Object();
+    private BitmapRegionDecoder mDecoder = null;
+    private boolean mDecoderFailed = false;
+    private boolean mReleased = false;
+    private volatile Callback mCallback;
+
+    /**
+     * @param width  width of the source image in pixels.
+     * @param height height of the source image in pixels.
+     */
+    public TiledImage(Context context, Uri uri, int width, int height) {
+        this(context, uri, width, height,
+                Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_FRACTION);
+    }
+
+    public TiledImage(Context context, Uri uri, int width, int height, long maxBytes) {
+        if (context == null || uri == null || width <= 0 || height <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("bad argument to TiledImage");
+        }
+        mContext = context.getApplicationContext();
+        mUri = uri;
+        mWidth = width;
+        mHeight = height;
+        mMaxBytes = maxBytes;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Starts a new frame, tiles not requested again through
+     * {@link #getTile(int, int, int)} before they are decoded are skipped.
+     */
+    public synchronized void beginFrame() {
+        mWanted.clear();
+        HashSet<Long> drawn = mLastDrawn;
+        mLastDrawn = mDrawn;
+        mDrawn = drawn;
+        mDrawn.clear();
+    }
+
+    /**
+     * Returns the tile at col, row of the given level, or null if it is not
+     * decoded yet, in which case it is queued for decoding.
+     */
+    public synchronized Bitmap getTile(int level, int col, int row) {
+        if (mReleased) {
+            return null;
+        }
+        Long key = key(level, col, row);
+        Bitmap tile = mTiles.get(key);
+        if (tile != null) {
+            mDrawn.add(key);
+            return tile;
+        } else if (mDecoderFailed) {
+            return null;
+        }
+        mWanted.add(key);
+        if (mPending.add(key)) {
+            mExecutor.execute(new DecodeTask(level, col, row, key));
+        }
+        return null;
+    }
+
+    /**
+     * Sets out to the source pixels covered by the tile at col, row of the
+     * given level.
+     */
+    public void getTileRect(int level, int col, int row, Rect out) {
+        int size = TILE_SIZE << level;
+        out.set(col * size, row * size, Math.min((col + 1) * size, mWidth),
+                Math.min((row + 1) * size, mHeight));
+    }
+
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the finest level, from level up, at which the tiles covering
+     * the source pixels in visible fit in the cache together.
+     */
+    public int getFittingLevel(int level, Rect visible) {
+        int longSide = Math.max(mWidth, mHeight);
+        while ((TILE_SIZE << level) < longSide) {
+            int size = TILE_SIZE << level;
+            long cols = (visible.right - 1) / size - visible.left / size + 1;
+            long rows = (visible.bottom - 1) / size - visible.top / size + 1;
+            if (cols * rows * TILE_BYTES <= mMaxBytes) {
+                break;
+            }
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns least recently drawn tiles to the pool until at most maxBytes
+     * are held, or only tiles of the last two frames are left. Dropped tiles
+     * are decoded again when they are drawn.
+     */
+    public synchronized void trimTo(long maxBytes) {
+        evictTo(maxBytes, null);
+    }
+
+    /**
+     * Stops decoding and returns all tiles to the pool. The image can not be
+     * used afterwards.
+     */
+    public void release() {
+        synchronized (this) {
+            mReleased = true;
+            mCallback = null;
+            for (Map.Entry<Long, Bitmap> entry : mTiles.entrySet()) {
+                // a frame may still draw these, leave them to the collector
+                if (!isInUse(entry.getKey())) {
+                    BitmapPool.getDefault().put(entry.getValue());
+                }
+            }
+            mTiles.clear();
+            mBytes = 0;
+        }
+        mExecutor.shutdownNow();
+        synchronized (mDecoderLock) {
+            if (mDecoder != null) {
+                mDecoder.recycle();
+                mDecoder = null;
+            }
+        }
+    }
+
+    private static long key(int level, int col, int row) {
+        return ((long) level << 48) | ((long) col << 24) | row;
+    }
+
+    private synchronized boolean isWanted(Long key) {
+        if (!mReleased && mWanted.contains(key)) {
+            return true;
+        }
+        mPending.remove(key);
+        return false;
+    }
+
+    private synchronized void putTile(Long key, Bitmap tile) {
+        mPending.remove(key);
+        if (mReleased) {
+            BitmapPool.getDefault().put(tile);
+            return;
+        }
+        mTiles.put(key, tile);
+        mBytes += tile.getByteCount();
+        evictTo(mMaxBytes, key);
+    }
+
+    /**
+     * Returns least recently drawn tiles other than keep and those in use to
+     * the pool until at most maxBytes are held.
+     */
+    private void evictTo(long maxBytes, Long keep) {
+        Iterator<Map.Entry<Long, Bitmap>> it = mTiles.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Long, Bitmap> eldest = it.next();
+            if (eldest.getKey().equals(keep) || isInUse(eldest.getKey())) {
+                continue;
+            }
+            it.remove();
+            mBytes -= eldest.getValue().getByteCount();
+            BitmapPool.getDefault().put(eldest.getValue());
+        }
+    }
+
+    private boolean isInUse(Long key) {
+        return mWanted.contains(key) || mDrawn.contains(key) || mLastDrawn.contains(key);
+    }
+
+    private synchronized void failTile(Long key) {
+        mPending.remove(key);
+    }
+
+    // Runs on the decoding thread only.
+    private BitmapRegionDecoder getDecoder() {
+        synchronized (this) {
+            if (mReleased) {
+                return null;
+            }
+        }
+        if (mDecoder == null && !mDecoderFailed) {
+            InputStream is = null;
+            try {
+                is = mContext.getContentResolver().openInputStream(mUri);
+                mDecoder = BitmapRegionDecoder.newInstance(is, false);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "cannot open region decoder for " + mUri, e);
+            } finally {
+                Utils.closeSilently(is);
+            }
+            if (mDecoder == null) {
+                synchronized (this) {
+                    mDecoderFailed = true;
+                }
+            }
+        }
+        return mDecoder;
+    }
+
+    private class DecodeTask implements Runnable {
+        private final int mLevel;
+        private final int mCol;
+        private final int mRow;
+        private final Long mKey;
+
+        DecodeTask(int level, int col, int row, Long key) {
+            mLevel = level;
+            mCol = col;
+            mRow = row;
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            if (!isWanted(mKey)) {
+                return;
+            }
+            Rect region = new Rect();
+            getTileRect(mLevel, mCol, mRow, region);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inMutable = true;
+            options.inSampleSize = 1 << mLevel;
+            BitmapPool pool = BitmapPool.getDefault();
+            pool.setInBitmap(options, region.width(), region.height());
+            Bitmap tile = null;
+            synchronized (mDecoderLock) {
+                BitmapRegionDecoder decoder = getDecoder();
+                if (decoder != null) {
+                    try {
+                        tile = decoder.decodeRegion(region, options);
+                    } catch (IllegalArgumentException e) {
+                        // the pooled bitmap did not fit, try again without it
+                        pool.put(options.inBitmap);
+                        options.inBitmap = null;
+                        tile = decoder.decodeRegion(region, options);
+                    }
+                }
+            }
+            if (options.inBitmap != null && tile != options.inBitmap) {
+                pool.put(options.inBitmap);
+            }
+            if (tile == null) {
+                failTile(mKey);
+                return;
+            }
+            putTile(mKey, tile);
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onTileDecoded();
+            }
+        }
+    }
+}
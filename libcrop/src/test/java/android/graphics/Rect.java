@@ -0,0 +1,125 @@
+package android.graphics;
+
+/**
+ * Pure-Java copy of the framework Rect so the crop geometry can be
+ * unit tested and benchmarked on a plain JVM.
+ */
+public final class Rect {
+    public int left;
+    public int top;
+    public int right;
+    public int bottom;
+
+    public Rect() {
+    }
+
+    public Rect(int left, int top, int right, int bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public Rect(Rect r) {
+        if (r != null) {
+            set(r);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Rect r = (Rect) o;
+        return left == r.left && top == r.top && right == r.right && bottom == r.bottom;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = left;
+        result = 31 * result + top;
+        result = 31 * result + right;
+        result = 31 * result + bottom;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Rect(" + left + ", " + top + " - " + right + ", " + bottom + ")";
+    }
+
+    public final boolean isEmpty() {
+        return left >= right || top >= bottom;
+    }
+
+    public final int width() {
+        return right - left;
+    }
+
+    public final int height() {
+        return bottom - top;
+    }
+
+    public final int centerX() {
+        return (left + right) >> 1;
+    }
+
+    public final int centerY() {
+        return (top + bottom) >> 1;
+    }
+
+    public void setEmpty() {
+        left = right = top = bottom = 0;
+    }
+
+    public void set(int left, int top, int right, int bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public void set(Rect src) {
+        left = src.left;
+        top = src.top;
+        right = src.right;
+        bottom = src.bottom;
+    }
+
+    public void offset(int dx, int dy) {
+        left += dx;
+        top += dy;
+        right += dx;
+        bottom += dy;
+    }
+
+    public void inset(int dx, int dy) {
+        left += dx;
+        top += dy;
+        right -= dx;
+        bottom -= dy;
+    }
+
+    public boolean contains(int x, int y) {
+        return left < right && top < bottom && x >= left && x < right && y >= top && y < bottom;
+    }
+
+    public boolean intersect(int left, int top, int right, int bottom) {
+        if (this.left < right && left < this.right && this.top < bottom && top < this.bottom) {
+            if (this.left < left) this.left = left;
+            if (this.top < top) this.top = top;
+            if (this.right > right) this.right = right;
+            if (this.bottom > bottom) this.bottom = bottom;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean intersect(Rect r) {
+        return intersect(r.left, r.top, r.right, r.bottom);
+    }
+
+    public static boolean intersects(Rect a, Rect b) {
+        return a.left < b.right && b.left < a.right && a.top < b.bottom && b.top < a.bottom;
+    }
+}
@@ -0,0 +1,191 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.RectF;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CropMathTest {
+    private static final int CASES = 20000;
+    // aspect ratios tried by the brute-force search for the free case
+    private static final int ASPECT_STEPS = 64;
+    private static final double GROW = 1.001;
+
+    @Test
+    public void largestInscribedRectFitsAndCannotGrow() {
+        Random random = new Random(7);
+        RectF bounds = new RectF();
+        RectF out = new RectF();
+        for (int i = 0; i < CASES; i++) {
+            float w = 1 + random.nextFloat() * 4999;
+            float h = 1 + random.nextFloat() * 4999;
+            float x = (random.nextFloat() - 0.5f) * 1000;
+            float y = (random.nextFloat() - 0.5f) * 1000;
+            bounds.set(x, y, x + w, y + h);
+            float degrees = (random.nextFloat() - 0.5f) * 360;
+            boolean fixed = random.nextBoolean();
+            float aspectW = fixed ? 1 + random.nextInt(16) : 0;
+            float aspectH = fixed ? 1 + random.nextInt(16) : 0;
+            String name = "case " + i + ": " + bounds + " at " + degrees + " for "
+                    + aspectW + ":" + aspectH;
+
+            CropMath.largestInscribedRect(bounds, degrees, aspectW, aspectH, out);
+
+            assertEquals(name, bounds.centerX(), out.centerX(), 1e-3 * w);
+            assertEquals(name, bounds.centerY(), out.centerY(), 1e-3 * h);
+            assertTrue(name, fits(bounds, degrees, out.width(), out.height(), 1e-4));
+            if (fixed) {
+                assertEquals(name, aspectW / aspectH, out.width() / out.height(),
+                        1e-3 * aspectW / aspectH);
+                assertFalse(name, fits(bounds, degrees, out.width() * GROW,
+                        out.height() * GROW, 0));
+            } else {
+                double area = (double) out.width() * out.height();
+                assertTrue(name, area * GROW >= bruteForceArea(bounds, degrees));
+            }
+        }
+    }
+
+    @Test
+    public void largestInscribedRectOfEmptyBoundsIsEmpty() {
+        RectF out = new RectF(1, 2, 3, 4);
+        CropMath.largestInscribedRect(new RectF(10, 20, 10, 60), 30, 0, 0, out);
+        assertEquals(new RectF(10, 40, 10, 40), out);
+    }
+
+    @Test
+    public void largestInscribedRectWithoutRotationIsBounds() {
+        RectF bounds = new RectF(-20, 10, 380, 310);
+        RectF out = new RectF();
+        CropMath.largestInscribedRect(bounds, 0, 0, 0, out);
+        assertEquals(bounds, out);
+        CropMath.largestInscribedRect(bounds, 180, 0, 0, out);
+        assertEquals(bounds, out);
+        CropMath.largestInscribedRect(bounds, 0, 1, 1, out);
+        assertEquals(new RectF(30, 10, 330, 310), out);
+    }
+
+    @Test
+    public void batchScaledCropBoundsMatchPerRect() throws InterruptedException {
+        // three full chunks and a short one, so chunk boundaries are crossed
+        int size = CropMath.MIN_PARALLEL_CHUNK * 3 + 17;
+        Random random = new Random(11);
+        RectBatch crops = new RectBatch(size);
+        RectBatch photos = new RectBatch(size);
+        RectBatch displays = new RectBatch(size);
+        for (int i = 0; i < size; i++) {
+            RectF photo = randomRect(random);
+            photos.set(i, photo);
+            float l = photo.left + random.nextFloat() * photo.width();
+            float t = photo.top + random.nextFloat() * photo.height();
+            crops.set(i, l, t, l + random.nextFloat() * (photo.right - l),
+                    t + random.nextFloat() * (photo.bottom - t));
+            displays.set(i, randomRect(random));
+        }
+        RectF[] expected = new RectF[size];
+        RectF crop = new RectF();
+        RectF photo = new RectF();
+        RectF display = new RectF();
+        for (int i = 0; i < size; i++) {
+            crops.get(i, crop);
+            photos.get(i, photo);
+            displays.get(i, display);
+            expected[i] = CropMath.getScaledCropBounds(crop, photo, display);
+        }
+
+        RectBatch serial = new RectBatch(size);
+        CropMath.getScaledCropBounds(crops, photos, displays, serial);
+        assertBatchEquals(expected, serial);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int parallelism = 1; parallelism <= 5; parallelism++) {
+                RectBatch parallel = new RectBatch(size);
+                CropMath.getScaledCropBounds(crops, photos, displays, parallel, executor,
+                        parallelism);
+                assertBatchEquals(expected, parallel);
+            }
+            // in place
+            CropMath.getScaledCropBounds(crops, photos, displays, crops, executor, 4);
+            assertBatchEquals(expected, crops);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void scaledCropBoundsOfEmptyBounds() {
+        RectF crop = new RectF(10, 20, 30, 40);
+        assertEquals(crop, CropMath.getScaledCropBounds(crop, new RectF(0, 0, 0, 100),
+                new RectF(0, 0, 50, 50)));
+        assertNull(CropMath.getScaledCropBounds(crop, new RectF(0, 0, 100, 100),
+                new RectF(0, 0, 50, 0)));
+    }
+
+    private static RectF randomRect(Random random) {
+        float l = (random.nextFloat() - 0.5f) * 10000;
+        float t = (random.nextFloat() - 0.5f) * 10000;
+        return new RectF(l, t, l + 1 + random.nextFloat() * 5000,
+                t + 1 + random.nextFloat() * 5000);
+    }
+
+    private static void assertBatchEquals(RectF[] expected, RectBatch actual) {
+        RectF r = new RectF();
+        for (int i = 0; i < expected.length; i++) {
+            actual.get(i, r);
+            assertEquals("rect " + i, expected[i], r);
+        }
+    }
+
+    // Largest area over sampled aspect ratios, each found by bisection on fits.
+    private static double bruteForceArea(RectF bounds, float degrees) {
+        double best = 0;
+        for (int i = 0; i <= ASPECT_STEPS; i++) {
+            double aspect = Math.pow(64, (double) i / ASPECT_STEPS * 2 - 1);
+            double lo = 0;
+            double hi = Math.max(bounds.width(), bounds.height()) * 2;
+            for (int step = 0; step < 40; step++) {
+                double mid = (lo + hi) / 2;
+                if (fits(bounds, degrees, mid * aspect, mid, 0)) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            best = Math.max(best, lo * aspect * lo);
+        }
+        return best;
+    }
+
+    // Whether a w x h rect centered on bounds fits inside bounds rotated by
+    // degrees about its center, checked by turning the rect's corners back
+    // into the frame of bounds.
+    private static boolean fits(RectF bounds, float degrees, double w, double h,
+            double slack) {
+        double radians = Math.toRadians(-degrees);
+        double sin = Math.sin(radians);
+        double cos = Math.cos(radians);
+        double halfW = bounds.width() / 2.0;
+        double halfH = bounds.height() / 2.0;
+        double tolW = halfW * slack;
+        double tolH = halfH * slack;
+        for (int i = 0; i < 4; i++) {
+            double x = (i & 1) == 0 ? -w / 2 : w / 2;
+            double y = (i & 2) == 0 ? -h / 2 : h / 2;
+            double rx = x * cos - y * sin;
+            double ry = x * sin + y * cos;
+            if (Math.abs(rx) > halfW + tolW || Math.abs(ry) > halfH + tolH) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
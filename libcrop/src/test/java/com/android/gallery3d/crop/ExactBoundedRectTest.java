@@ -0,0 +1,113 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.RectF;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExactBoundedRectTest {
+    private static final int EVENTS = 500000;
+    // events between resets to a new outer rect, rotation and aspect ratio
+    private static final int EVENTS_PER_RESET = 1000;
+    private static final float MIN_SIDE = 50;
+
+    @Test
+    public void aspectLockedDragsKeepAspectAndStayInside() {
+        Random random = new Random(8);
+        RectF outer = new RectF();
+        RectF inner = new RectF();
+        ExactBoundedRect rect = null;
+        float aspect = 1;
+        float rotation = 0;
+        double maxError = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            if (i % EVENTS_PER_RESET == 0) {
+                float w = 500 + random.nextFloat() * 1500;
+                float h = 500 + random.nextFloat() * 1500;
+                outer.set(0, 0, w, h);
+                rotation = random.nextInt(4) * 90 + (random.nextFloat() - 0.5f) * 90;
+                float aspectW = 1 + random.nextInt(16);
+                float aspectH = 1 + random.nextInt(16);
+                aspect = aspectW / aspectH;
+                inner.set(w / 4, h / 4, w * 3 / 4, h * 3 / 4);
+                rect = new ExactBoundedRect(rotation, outer, inner);
+                rect.setAspectRatio(aspectW, aspectH);
+            }
+            rect.setToInner(inner);
+            if (random.nextBoolean()) {
+                rect.moveInner((random.nextFloat() - 0.5f) * 200,
+                        (random.nextFloat() - 0.5f) * 200);
+            } else {
+                float width = Math.max(MIN_SIDE * Math.max(aspect, 1),
+                        inner.width() * (0.5f + random.nextFloat()));
+                rect.fixedAspectResizeInner(random.nextInt(4) * 2, width);
+            }
+            rect.setToInner(inner);
+            assertInside("event " + i, outer, rotation, inner);
+            maxError = Math.max(maxError,
+                    Math.abs(inner.width() / inner.height() / aspect - 1));
+        }
+        assertTrue("aspect error " + maxError, maxError < 1e-5);
+    }
+
+    @Test
+    public void constructorFitsInnerIntoRotatedOuter() {
+        RectF outer = new RectF(0, 0, 400, 300);
+        RectF inner = new RectF(-50, -50, 450, 350);
+        for (int degrees = -180; degrees <= 180; degrees += 15) {
+            ExactBoundedRect rect = new ExactBoundedRect(degrees, outer, inner);
+            RectF fitted = rect.getInner();
+            assertInside(degrees + " degrees", outer, degrees, fitted);
+            assertEquals(500f / 400f, fitted.width() / fitted.height(), 1e-5f);
+            assertEquals(outer, rect.getOuter());
+        }
+    }
+
+    @Test
+    public void resetToMatchesNewInstance() {
+        RectF outer = new RectF(10, 20, 610, 420);
+        RectF inner = new RectF(0, 0, 700, 100);
+        ExactBoundedRect rect = new ExactBoundedRect(0, new RectF(0, 0, 50, 50),
+                new RectF(10, 10, 20, 20));
+        rect.resetTo(30, outer, inner);
+        ExactBoundedRect expected = new ExactBoundedRect(30, outer, inner);
+        assertEquals(expected.getInner(), rect.getInner());
+        assertEquals(expected.getOuter(), rect.getOuter());
+    }
+
+    @Test
+    public void setRotationKeepsLockedAspect() {
+        RectF outer = new RectF(0, 0, 800, 600);
+        ExactBoundedRect rect = new ExactBoundedRect(0, outer, new RectF(outer));
+        rect.setAspectRatio(16, 9);
+        for (int degrees = 0; degrees <= 45; degrees += 5) {
+            rect.setRotation(degrees);
+            RectF inner = rect.getInner();
+            assertInside(degrees + " degrees", outer, degrees, inner);
+            assertEquals(16f / 9f, inner.width() / inner.height(), 1e-5f);
+        }
+    }
+
+    // Checks inner's corners against outer rotated by degrees about its center.
+    private static void assertInside(String message, RectF outer, float degrees, RectF inner) {
+        double radians = Math.toRadians(-degrees);
+        double sin = Math.sin(radians);
+        double cos = Math.cos(radians);
+        double cx = outer.centerX();
+        double cy = outer.centerY();
+        double tolerance = 1e-3;
+        for (int i = 0; i < 4; i++) {
+            double x = ((i & 1) == 0 ? inner.left : inner.right) - cx;
+            double y = ((i & 2) == 0 ? inner.top : inner.bottom) - cy;
+            double rx = cx + x * cos - y * sin;
+            double ry = cy + x * sin + y * cos;
+            assertTrue(message + ": " + inner + " in " + outer,
+                    rx >= outer.left - tolerance && rx <= outer.right + tolerance
+                            && ry >= outer.top - tolerance && ry <= outer.bottom + tolerance);
+        }
+    }
+}
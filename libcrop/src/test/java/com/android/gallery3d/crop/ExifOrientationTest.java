@@ -0,0 +1,152 @@
+package com.android.gallery3d.crop;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExifOrientationTest {
+    // rotation of the EXIF orientations 1 to 8, as ExifInterface.getRotationDegrees
+    private static final int[] ROTATIONS = {0, 0, 180, 180, 270, 90, 90, 270};
+
+    @Test
+    public void orientationsMapToRotations() throws IOException {
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            int expected = ROTATIONS[orientation - 1];
+            for (int i = 0; i < 4; i++) {
+                boolean bigEndian = (i & 1) != 0;
+                boolean jfif = (i & 2) != 0;
+                String name = "orientation " + orientation + (bigEndian ? " MM" : " II")
+                        + (jfif ? " after JFIF" : "");
+                ImageHeader header = new ImageHeader();
+                assertTrue(name, header.readOrientation(new ByteArrayInputStream(
+                        createJpeg(orientation, bigEndian, jfif))));
+                assertEquals(name, orientation, header.getOrientation());
+                assertEquals(name, expected, ImageLoader.getRotation(header.getOrientation()));
+            }
+        }
+    }
+
+    @Test
+    public void degreesMapToOrientations() {
+        for (int degrees = -360; degrees <= 720; degrees += 90) {
+            int orientation = ImageLoader.getOrientationForDegrees(degrees);
+            assertEquals("" + degrees, ((degrees % 360) + 360) % 360,
+                    ImageLoader.getRotation(orientation));
+        }
+        assertEquals(ImageLoader.ORI_ROTATE_90, ImageLoader.getOrientationForDegrees(-270));
+    }
+
+    @Test
+    public void readFindsOrientationAndSize() throws IOException {
+        ImageHeader header = new ImageHeader();
+        assertTrue(header.read(new ByteArrayInputStream(createJpeg(6, false, true))));
+        assertEquals(ImageLoader.ORI_ROTATE_90, header.getOrientation());
+        assertEquals(640, header.getWidth());
+        assertEquals(480, header.getHeight());
+    }
+
+    @Test
+    public void orientationSegmentRoundTrips() throws IOException {
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ExifOrientationOutputStream out = new ExifOrientationOutputStream(bytes, orientation);
+            out.write(createJpeg(0, true, true));
+            out.close();
+            ImageHeader header = new ImageHeader();
+            assertTrue(header.read(new ByteArrayInputStream(bytes.toByteArray())));
+            assertEquals(orientation, header.getOrientation());
+            assertEquals(640, header.getWidth());
+        }
+    }
+
+    @Test
+    public void jpegWithoutExifHasNoOrientation() throws IOException {
+        ImageHeader header = new ImageHeader();
+        assertFalse(header.readOrientation(new ByteArrayInputStream(createJpeg(0, true, true))));
+        assertFalse(header.hasOrientation());
+        assertEquals(0, ImageLoader.getRotation(header.getOrientation()));
+    }
+
+    /**
+     * Returns the markers of a 640x480 JPEG up to its frame header, with an
+     * EXIF segment holding orientation unless it is 0. IFD0 has an entry
+     * before the orientation, so the reader has to walk it.
+     */
+    private static byte[] createJpeg(int orientation, boolean bigEndian, boolean jfif) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        if (jfif) {
+            byte[] app0 = {(byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0,
+                    0, 1, 0, 1, 0, 0};
+            out.write(app0, 0, app0.length);
+        }
+        if (orientation != 0) {
+            ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+            writeBytes(tiff, bigEndian ? "MM" : "II");
+            writeShort(tiff, 42, bigEndian);
+            writeInt(tiff, 8, bigEndian);
+            writeShort(tiff, 2, bigEndian);
+            // ImageWidth, LONG
+            writeShort(tiff, 0x0100, bigEndian);
+            writeShort(tiff, 4, bigEndian);
+            writeInt(tiff, 1, bigEndian);
+            writeInt(tiff, 640, bigEndian);
+            // Orientation, SHORT, left justified in the value field
+            writeShort(tiff, 0x0112, bigEndian);
+            writeShort(tiff, 3, bigEndian);
+            writeInt(tiff, 1, bigEndian);
+            writeShort(tiff, orientation, bigEndian);
+            writeShort(tiff, 0, bigEndian);
+            writeInt(tiff, 0, bigEndian);
+
+            out.write(0xFF);
+            out.write(0xE1);
+            writeShort(out, 2 + 6 + tiff.size(), true);
+            writeBytes(out, "Exif");
+            out.write(0);
+            out.write(0);
+            byte[] b = tiff.toByteArray();
+            out.write(b, 0, b.length);
+        }
+        // SOF0: 8 bit, 480 lines, 640 columns, one component
+        byte[] sof = {(byte) 0xFF, (byte) 0xC0, 0, 11, 8, 0x01, (byte) 0xE0, 0x02, (byte) 0x80,
+                1, 1, 0x11, 0};
+        out.write(sof, 0, sof.length);
+        out.write(0xFF);
+        out.write(0xD9);
+        return out.toByteArray();
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int v, boolean bigEndian) {
+        if (bigEndian) {
+            out.write(v >> 8);
+            out.write(v);
+        } else {
+            out.write(v);
+            out.write(v >> 8);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v, boolean bigEndian) {
+        if (bigEndian) {
+            writeShort(out, v >>> 16, true);
+            writeShort(out, v & 0xFFFF, true);
+        } else {
+            writeShort(out, v & 0xFFFF, false);
+            writeShort(out, v >>> 16, false);
+        }
+    }
+}
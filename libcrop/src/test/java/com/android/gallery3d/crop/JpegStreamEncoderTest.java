@@ -0,0 +1,81 @@
+package com.android.gallery3d.crop;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JpegStreamEncoderTest {
+    // sizes that are not multiples of the 16 pixel MCU, and a few that are
+    private static final int[][] SIZES = {
+            {1, 1}, {16, 16}, {37, 23}, {101, 67}, {300, 17}, {17, 300}
+    };
+
+    @Test
+    public void decodesBackCloseToSource() throws IOException {
+        for (int[] size : SIZES) {
+            int w = size[0];
+            int h = size[1];
+            String name = w + "x" + h;
+            int[] pixels = TestImages.smooth(w, h, false);
+            BufferedImage image = TestImages.decode(TestImages.encodeJpeg(pixels, w, h, 95));
+            assertEquals(name, w, image.getWidth());
+            assertEquals(name, h, image.getHeight());
+            double[] diff = TestImages.compareRgb(pixels, TestImages.getPixels(image), w, h, 0);
+            assertTrue(name + " max " + diff[0], diff[0] <= 12);
+            assertTrue(name + " mean " + diff[1], diff[1] < 1.5);
+        }
+    }
+
+    @Test
+    public void ignoresAlpha() throws IOException {
+        int w = 37;
+        int h = 23;
+        int[] translucent = TestImages.smooth(w, h, true);
+        int[] opaque = new int[translucent.length];
+        for (int i = 0; i < opaque.length; i++) {
+            opaque[i] = translucent[i] | 0xFF000000;
+        }
+        assertArrayEquals(TestImages.encodeJpeg(opaque, w, h, 90),
+                TestImages.encodeJpeg(translucent, w, h, 90));
+    }
+
+    @Test
+    public void stripeHeightDoesNotChangeOutput() throws IOException {
+        int w = 101;
+        int h = 67;
+        int[] pixels = TestImages.smooth(w, h, false);
+        byte[] expected = TestImages.encodeJpeg(pixels, w, h, 80);
+        for (int stripeRows = 32; stripeRows <= h + 16; stripeRows += 32) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TestImages.writeStripes(new JpegStreamEncoder(out, w, h, 80), pixels, w, h,
+                    stripeRows);
+            assertArrayEquals("stripes of " + stripeRows, expected, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void lowerQualityIsSmaller() throws IOException {
+        int[] pixels = TestImages.noise(64, 64, 1);
+        assertTrue(TestImages.encodeJpeg(pixels, 64, 64, 50).length
+                < TestImages.encodeJpeg(pixels, 64, 64, 95).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnalignedStripe() throws IOException {
+        JpegStreamEncoder encoder = new JpegStreamEncoder(new ByteArrayOutputStream(), 37, 23, 90);
+        encoder.writeRows(new int[37 * 10], 10);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishNeedsAllRows() throws IOException {
+        JpegStreamEncoder encoder = new JpegStreamEncoder(new ByteArrayOutputStream(), 37, 23, 90);
+        encoder.writeRows(new int[37 * 16], 16);
+        encoder.finish();
+    }
+}
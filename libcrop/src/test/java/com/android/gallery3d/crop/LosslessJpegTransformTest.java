@@ -0,0 +1,257 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LosslessJpegTransformTest {
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+    private static final int[] DEGREES = {0, 90, 180, 270};
+    // odd sizes, so the right and bottom MCUs are partly filled
+    private static final int WIDTH = 203;
+    private static final int HEIGHT = 141;
+
+    // layouts of encodeImageIo()
+    private static final int FULL_CHROMA = 1;
+    private static final int GRAY = 2;
+    private static final int RESTARTS = 3;
+    private static final int PROGRESSIVE = 4;
+
+    @Test
+    public void subsampledMatchesPixelTransform() throws IOException {
+        checkTransforms("4:2:0", TestImages.encodeJpeg(
+                TestImages.smooth(WIDTH, HEIGHT, false), WIDTH, HEIGHT, 95));
+    }
+
+    @Test
+    public void fullChromaMatchesPixelTransform() throws IOException {
+        checkTransforms("4:4:4", encodeImageIo(FULL_CHROMA));
+    }
+
+    @Test
+    public void grayMatchesPixelTransform() throws IOException {
+        checkTransforms("gray", encodeImageIo(GRAY));
+    }
+
+    @Test
+    public void restartIntervalsMatchPixelTransform() throws IOException {
+        byte[] jpeg = encodeImageIo(RESTARTS);
+        assertTrue(countRestartMarkers(jpeg) > 0);
+        checkTransforms("restarts", jpeg);
+    }
+
+    @Test
+    public void rotationsRoundTripExactly() throws IOException {
+        for (byte[] jpeg : new byte[][] {
+                TestImages.encodeJpeg(TestImages.smooth(WIDTH, HEIGHT, false), WIDTH, HEIGHT, 90),
+                encodeImageIo(FULL_CHROMA), encodeImageIo(GRAY), encodeImageIo(RESTARTS)}) {
+            // whole MCUs inside of the image, so no edge is trimmed
+            Rect crop = new Rect(16, 16, 176, 128);
+            byte[] expected = transform(jpeg, new Rect(crop), 0);
+            int[] pixels = TestImages.getPixels(TestImages.decode(expected));
+            for (int[] degrees : new int[][] {{90, 270}, {270, 90}, {180, 180}, {90, 90, 180}}) {
+                byte[] rotated = transform(jpeg, new Rect(crop), degrees[0]);
+                for (int i = 1; i < degrees.length; i++) {
+                    rotated = transform(rotated, new Rect(0, 0, 10000, 10000), degrees[i]);
+                }
+                BufferedImage image = TestImages.decode(rotated);
+                assertEquals(crop.width(), image.getWidth());
+                assertArrayEquals(pixels, TestImages.getPixels(image));
+            }
+        }
+    }
+
+    @Test
+    public void alignCropMovesLeftAndTopToMcus() throws IOException {
+        LosslessJpegTransform transform = readHeader(TestImages.encodeJpeg(
+                TestImages.smooth(WIDTH, HEIGHT, false), WIDTH, HEIGHT, 90));
+        assertEquals(WIDTH, transform.getWidth());
+        assertEquals(HEIGHT, transform.getHeight());
+        Rect crop = new Rect(21, 47, 150, 100);
+        assertTrue(transform.alignCrop(crop, 0));
+        assertEquals(new Rect(16, 32, 150, 100), crop);
+        // the right edge becomes the left one, the partly filled MCU is left out
+        crop = new Rect(21, 47, WIDTH, 100);
+        assertTrue(transform.alignCrop(crop, 270));
+        assertEquals(new Rect(16, 32, 192, 100), crop);
+        assertFalse(transform.alignCrop(new Rect(WIDTH, 0, WIDTH + 10, 10), 0));
+    }
+
+    @Test
+    public void rejectsProgressive() throws IOException {
+        byte[] jpeg = encodeImageIo(PROGRESSIVE);
+        assertFalse(new LosslessJpegTransform().readHeader(new ByteArrayInputStream(jpeg)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(new LosslessJpegTransform().transform(createSource(jpeg),
+                new Rect(0, 0, WIDTH, HEIGHT), 90, out));
+        assertEquals(0, out.size());
+    }
+
+    /**
+     * Crops and rotates jpeg every way and compares the decoded result to
+     * the decoded original, cropped and rotated in pixels, away from the
+     * edges where chroma upsampling sees other neighbors. Decoders round a
+     * little differently once the blocks are rotated, so that only has to be
+     * close.
+     */
+    private static void checkTransforms(String name, byte[] jpeg) throws IOException {
+        BufferedImage full = TestImages.decode(jpeg);
+        for (Rect requested : new Rect[] {new Rect(21, 13, WIDTH - 9, HEIGHT - 7),
+                new Rect(0, 0, WIDTH, HEIGHT)}) {
+            for (int degrees : DEGREES) {
+                String message = name + " " + requested + " by " + degrees;
+                Rect crop = new Rect(requested);
+                BufferedImage image = TestImages.decode(transform(jpeg, crop, degrees));
+                assertTrue(message, crop.left <= requested.left
+                        && requested.left - crop.left < 16);
+                assertTrue(message, crop.top <= requested.top && requested.top - crop.top < 16);
+
+                int w = crop.width();
+                int h = crop.height();
+                boolean swap = degrees == 90 || degrees == 270;
+                assertEquals(message, swap ? h : w, image.getWidth());
+                assertEquals(message, swap ? w : h, image.getHeight());
+                int[] expected = rotate(full.getRGB(crop.left, crop.top, w, h, null, 0, w),
+                        w, h, degrees);
+                double[] diff = TestImages.compareRgb(expected, TestImages.getPixels(image),
+                        image.getWidth(), image.getHeight(), 8);
+                if (degrees == 0) {
+                    assertEquals(message, 0, diff[0], 0);
+                } else {
+                    assertTrue(message + " max " + diff[0], diff[0] <= 4);
+                    assertTrue(message + " mean " + diff[1], diff[1] < 0.5);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the w x h pixels rotated clockwise by degrees.
+     */
+    private static int[] rotate(int[] pixels, int w, int h, int degrees) {
+        int[] rotated = new int[pixels.length];
+        int outWidth = degrees == 90 || degrees == 270 ? h : w;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int ox;
+                int oy;
+                if (degrees == 90) {
+                    ox = h - 1 - y;
+                    oy = x;
+                } else if (degrees == 180) {
+                    ox = w - 1 - x;
+                    oy = h - 1 - y;
+                } else if (degrees == 270) {
+                    ox = y;
+                    oy = w - 1 - x;
+                } else {
+                    ox = x;
+                    oy = y;
+                }
+                rotated[oy * outWidth + ox] = pixels[y * w + x];
+            }
+        }
+        return rotated;
+    }
+
+    private static byte[] transform(byte[] jpeg, Rect crop, int degrees) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new LosslessJpegTransform().transform(createSource(jpeg), crop, degrees, out));
+        return out.toByteArray();
+    }
+
+    private static LosslessJpegTransform readHeader(byte[] jpeg) throws IOException {
+        LosslessJpegTransform transform = new LosslessJpegTransform();
+        assertTrue(transform.readHeader(new ByteArrayInputStream(jpeg)));
+        return transform;
+    }
+
+    private static LosslessJpegTransform.Source createSource(final byte[] jpeg) {
+        return new LosslessJpegTransform.Source() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(jpeg);
+            }
+        };
+    }
+
+    private static int countRestartMarkers(byte[] jpeg) {
+        int count = 0;
+        for (int i = 0; i < jpeg.length - 1; i++) {
+            int marker = jpeg[i + 1] & 0xFF;
+            if ((jpeg[i] & 0xFF) == 0xFF && marker >= 0xD0 && marker <= 0xD7) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Encodes the smooth test image with ImageIO, in the layouts
+     * JpegStreamEncoder does not write.
+     */
+    private static byte[] encodeImageIo(int kind) throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, kind == GRAY
+                ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, WIDTH, HEIGHT, TestImages.smooth(WIDTH, HEIGHT, false), 0, WIDTH);
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.95f);
+        if (kind == PROGRESSIVE) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image),
+                param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA);
+        if (kind == FULL_CHROMA) {
+            IIOMetadataNode frame = (IIOMetadataNode) root.getElementsByTagName("sof").item(0);
+            for (int i = 0; i < frame.getLength(); i++) {
+                IIOMetadataNode component = (IIOMetadataNode) frame.item(i);
+                component.setAttribute("HsamplingFactor", "1");
+                component.setAttribute("VsamplingFactor", "1");
+            }
+        } else if (kind == RESTARTS) {
+            IIOMetadataNode markers = (IIOMetadataNode) root.getElementsByTagName(
+                    "markerSequence").item(0);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", "3");
+            markers.insertBefore(dri, markers.getFirstChild());
+        }
+        metadata.setFromTree(JPEG_METADATA, root);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+        try {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            out.close();
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,80 @@
+package com.android.gallery3d.crop;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PngStreamEncoderTest {
+    private static final int[][] SIZES = {
+            {1, 1}, {16, 16}, {37, 23}, {101, 67}, {300, 17}
+    };
+
+    @Test
+    public void decodesBackExactlyWithAlpha() throws IOException {
+        for (int[] size : SIZES) {
+            int w = size[0];
+            int h = size[1];
+            for (int[] pixels : new int[][] {TestImages.smooth(w, h, true),
+                    TestImages.noise(w, h, w * h)}) {
+                BufferedImage image = TestImages.decode(encode(pixels, w, h, true, 7));
+                assertTrue(image.getColorModel().hasAlpha());
+                assertArrayEquals(w + "x" + h, pixels, TestImages.getPixels(image));
+            }
+        }
+    }
+
+    @Test
+    public void decodesBackExactlyWithoutAlpha() throws IOException {
+        for (int[] size : SIZES) {
+            int w = size[0];
+            int h = size[1];
+            int[] pixels = TestImages.noise(w, h, w + h);
+            BufferedImage image = TestImages.decode(encode(pixels, w, h, false, 7));
+            assertFalse(image.getColorModel().hasAlpha());
+            int[] decoded = TestImages.getPixels(image);
+            for (int i = 0; i < pixels.length; i++) {
+                assertEquals(w + "x" + h + " pixel " + i, pixels[i] | 0xFF000000, decoded[i]);
+            }
+        }
+    }
+
+    @Test
+    public void stripeHeightDoesNotChangeOutput() throws IOException {
+        int w = 101;
+        int h = 67;
+        int[] pixels = TestImages.smooth(w, h, true);
+        byte[] expected = encode(pixels, w, h, true, h);
+        for (int stripeRows = 1; stripeRows < h; stripeRows += 11) {
+            assertArrayEquals("stripes of " + stripeRows, expected,
+                    encode(pixels, w, h, true, stripeRows));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRowsPastTheEnd() throws IOException {
+        PngStreamEncoder encoder = new PngStreamEncoder(new ByteArrayOutputStream(), 4, 4, true);
+        encoder.writeRows(new int[4 * 5], 5);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishNeedsAllRows() throws IOException {
+        PngStreamEncoder encoder = new PngStreamEncoder(new ByteArrayOutputStream(), 4, 4, true);
+        encoder.writeRows(new int[4 * 3], 3);
+        encoder.finish();
+    }
+
+    private static byte[] encode(int[] pixels, int w, int h, boolean alpha, int stripeRows)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TestImages.writeStripes(new PngStreamEncoder(out, w, h, alpha), pixels, w, h,
+                stripeRows);
+        return out.toByteArray();
+    }
+}
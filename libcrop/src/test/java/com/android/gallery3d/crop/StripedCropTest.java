@@ -0,0 +1,229 @@
+package com.android.gallery3d.crop;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripedCropTest {
+    // wide enough that a stripe is a fraction of the output
+    private static final int WIDTH = 4000;
+    private static final int HEIGHT = 1000;
+
+    @Test(timeout = 10000)
+    public void encodesEveryRowInOrder() throws IOException {
+        TestSource source = new TestSource(-1, false);
+        RecordingEncoder encoder = new RecordingEncoder(16, -1);
+        assertTrue(new StripedCrop(source, WIDTH, HEIGHT).encode(encoder));
+        assertEquals(HEIGHT, encoder.mRows);
+        assertTrue(encoder.mFinished);
+        assertTrue(encoder.mStripes > 1);
+        assertEquals(1, source.mCloses.get());
+    }
+
+    @Test(timeout = 10000)
+    public void masksCircle() throws IOException {
+        TestSource source = new TestSource(-1, false);
+        RecordingEncoder encoder = new RecordingEncoder(1, -1);
+        StripedCrop crop = new StripedCrop(source, 40, 20);
+        crop.setCircle(true);
+        assertTrue(crop.encode(encoder));
+        // outside of the circle in the corner, inside in the middle
+        assertEquals(0, encoder.mFirstPixel);
+        assertEquals(0xFF, encoder.mCenterAlpha);
+    }
+
+    @Test(timeout = 10000)
+    public void failedStripeStopsEncoding() throws IOException {
+        TestSource source = new TestSource(HEIGHT / 2, false);
+        RecordingEncoder encoder = new RecordingEncoder(16, -1);
+        assertFalse(new StripedCrop(source, WIDTH, HEIGHT).encode(encoder));
+        assertFalse(encoder.mFinished);
+        assertTrue(encoder.mRows < HEIGHT);
+        assertEquals(1, source.mCloses.get());
+    }
+
+    @Test(timeout = 10000)
+    public void throwingSourceDoesNotHang() throws IOException {
+        TestSource source = new TestSource(HEIGHT / 2, true);
+        RecordingEncoder encoder = new RecordingEncoder(16, -1);
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                // expected from the decode thread
+            }
+        });
+        try {
+            assertFalse(new StripedCrop(source, WIDTH, HEIGHT).encode(encoder));
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+        assertFalse(encoder.mFinished);
+        assertEquals(1, source.mCloses.get());
+    }
+
+    @Test(timeout = 10000)
+    public void encoderFailureStopsDecodeThread() {
+        TestSource source = new TestSource(-1, false);
+        RecordingEncoder encoder = new RecordingEncoder(16, HEIGHT / 3);
+        try {
+            new StripedCrop(source, WIDTH, HEIGHT).encode(encoder);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // the decode thread is joined before encode returns
+            assertEquals(1, source.mCloses.get());
+            assertTrue(source.mReads.get() < HEIGHT);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void interruptStopsEncoding() throws IOException {
+        TestSource source = new TestSource(-1, false);
+        RecordingEncoder encoder = new RecordingEncoder(16, -1);
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(new StripedCrop(source, WIDTH, HEIGHT).encode(encoder));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertFalse(encoder.mFinished);
+        assertEquals(1, source.mCloses.get());
+    }
+
+    @Test
+    public void straightenedStripesDecodeBoundedRegions() {
+        // an 8000 pixel wide output has stripes of 32 rows
+        int width = 8000;
+        int rows = 32;
+        Rect region = new Rect();
+        for (int sampleSize = 1; sampleSize <= 2; sampleSize *= 2) {
+            for (float degrees : new float[] {0, 0.5f, 5, -30, 45}) {
+                String name = degrees + " degrees at " + sampleSize;
+                AffineMatrix toImage = new AffineMatrix();
+                toImage.setRotate(degrees, width / 2, 3000);
+                toImage.postScale(sampleSize, sampleSize, 0, 0);
+                int piece = StripedCrop.getPieceWidth(toImage, width, rows, sampleSize);
+                assertTrue(name, piece >= rows && piece <= width);
+                if (degrees == 0) {
+                    assertEquals(name, width, piece);
+                }
+
+                long total = 0;
+                for (int x = 0; x < width; x += piece) {
+                    int right = Math.min(x + piece, width);
+                    StripedCrop.getRegion(toImage, x, 3000, right, 3000 + rows, sampleSize,
+                            region);
+                    long pixels = (long) region.width() * region.height()
+                            / sampleSize / sampleSize;
+                    assertTrue(name, pixels <= (long) StripedCrop.MAX_REGION_SCALE * piece * rows);
+                    total += pixels;
+                }
+                assertTrue(name + ": " + total,
+                        total <= (long) StripedCrop.MAX_REGION_SCALE * width * rows);
+            }
+        }
+        // decoded whole, a stripe at 45 degrees would take its width squared
+        AffineMatrix toImage = new AffineMatrix();
+        toImage.setRotate(45, width / 2, 3000);
+        StripedCrop.getRegion(toImage, 0, 3000, width, 3000 + rows, 1, region);
+        assertTrue((long) region.width() * region.height() > 100L * width * rows);
+    }
+
+    // Fills each row with its index, and fails from failRow on if set.
+    private static class TestSource implements StripedCrop.Source {
+        final AtomicInteger mReads = new AtomicInteger();
+        final AtomicInteger mCloses = new AtomicInteger();
+        private final int mFailRow;
+        private final boolean mThrow;
+        private int mWidth;
+
+        TestSource(int failRow, boolean fail) {
+            mFailRow = failRow;
+            mThrow = fail;
+        }
+
+        @Override
+        public void open(int width, int stripeRows) {
+            mWidth = width;
+        }
+
+        @Override
+        public boolean read(int[] pixels, int y, int rows) {
+            if (mFailRow >= 0 && y + rows > mFailRow) {
+                if (mThrow) {
+                    throw new IllegalStateException("cannot decode");
+                }
+                return false;
+            }
+            for (int row = 0; row < rows; row++) {
+                for (int x = 0; x < mWidth; x++) {
+                    pixels[row * mWidth + x] = 0xFF000000 | (y + row);
+                }
+            }
+            mReads.addAndGet(rows);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            mCloses.incrementAndGet();
+        }
+    }
+
+    // Checks that rows arrive in order, and throws from failRow on if set.
+    private static class RecordingEncoder implements StripeEncoder {
+        private final int mAlignment;
+        private final int mFailRow;
+        int mRows = 0;
+        int mStripes = 0;
+        boolean mFinished = false;
+        int mFirstPixel = -1;
+        int mCenterAlpha = -1;
+
+        RecordingEncoder(int alignment, int failRow) {
+            mAlignment = alignment;
+            mFailRow = failRow;
+        }
+
+        @Override
+        public int getRowAlignment() {
+            return mAlignment;
+        }
+
+        @Override
+        public void writeRows(int[] pixels, int rows) throws IOException {
+            if (mFailRow >= 0 && mRows + rows > mFailRow) {
+                throw new IOException("disk full");
+            }
+            int width = pixels.length / Math.max(rows, 1);
+            for (int row = 0; row < rows; row++) {
+                int y = mRows + row;
+                int center = pixels[row * width + width / 2];
+                if (y == 0) {
+                    mFirstPixel = pixels[0];
+                }
+                if (y == 10 && width == 40) {
+                    mCenterAlpha = center >>> 24;
+                } else if (width == WIDTH && center != (0xFF000000 | y)) {
+                    throw new AssertionError("row " + y + " out of order");
+                }
+            }
+            mRows += rows;
+            mStripes++;
+        }
+
+        @Override
+        public void finish() {
+            mFinished = true;
+        }
+    }
+}
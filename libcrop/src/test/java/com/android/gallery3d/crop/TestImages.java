@@ -0,0 +1,109 @@
+package com.android.gallery3d.crop;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Images for the encoder and transform tests, and ImageIO to decode what
+ * they produce.
+ */
+final class TestImages {
+    private TestImages() {
+    }
+
+    /**
+     * Returns w x h ARGB pixels of slow color gradients, kept away from 0 and
+     * 255 so that decoders do not clip them. Without alpha they are opaque,
+     * with it alpha runs through all values.
+     */
+    static int[] smooth(int w, int h, boolean alpha) {
+        int[] pixels = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int r = (int) (128 + 90 * Math.sin(x * 0.11 + y * 0.05));
+                int g = (int) (128 + 90 * Math.cos(x * 0.07 - y * 0.09));
+                int b = (int) (128 + 90 * Math.sin((x + y) * 0.06));
+                int a = alpha ? (x * 7 + y * 13) & 0xFF : 0xFF;
+                pixels[y * w + x] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Returns w x h ARGB pixels of seeded noise, alpha included.
+     */
+    static int[] noise(int w, int h, long seed) {
+        java.util.Random random = new java.util.Random(seed);
+        int[] pixels = new int[w * h];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    /**
+     * Encodes pixels with encoder, stripeRows rows at a time.
+     */
+    static void writeStripes(StripeEncoder encoder, int[] pixels, int w, int h, int stripeRows)
+            throws IOException {
+        for (int y = 0; y < h; y += stripeRows) {
+            int rows = Math.min(stripeRows, h - y);
+            int[] stripe = new int[rows * w];
+            System.arraycopy(pixels, y * w, stripe, 0, stripe.length);
+            encoder.writeRows(stripe, rows);
+        }
+        encoder.finish();
+    }
+
+    static byte[] encodeJpeg(int[] pixels, int w, int h, int quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegStreamEncoder encoder = new JpegStreamEncoder(out, w, h, quality);
+        writeStripes(encoder, pixels, w, h, encoder.getRowAlignment());
+        return out.toByteArray();
+    }
+
+    static BufferedImage decode(byte[] data) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image == null) {
+            throw new IOException("cannot decode");
+        }
+        return image;
+    }
+
+    /**
+     * Returns the ARGB pixels of image.
+     */
+    static int[] getPixels(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        return image.getRGB(0, 0, w, h, null, 0, w);
+    }
+
+    /**
+     * Returns the largest and the mean difference of the color channels of
+     * a and b within the given inset of their w x h borders.
+     */
+    static double[] compareRgb(int[] a, int[] b, int w, int h, int inset) {
+        int max = 0;
+        long sum = 0;
+        long count = 0;
+        for (int y = inset; y < h - inset; y++) {
+            for (int x = inset; x < w - inset; x++) {
+                int ca = a[y * w + x];
+                int cb = b[y * w + x];
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int d = Math.abs(((ca >> shift) & 0xFF) - ((cb >> shift) & 0xFF));
+                    max = Math.max(max, d);
+                    sum += d;
+                    count++;
+                }
+            }
+        }
+        return new double[] {max, count == 0 ? 0 : (double) sum / count};
+    }
+}